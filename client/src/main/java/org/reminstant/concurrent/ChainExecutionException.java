@@ -10,12 +10,14 @@ public final class ChainExecutionException extends Exception {
   public static final String PARENT_FAILURE = "Failed due to parent failure";
   public static final String CANCELLATION = "Failed due to cancellation";
   public static final String INTERRUPTION = "Failed due to foreign interruption";
+  public static final String DEADLINE_EXPIRATION = "Failed due to deadline expiration";
 
   public ChainExecutionException(ExecutionException ex) {
     super(
         switch (ex.getCause()) {
           case ChainExecutionException _ -> PARENT_FAILURE;
           case CancellationException _ -> CANCELLATION;
+          case DeadlineExpiredException _ -> DEADLINE_EXPIRATION;
           case null -> UNKNOWN_FAILURE;
           default -> FAILURE_TEMPLATE.formatted(ex.getCause().toString());
         },
@@ -2,23 +2,34 @@ package org.reminstant.concurrent;
 
 import org.reminstant.concurrent.functions.*;
 
+import java.time.Duration;
+import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.*;
 
+/**
+ * <p> Future that can be chained with further stages.
+ * <p> Stages are not submitted until their parents complete, so a waiting chain holds no threads.
+ * <p> Cancelling a child cancels its weak parents once all their children are cancelled.
+ */
 public class ChainableFuture<V> implements Future<V> {
 
   private static final ExecutorService DEFAULT_EXECUTOR = Executors.newVirtualThreadPerTaskExecutor();
   private static final ChainableFuture<Void> COMPLETED_VOID_INSTANCE =
       new ChainableFuture<>(DEFAULT_EXECUTOR, () -> null, true);
+  private static final ScheduledExecutorService DEADLINE_SCHEDULER = createDeadlineScheduler();
 
   private final ExecutorService executor;
 
-  private final Future<V> currentTask;
+  private final CompletableFuture<V> completion;
+  private final AtomicReference<Future<?>> runningTask;
   private final boolean isStrong;
   private final Set<ChainableFuture<?>> parentTasks;
   private final AtomicInteger childrenCount;
+  private final AtomicReference<Instant> deadline;
 
 
 
@@ -36,11 +47,11 @@ public class ChainableFuture<V> implements Future<V> {
   }
 
   public static ChainableFuture<Void> runWeaklyAsync(ThrowingRunnable runnable, ExecutorService executor) {
-    return supplyStronglyAsync(ThrowingFunctions.toSupplier(runnable), executor);
+    return supplyWeaklyAsync(ThrowingFunctions.toSupplier(runnable), executor);
   }
 
   public static ChainableFuture<Void> runStronglyAsync(ThrowingRunnable runnable, ExecutorService executor) {
-    return supplyWeaklyAsync(ThrowingFunctions.toSupplier(runnable), executor);
+    return supplyStronglyAsync(ThrowingFunctions.toSupplier(runnable), executor);
   }
 
 
@@ -61,6 +72,25 @@ public class ChainableFuture<V> implements Future<V> {
   }
 
 
+  /**
+   * Wraps the future completed by someone else, e.g. by non-blocking I/O, so no thread waits for it.
+   * Cancelling the wrapper cancels the wrapped future
+   */
+  public static <V> ChainableFuture<V> wrapWeakly(CompletableFuture<V> future) {
+    ChainableFuture<V> wrapper = new ChainableFuture<>(DEFAULT_EXECUTOR, false);
+    wrapper.runningTask.set(future);
+    future.whenComplete((result, ex) -> {
+      if (ex == null) {
+        wrapper.completion.complete(result);
+      } else {
+        wrapper.completion.completeExceptionally(
+            ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex);
+      }
+    });
+    return wrapper;
+  }
+
+
   public static <V> ChainableFuture<Void> awaitAllStronglyAsync(Iterable<ChainableFuture<V>> futures) {
     return awaitAllAsync(futures, true, DEFAULT_EXECUTOR);
   }
@@ -82,11 +112,53 @@ public class ChainableFuture<V> implements Future<V> {
 
 
   private ChainableFuture(ExecutorService executor, ThrowingSupplier<V> supplier, boolean isStrong) {
+    this(executor, isStrong);
+    submit(supplier);
+  }
+
+  private ChainableFuture(ExecutorService executor, boolean isStrong) {
     this.executor = executor;
-    this.currentTask = executor.submit(supplier::get);
+    this.completion = new CompletableFuture<>();
+    this.runningTask = new AtomicReference<>(null);
     this.isStrong = isStrong;
     this.parentTasks = Collections.newSetFromMap(new ConcurrentHashMap<>());
     this.childrenCount = new AtomicInteger(0);
+    this.deadline = new AtomicReference<>(null);
+  }
+
+
+
+  /**
+   * Makes this stage fail with {@link DeadlineExpiredException} if it is not completed
+   * by the deadline. The expired stage interrupts its task and notifies parents like cancellation does.
+   * Map, compose and await stages chained afterwards inherit the deadline,
+   * handle stages do not so that they can recover from the expiration
+   */
+  public ChainableFuture<V> withDeadline(Instant deadline) {
+    Objects.requireNonNull(deadline, "deadline cannot be null");
+    Instant previous = this.deadline.getAndAccumulate(deadline,
+        (current, next) -> current == null || next.isBefore(current) ? next : current);
+    if ((previous != null && !deadline.isBefore(previous)) || completion.isDone()) {
+      return this;
+    }
+
+    long delay = Duration.between(Instant.now(), deadline).toNanos();
+    if (delay <= 0) {
+      expire(deadline);
+      return this;
+    }
+
+    ScheduledFuture<?> timer = DEADLINE_SCHEDULER.schedule(() -> expire(deadline), delay, TimeUnit.NANOSECONDS);
+    completion.whenComplete((_, _) -> timer.cancel(false));
+    return this;
+  }
+
+  public ChainableFuture<V> orTimeout(long timeout, TimeUnit unit) {
+    return withDeadline(Instant.now().plusNanos(unit.toNanos(timeout)));
+  }
+
+  public Optional<Instant> getDeadline() {
+    return Optional.ofNullable(deadline.get());
   }
 
 
@@ -161,7 +233,11 @@ public class ChainableFuture<V> implements Future<V> {
 
   @Override
   public boolean cancel(boolean mayInterruptIfRunning) {
-    boolean res = currentTask.cancel(mayInterruptIfRunning);
+    boolean res = completion.cancel(false);
+    Future<?> task = runningTask.get();
+    if (res && task != null) {
+      task.cancel(mayInterruptIfRunning);
+    }
     sendCancellationNotifications(mayInterruptIfRunning);
     return res;
   }
@@ -175,18 +251,18 @@ public class ChainableFuture<V> implements Future<V> {
 
   @Override
   public boolean isCancelled() {
-    return currentTask.isCancelled();
+    return completion.isCancelled();
   }
 
   @Override
   public boolean isDone() {
-    return currentTask.isDone();
+    return completion.isDone();
   }
 
   @Override
   public V get() throws ExecutionException, InterruptedException {
     try {
-      return currentTask.get();
+      return completion.get();
     } catch (ExecutionException ex) {
       if (ex.getCause() instanceof ChainExecutionException chainEx) {
         throw new ExecutionException(ChainExecutionException.PARENT_FAILURE, chainEx);
@@ -200,7 +276,7 @@ public class ChainableFuture<V> implements Future<V> {
   @Override
   public V get(long timeout, TimeUnit unit) throws ExecutionException, InterruptedException, TimeoutException {
     try {
-      return currentTask.get(timeout, unit);
+      return completion.get(timeout, unit);
     } catch (ExecutionException ex) {
       if (ex.getCause() instanceof ChainExecutionException chainEx) {
         throw new ExecutionException(ChainExecutionException.PARENT_FAILURE, chainEx);
@@ -237,12 +313,28 @@ public class ChainableFuture<V> implements Future<V> {
     return isStrong;
   }
 
+  /** Runs the action in the completing thread once this stage is done, cancellation included */
+  public void whenDone(Runnable action) {
+    Objects.requireNonNull(action, "action cannot be null");
+    completion.whenComplete((_, _) -> action.run());
+  }
+
+
 
+  private static ScheduledExecutorService createDeadlineScheduler() {
+    ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, Thread.ofPlatform()
+        .name("chain-deadline-scheduler")
+        .daemon(true)
+        .factory());
+    scheduler.setRemoveOnCancelPolicy(true);
+    return scheduler;
+  }
 
   private static <V> ChainableFuture<Void> awaitAllAsync(Iterable<ChainableFuture<V>> futures,
                                                          boolean isStrong, ExecutorService executor) {
+    List<ChainableFuture<V>> parents = toList(futures);
     ThrowingSupplier<Void> supplier = () -> {
-      for (ChainableFuture<V> future : futures) {
+      for (ChainableFuture<V> future : parents) {
         try {
           future.get();
         } catch (InterruptedException _) {
@@ -252,40 +344,35 @@ public class ChainableFuture<V> implements Future<V> {
       return null;
     };
 
-    ChainableFuture<Void> childTask = new ChainableFuture<>(executor, supplier, isStrong);
-    for (ChainableFuture<V> future : futures) {
-      childTask.parentTasks.add(future);
-      future.childrenCount.incrementAndGet();
-    }
-
+    ChainableFuture<Void> childTask = new ChainableFuture<>(executor, isStrong);
+    parents.forEach(childTask::inheritDeadline);
+    childTask.attachToAll(parents, () -> childTask.submit(supplier));
     return childTask;
   }
 
   private static <V> ChainableFuture<List<V>> collectAsync(Iterable<ChainableFuture<V>> futures,
                                                            boolean isStrong, ExecutorService executor,
                                                            boolean mayInterruptIfRunning) {
+    List<ChainableFuture<V>> parents = toList(futures);
     ThrowingSupplier<List<V>> supplier = () -> {
       try {
         List<V> result = new ArrayList<>();
-        for (ChainableFuture<V> future : futures) {
-          result.add(future.get());
+        for (ChainableFuture<V> future : parents) {
+          result.add(future.completion.get());
         }
         return result;
       } catch (ExecutionException ex) {
-        cancelParents(futures, mayInterruptIfRunning);
+        cancelParents(parents, mayInterruptIfRunning);
         throw new ChainExecutionException(ex);
       } catch (CancellationException ex) { // NOSONAR
-        cancelParents(futures, mayInterruptIfRunning);
+        cancelParents(parents, mayInterruptIfRunning);
         throw new ChainExecutionException(ex);
       }
     };
 
-    ChainableFuture<List<V>> childTask = new ChainableFuture<>(executor, supplier, isStrong);
-    for (ChainableFuture<V> future : futures) {
-      childTask.parentTasks.add(future);
-      future.childrenCount.incrementAndGet();
-    }
-
+    ChainableFuture<List<V>> childTask = new ChainableFuture<>(executor, isStrong);
+    parents.forEach(childTask::inheritDeadline);
+    childTask.attachToAll(parents, () -> childTask.submit(supplier));
     return childTask;
   }
 
@@ -295,15 +382,22 @@ public class ChainableFuture<V> implements Future<V> {
     }
   }
 
+  private static <V> List<ChainableFuture<V>> toList(Iterable<ChainableFuture<V>> futures) {
+    List<ChainableFuture<V>> list = new ArrayList<>();
+    futures.forEach(list::add);
+    return list;
+  }
+
 
 
   private <U> ChainableFuture<U> thenMapAsync(ThrowingFunction<? super V, U> mapping,
                                               boolean isStrong, ExecutorService executor) {
+    // parent is already completed when supplier is run, so get() does not block
     ThrowingSupplier<U> supplier = () -> {
       try {
-        return mapping.apply(currentTask.get());
+        return mapping.apply(completion.get());
       } catch (ExecutionException ex) {
-        // It's currentTask exception
+        // It's parent task exception
         // Mapping exception will be thrown when childTask will be gotten
         throw new ChainExecutionException(ex);
       } catch (CancellationException ex) { // NOSONAR
@@ -311,10 +405,9 @@ public class ChainableFuture<V> implements Future<V> {
       }
     };
 
-    ChainableFuture<U> childTask = new ChainableFuture<>(executor, supplier, isStrong);
-    childTask.parentTasks.add(this);
-    childrenCount.incrementAndGet();
-
+    ChainableFuture<U> childTask = new ChainableFuture<>(executor, isStrong);
+    childTask.inheritDeadline(this);
+    childTask.attachTo(this, () -> childTask.submit(supplier));
     return childTask;
   }
 
@@ -322,7 +415,7 @@ public class ChainableFuture<V> implements Future<V> {
                                              boolean isStrong, ExecutorService executor) {
     ThrowingSupplier<V> supplier = () -> {
       try {
-        return currentTask.get();
+        return completion.get();
       } catch (InterruptedException ex) {
         throw new InterruptedException();
       } catch (ExecutionException ex) {
@@ -335,18 +428,16 @@ public class ChainableFuture<V> implements Future<V> {
       }
     };
 
-    ChainableFuture<V> childTask = new ChainableFuture<>(executor, supplier, isStrong);
-    childTask.parentTasks.add(this);
-    childrenCount.incrementAndGet();
-
+    ChainableFuture<V> childTask = new ChainableFuture<>(executor, isStrong);
+    childTask.attachTo(this, () -> childTask.submit(supplier));
     return childTask;
   }
 
   private <U> ChainableFuture<U> thenComposeAsync(Function<? super V, ? extends Future<U>> function,
                                                   boolean isStrong, ExecutorService executor) {
-    ThrowingSupplier<U> supplier = () -> {
+    ThrowingSupplier<Future<U>> supplier = () -> {
       try {
-        return function.apply(currentTask.get()).get();
+        return function.apply(completion.get());
       } catch (ExecutionException ex) {
         throw new ChainExecutionException(ex);
       } catch (CancellationException ex) { // NOSONAR
@@ -354,15 +445,133 @@ public class ChainableFuture<V> implements Future<V> {
       }
     };
 
-    ChainableFuture<U> childTask = new ChainableFuture<>(executor, supplier, isStrong);
-    childTask.parentTasks.add(this);
-    childrenCount.incrementAndGet();
-
+    ChainableFuture<U> childTask = new ChainableFuture<>(executor, isStrong);
+    childTask.inheritDeadline(this);
+    childTask.attachTo(this, () -> childTask.submitComposition(supplier));
     return childTask;
   }
 
 
 
+  private void inheritDeadline(ChainableFuture<?> parent) {
+    Instant parentDeadline = parent.deadline.get();
+    if (parentDeadline != null) {
+      withDeadline(parentDeadline);
+    }
+  }
+
+  private void expire(Instant expiredDeadline) {
+    if (completion.completeExceptionally(new DeadlineExpiredException(expiredDeadline))) {
+      Future<?> task = runningTask.get();
+      if (task != null) {
+        task.cancel(true);
+      }
+      sendCancellationNotifications(true);
+    }
+  }
+
+  private void attachTo(ChainableFuture<?> parent, Runnable onParentCompletion) {
+    parentTasks.add(parent);
+    parent.childrenCount.incrementAndGet();
+    parent.completion.whenComplete((_, _) -> onParentCompletion.run());
+  }
+
+  private void attachToAll(List<? extends ChainableFuture<?>> parents, Runnable onParentsCompletion) {
+    if (parents.isEmpty()) {
+      onParentsCompletion.run();
+      return;
+    }
+
+    AtomicInteger remaining = new AtomicInteger(parents.size());
+    for (ChainableFuture<?> parent : parents) {
+      attachTo(parent, () -> {
+        if (remaining.decrementAndGet() == 0) {
+          onParentsCompletion.run();
+        }
+      });
+    }
+  }
+
+  private void submit(ThrowingSupplier<V> supplier) {
+    if (completion.isDone()) {
+      return;
+    }
+
+    execute(new FutureTask<>(() -> complete(supplier), null));
+  }
+
+  /**
+   * Runs supplier of inner future in executor, then completes when the inner future completes.
+   * Only inner futures of unknown type are waited in a blocking way
+   */
+  private void submitComposition(ThrowingSupplier<? extends Future<V>> supplier) {
+    if (completion.isDone()) {
+      return;
+    }
+
+    execute(new FutureTask<>(() -> {
+      if (completion.isDone()) {
+        return;
+      }
+
+      Future<V> inner;
+      CompletableFuture<?> innerCompletion;
+      try {
+        inner = supplier.get();
+        innerCompletion = switch (inner) {
+          case ChainableFuture<?> future -> future.completion;
+          case CompletableFuture<?> future -> future;
+          default -> null;
+        };
+      } catch (Throwable ex) { // NOSONAR
+        completion.completeExceptionally(ex);
+        return;
+      }
+
+      if (innerCompletion != null) {
+        innerCompletion.whenComplete((_, _) -> complete(() -> getComposed(inner)));
+      } else {
+        complete(() -> getComposed(inner));
+      }
+    }, null));
+  }
+
+  /**
+   * The task is published before it is handed to the executor, so a cancellation racing
+   * with the submission still finds and interrupts it
+   */
+  private void execute(FutureTask<?> task) {
+    runningTask.set(task);
+    try {
+      executor.execute(task);
+    } catch (RejectedExecutionException ex) {
+      completion.completeExceptionally(ex);
+    }
+  }
+
+  private void complete(ThrowingSupplier<V> supplier) {
+    if (completion.isDone()) {
+      return;
+    }
+    try {
+      completion.complete(supplier.get());
+    } catch (Throwable ex) { // NOSONAR
+      completion.completeExceptionally(ex);
+    }
+  }
+
+  private V getComposed(Future<V> inner) throws ChainExecutionException, InterruptedException {
+    try {
+      return inner.get();
+    } catch (ExecutionException ex) {
+      throw new ChainExecutionException(ex);
+    } catch (CancellationException ex) { // NOSONAR
+      throw new ChainExecutionException(ex);
+    }
+  }
+
+
+
   private void sendCancellationNotifications(boolean mayInterruptIfRunning) {
     for (ChainableFuture<?> parent : parentTasks) {
       parent.handleCancellationNotification(mayInterruptIfRunning);
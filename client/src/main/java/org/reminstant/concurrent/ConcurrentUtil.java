@@ -1,5 +1,10 @@
 package org.reminstant.concurrent;
 
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
 public class ConcurrentUtil {
 
   private ConcurrentUtil() {}
@@ -11,4 +16,15 @@ public class ConcurrentUtil {
       Thread.currentThread().interrupt();
     }
   }
-}
\ No newline at end of file
+
+  /**
+   * Creates executor that runs at most {@code parallelism} tasks on virtual threads
+   * and rejects tasks when {@code queueCapacity} tasks are already waiting
+   */
+  public static ExecutorService newBoundedExecutor(String name, int parallelism, int queueCapacity) {
+    return new ThreadPoolExecutor(parallelism, parallelism, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(queueCapacity),
+        Thread.ofVirtual().name(name + "-", 0).factory(),
+        new ThreadPoolExecutor.AbortPolicy());
+  }
+}
@@ -0,0 +1,18 @@
+package org.reminstant.concurrent;
+
+import java.time.Instant;
+import java.util.concurrent.TimeoutException;
+
+public final class DeadlineExpiredException extends TimeoutException {
+
+  private final transient Instant deadline;
+
+  public DeadlineExpiredException(Instant deadline) {
+    super("Deadline %s has expired".formatted(deadline));
+    this.deadline = deadline;
+  }
+
+  public Instant getDeadline() {
+    return deadline;
+  }
+}
@@ -0,0 +1,53 @@
+package org.reminstant.concurrent;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs tasks with the same key one after another in submission order,
+ * while tasks with different keys run in parallel on the underlying executor
+ */
+public class KeyedSerialExecutor<K> {
+
+  private final Executor executor;
+  private final Map<K, Queue<Runnable>> queues;
+
+  public KeyedSerialExecutor(Executor executor) {
+    Objects.requireNonNull(executor, "executor cannot be null");
+    this.executor = executor;
+    this.queues = new HashMap<>();
+  }
+
+  public void execute(K key, Runnable task) {
+    Objects.requireNonNull(task, "task cannot be null");
+    synchronized (queues) {
+      Queue<Runnable> queue = queues.get(key);
+      if (queue != null) {
+        queue.add(task);
+        return;
+      }
+      queues.put(key, new ArrayDeque<>());
+    }
+    executor.execute(() -> drain(key, task));
+  }
+
+  private void drain(K key, Runnable task) {
+    while (task != null) {
+      try {
+        task.run();
+      } catch (RuntimeException _) {
+        // the task is responsible for its failures, the ones after it still run
+      }
+      synchronized (queues) {
+        task = queues.get(key).poll();
+        if (task == null) {
+          queues.remove(key);
+        }
+      }
+    }
+  }
+}
@@ -1,5 +1,7 @@
 package org.reminstant.concurrent;
 
+import java.time.Duration;
+import java.util.Optional;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -21,6 +23,20 @@ public interface Progress<T> {
 
   double getProgress();
 
+  /** Processed bytes per second since the task was started */
+  double getThroughput();
+
+  /** Remaining time extrapolated from the progress made so far, empty until there is any progress */
+  Optional<Duration> getEstimatedTimeLeft();
+
+  /**
+   * Listener is notified at most once per notification interval while the task is running
+   * and once more when it is done. Notifications come from a shared thread, so listeners must be short
+   */
+  void addListener(Listener listener);
+
+  void removeListener(Listener listener);
+
 
   interface Counter {
 
@@ -33,4 +49,11 @@ public interface Progress<T> {
     void incrementProgress();
 
   }
+
+  @FunctionalInterface
+  interface Listener {
+
+    void onProgress(Progress<?> progress);
+
+  }
 }
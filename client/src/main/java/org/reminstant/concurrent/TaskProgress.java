@@ -0,0 +1,361 @@
+package org.reminstant.concurrent;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * <p> Lock-free progress of a task split into equal sub-tasks.
+ * <p> The task is completed by its future, by completing all of its sub-tasks ({@link #completedByCount()})
+ * or by completing all of its weighted children ({@link #ofChildren(double)}).
+ * The latter lets consecutive stages, e.g. encryption and uploading, be shown as one progress.
+ * <p> Listeners are notified at most once per {@value #NOTIFICATION_INTERVAL_MILLIS} ms
+ * however often the counters change, and once more on completion.
+ */
+public class TaskProgress<T> implements Progress<T>, Progress.Counter {
+
+  private static final long NOTIFICATION_INTERVAL_MILLIS = 100;
+  private static final ScheduledExecutorService NOTIFIER = createNotifier();
+
+  private final CompletionSource completionSource;
+  private final CompletableFuture<T> completion;
+  private final AtomicReference<ChainableFuture<T>> future;
+
+  private final AtomicLong completedSubTaskCount;
+  private final AtomicLong subTaskCount;
+  private final AtomicLong subTaskByteSize;
+
+  private final double totalChildWeight;
+  private final List<Child> children;
+
+  private final List<Listener> listeners;
+  private final AtomicBoolean isNotificationScheduled;
+  private final long startNanos;
+
+  /** Progress that is completed by the future set with {@link #setFuture(ChainableFuture)} */
+  public TaskProgress() {
+    this(CompletionSource.FUTURE, 0);
+  }
+
+  private TaskProgress(CompletionSource completionSource, double totalChildWeight) {
+    this.completionSource = completionSource;
+    this.completion = new CompletableFuture<>();
+    this.future = new AtomicReference<>();
+    this.completedSubTaskCount = new AtomicLong(0);
+    this.subTaskCount = new AtomicLong(1);
+    this.subTaskByteSize = new AtomicLong(0);
+    this.totalChildWeight = totalChildWeight;
+    this.children = new CopyOnWriteArrayList<>();
+    this.listeners = new CopyOnWriteArrayList<>();
+    this.isNotificationScheduled = new AtomicBoolean(false);
+    this.startNanos = System.nanoTime();
+
+    completion.whenComplete((_, _) -> notifyListeners());
+  }
+
+  /** Progress that is done as soon as all sub-tasks are completed. Its result is always {@code null} */
+  public static <T> TaskProgress<T> completedByCount() {
+    return new TaskProgress<>(CompletionSource.COUNT, 0);
+  }
+
+  /**
+   * Progress that is done when children of the given total weight are added and all of them are done.
+   * The children may be added while the previous ones are still running
+   */
+  public static TaskProgress<Void> ofChildren(double totalChildWeight) {
+    if (totalChildWeight <= 0) {
+      throw new IllegalArgumentException("Total child weight must be positive");
+    }
+    return new TaskProgress<>(CompletionSource.CHILDREN, totalChildWeight);
+  }
+
+
+
+  public ChainableFuture<T> getFuture() {
+    return future.get();
+  }
+
+  public void setFuture(ChainableFuture<T> future) {
+    Objects.requireNonNull(future, "future cannot be null");
+    if (completionSource != CompletionSource.FUTURE) {
+      throw new IllegalStateException("Progress is not completed by a future");
+    }
+    if (!this.future.compareAndSet(null, future)) {
+      throw new IllegalStateException("Future is already set");
+    }
+    future.whenDone(this::notifyListeners);
+  }
+
+  public void addChild(Progress<?> child, double weight) {
+    Objects.requireNonNull(child, "child cannot be null");
+    if (completionSource != CompletionSource.CHILDREN) {
+      throw new IllegalStateException("Progress is not completed by children");
+    }
+    if (weight <= 0) {
+      throw new IllegalArgumentException("Child weight must be positive");
+    }
+
+    children.add(new Child(child, weight));
+    if (completion.isCancelled()) {
+      child.cancel(true);
+      return;
+    }
+    child.addListener(_ -> onChildProgress(child));
+  }
+
+  /** Bytes processed by a single sub-task, used to compute the throughput */
+  public void setSubTaskByteSize(long subTaskByteSize) {
+    this.subTaskByteSize.set(subTaskByteSize);
+  }
+
+  public long getProcessedByteCount() {
+    if (completionSource == CompletionSource.CHILDREN) {
+      long byteCount = 0;
+      for (Child child : children) {
+        if (child.progress instanceof TaskProgress<?> taskProgress) {
+          byteCount += taskProgress.getProcessedByteCount();
+        }
+      }
+      return byteCount;
+    }
+    return completedSubTaskCount.get() * subTaskByteSize.get();
+  }
+
+
+
+  @Override
+  public boolean isDone() {
+    if (completionSource == CompletionSource.FUTURE) {
+      ChainableFuture<T> f = future.get();
+      return f != null && f.isDone();
+    }
+    return completion.isDone();
+  }
+
+  @Override
+  public boolean isCancelled() {
+    if (completionSource == CompletionSource.FUTURE) {
+      ChainableFuture<T> f = future.get();
+      return f != null && f.isCancelled();
+    }
+    return completion.isCancelled();
+  }
+
+  @Override
+  public boolean isCompletedExceptionally() {
+    if (completionSource == CompletionSource.FUTURE) {
+      ChainableFuture<T> f = future.get();
+      return f != null && f.isCompletedExceptionally();
+    }
+    return completion.isCompletedExceptionally() && !completion.isCancelled();
+  }
+
+  @Override
+  public boolean cancel(boolean mayInterruptIfRunning) {
+    if (completionSource == CompletionSource.FUTURE) {
+      ChainableFuture<T> f = future.get();
+      return f != null && f.cancel(mayInterruptIfRunning);
+    }
+
+    boolean res = completion.cancel(false);
+    children.forEach(child -> child.progress.cancel(mayInterruptIfRunning));
+    return res;
+  }
+
+  @Override
+  public T getResult() throws ExecutionException, InterruptedException {
+    if (completionSource == CompletionSource.FUTURE) {
+      return getFutureOrThrow().get();
+    }
+    try {
+      return completion.get();
+    } catch (CancellationException ex) {
+      throw new ExecutionException(ChainExecutionException.CANCELLATION, ex);
+    }
+  }
+
+  @Override
+  public T getResult(long timeout, TimeUnit unit)
+      throws ExecutionException, InterruptedException, TimeoutException {
+    if (completionSource == CompletionSource.FUTURE) {
+      return getFutureOrThrow().get(timeout, unit);
+    }
+    try {
+      return completion.get(timeout, unit);
+    } catch (CancellationException ex) {
+      throw new ExecutionException(ChainExecutionException.CANCELLATION, ex);
+    }
+  }
+
+  @Override
+  public double getProgress() {
+    if (completionSource == CompletionSource.CHILDREN) {
+      double attachedWeight = 0;
+      double progress = 0;
+      for (Child child : children) {
+        attachedWeight += child.weight;
+        progress += child.weight * child.progress.getProgress();
+      }
+      return progress / Math.max(totalChildWeight, attachedWeight);
+    }
+    if (completionSource == CompletionSource.FUTURE && future.get() == null) {
+      return 0;
+    }
+    return Math.min(1.0, 1.0 * completedSubTaskCount.get() / subTaskCount.get());
+  }
+
+  @Override
+  public double getThroughput() {
+    double elapsedSeconds = (System.nanoTime() - startNanos) / 1e9;
+    return elapsedSeconds > 0 ? getProcessedByteCount() / elapsedSeconds : 0;
+  }
+
+  @Override
+  public Optional<Duration> getEstimatedTimeLeft() {
+    if (isDone()) {
+      return Optional.of(Duration.ZERO);
+    }
+    double progress = getProgress();
+    if (progress <= 0) {
+      return Optional.empty();
+    }
+    long elapsedNanos = System.nanoTime() - startNanos;
+    return Optional.of(Duration.ofNanos((long) (elapsedNanos * (1 - progress) / progress)));
+  }
+
+  @Override
+  public void addListener(Listener listener) {
+    Objects.requireNonNull(listener, "listener cannot be null");
+    listeners.add(listener);
+    if (isDone()) {
+      listener.onProgress(this);
+    }
+  }
+
+  @Override
+  public void removeListener(Listener listener) {
+    listeners.remove(listener);
+  }
+
+
+
+  @Override
+  public void setSubTaskCount(long subTaskCount) {
+    this.subTaskCount.set(subTaskCount);
+    onCountChanged();
+  }
+
+  @Override
+  public void setCompletedSubTaskCount(long completedSubTaskCount) {
+    this.completedSubTaskCount.set(completedSubTaskCount);
+    onCountChanged();
+  }
+
+  @Override
+  public void incrementProgress() {
+    completedSubTaskCount.incrementAndGet();
+    onCountChanged();
+  }
+
+
+
+  private ChainableFuture<T> getFutureOrThrow() {
+    ChainableFuture<T> f = future.get();
+    if (f == null) {
+      throw new IllegalStateException("Future is not set");
+    }
+    return f;
+  }
+
+  private void onCountChanged() {
+    if (completionSource == CompletionSource.COUNT &&
+        completedSubTaskCount.get() >= subTaskCount.get()) {
+      completion.complete(null);
+      return;
+    }
+    scheduleNotification();
+  }
+
+  private void onChildProgress(Progress<?> child) {
+    if (child.isDone()) {
+      if (child.isCancelled()) {
+        if (!completion.isDone()) {
+          cancel(true);
+        }
+      } else if (child.isCompletedExceptionally()) {
+        completion.completeExceptionally(getChildFailure(child));
+      } else if (areChildrenDone()) {
+        completion.complete(null);
+      }
+    }
+    scheduleNotification();
+  }
+
+  private boolean areChildrenDone() {
+    double attachedWeight = 0;
+    for (Child child : children) {
+      if (!child.progress.isDone()) {
+        return false;
+      }
+      attachedWeight += child.weight;
+    }
+    return attachedWeight >= totalChildWeight;
+  }
+
+  private static Throwable getChildFailure(Progress<?> child) {
+    try {
+      child.getResult();
+      return new IllegalStateException("Child completed exceptionally without an exception");
+    } catch (ExecutionException ex) {
+      return ex.getCause() != null ? ex.getCause() : ex;
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      return ex;
+    }
+  }
+
+  private void scheduleNotification() {
+    if (listeners.isEmpty() || !isNotificationScheduled.compareAndSet(false, true)) {
+      return;
+    }
+    NOTIFIER.schedule(() -> {
+      isNotificationScheduled.set(false);
+      notifyListeners();
+    }, NOTIFICATION_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  private void notifyListeners() {
+    for (Listener listener : listeners) {
+      try {
+        listener.onProgress(this);
+      } catch (RuntimeException ex) {
+        Thread thread = Thread.currentThread();
+        thread.getUncaughtExceptionHandler().uncaughtException(thread, ex);
+      }
+    }
+  }
+
+  private static ScheduledExecutorService createNotifier() {
+    ScheduledThreadPoolExecutor notifier = new ScheduledThreadPoolExecutor(1, Thread.ofPlatform()
+        .name("progress-notifier")
+        .daemon(true)
+        .factory());
+    notifier.setRemoveOnCancelPolicy(true);
+    return notifier;
+  }
+
+
+
+  private enum CompletionSource {
+    FUTURE,
+    COUNT,
+    CHILDREN
+  }
+
+  private record Child(Progress<?> progress, double weight) { }
+}
@@ -3,17 +3,33 @@ package org.reminstant.cryptography.asymmetric;
 
 import java.math.BigInteger;
 import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class DiffieHellmanGenerator {
 
   private final Random random;
   private final BigInteger prime;
   private final BigInteger generator;
+  private final MontgomeryGroup group;
+
+  private final AtomicBoolean isRefilling;
+  private BlockingQueue<KeyPair> keyPairPool;
+  private ExecutorService refillExecutor;
+  private int pooledPrivateKeyBitLength;
 
   public DiffieHellmanGenerator(BigInteger prime, BigInteger generator) {
     this.random = new Random();
     this.prime = prime;
     this.generator = generator;
+    this.group = new MontgomeryGroup(prime, generator);
+    this.isRefilling = new AtomicBoolean(false);
+    this.keyPairPool = null;
+    this.refillExecutor = null;
+    this.pooledPrivateKeyBitLength = 0;
   }
 
   public DiffieHellmanGenerator(String prime, String generator) {
@@ -25,11 +41,73 @@ public class DiffieHellmanGenerator {
   }
 
   public BigInteger generatePublicKey(BigInteger privateKey) {
-    return generator.modPow(privateKey, prime);
+    return group.powGenerator(privateKey);
   }
 
   public BigInteger generateSessionKey(BigInteger privateKey, BigInteger otherPublicKey) {
     return otherPublicKey.modPow(privateKey, prime);
   }
 
+  public KeyPair generateKeyPair(int privateKeyBitLength) {
+    BigInteger privateKey = generatePrivateKey(privateKeyBitLength);
+    return new KeyPair(privateKey, generatePublicKey(privateKey));
+  }
+
+  /**
+   * Starts a low-priority background thread that keeps up to {@code capacity}
+   * precomputed key pairs for {@link #takeKeyPair(int)}
+   */
+  public synchronized void startKeyPairPool(int privateKeyBitLength, int capacity) {
+    stopKeyPairPool();
+    keyPairPool = new ArrayBlockingQueue<>(capacity);
+    pooledPrivateKeyBitLength = privateKeyBitLength;
+    refillExecutor = Executors.newSingleThreadExecutor(Thread.ofPlatform()
+        .name("dh-key-pool")
+        .daemon(true)
+        .priority(Thread.MIN_PRIORITY)
+        .factory());
+    scheduleRefill();
+  }
+
+  public synchronized void stopKeyPairPool() {
+    if (refillExecutor != null) {
+      refillExecutor.shutdownNow();
+    }
+    refillExecutor = null;
+    keyPairPool = null;
+    isRefilling.set(false);
+  }
+
+  /**
+   * Returns a precomputed key pair if there is one in the pool,
+   * otherwise generates it in the calling thread
+   */
+  public KeyPair takeKeyPair(int privateKeyBitLength) {
+    KeyPair keyPair = null;
+    synchronized (this) {
+      if (keyPairPool != null && pooledPrivateKeyBitLength == privateKeyBitLength) {
+        keyPair = keyPairPool.poll();
+        scheduleRefill();
+      }
+    }
+    return keyPair != null ? keyPair : generateKeyPair(privateKeyBitLength);
+  }
+
+  private void scheduleRefill() {
+    if (!isRefilling.compareAndSet(false, true)) {
+      return;
+    }
+
+    BlockingQueue<KeyPair> pool = keyPairPool;
+    int bitLength = pooledPrivateKeyBitLength;
+    refillExecutor.execute(() -> {
+      try {
+        while (!Thread.currentThread().isInterrupted() && pool.remainingCapacity() > 0) {
+          pool.offer(generateKeyPair(bitLength));
+        }
+      } finally {
+        isRefilling.set(false);
+      }
+    });
+  }
 }
@@ -0,0 +1,6 @@
+package org.reminstant.cryptography.asymmetric;
+
+import java.math.BigInteger;
+
+public record KeyPair(BigInteger privateKey, BigInteger publicKey) {
+}
@@ -0,0 +1,227 @@
+package org.reminstant.cryptography.asymmetric;
+
+import java.math.BigInteger;
+
+/**
+ * Powers of a fixed generator modulo a fixed odd prime.
+ * Numbers are kept in Montgomery form as little-endian 64-bit limbs,
+ * the generator powers are taken from a precomputed comb table.
+ */
+final class MontgomeryGroup {
+
+  private static final int COMB_TEETH = 8;
+  private static final int COMB_BIT_LENGTH_STEP = 64;
+
+  private final BigInteger modulus;
+  private final BigInteger generator;
+  private final int limbCount;
+  private final long[] modulusLimbs;
+  private final long modulusInverse; // -modulus^(-1) mod 2^64
+  private final long[] montOne;
+
+  private volatile CombTable combTable;
+
+  MontgomeryGroup(BigInteger modulus, BigInteger generator) {
+    if (modulus.signum() <= 0 || !modulus.testBit(0) || modulus.equals(BigInteger.ONE)) {
+      throw new IllegalArgumentException("Modulus must be odd and greater than one");
+    }
+
+    this.modulus = modulus;
+    this.generator = generator.mod(modulus);
+    this.limbCount = (modulus.bitLength() + 63) / 64;
+    this.modulusLimbs = toLimbs(modulus);
+    this.modulusInverse = -inverseModWord(modulusLimbs[0]);
+    this.montOne = toMontgomery(BigInteger.ONE);
+    this.combTable = null;
+  }
+
+  BigInteger powGenerator(BigInteger exponent) {
+    throwIfNegative(exponent);
+    int bitLength = exponent.bitLength();
+    if (bitLength == 0) {
+      return BigInteger.ONE.mod(modulus);
+    }
+
+    CombTable table = getCombTable(bitLength);
+    int d = table.spacing;
+
+    long[] result = montOne.clone();
+    for (int j = d - 1; j >= 0; --j) {
+      result = montMul(result, result);
+      int mask = 0;
+      for (int i = 0; i < COMB_TEETH; ++i) {
+        if (exponent.testBit(i * d + j)) {
+          mask |= 1 << i;
+        }
+      }
+      if (mask != 0) {
+        result = montMul(result, table.entries[mask]);
+      }
+    }
+    return fromMontgomery(result);
+  }
+
+
+
+  private CombTable getCombTable(int exponentBitLength) {
+    CombTable table = combTable;
+    if (table != null && table.bitLength >= exponentBitLength) {
+      return table;
+    }
+
+    synchronized (this) {
+      table = combTable;
+      if (table == null || table.bitLength < exponentBitLength) {
+        int bitLength = ceilToMultiple(exponentBitLength, COMB_BIT_LENGTH_STEP * COMB_TEETH);
+        table = new CombTable(bitLength);
+        combTable = table;
+      }
+      return table;
+    }
+  }
+
+  /** Montgomery product {@code a * b * 2^(-64 * limbCount) mod modulus} (CIOS method) */
+  private long[] montMul(long[] a, long[] b) {
+    int n = limbCount;
+    long[] t = new long[n + 2];
+
+    for (int i = 0; i < n; ++i) {
+      long bi = b[i];
+      long carry = 0;
+      for (int j = 0; j < n; ++j) {
+        long lo = a[j] * bi;
+        long hi = Math.unsignedMultiplyHigh(a[j], bi);
+        lo += t[j];
+        hi += Long.compareUnsigned(lo, t[j]) < 0 ? 1 : 0;
+        long sum = lo + carry;
+        hi += Long.compareUnsigned(sum, lo) < 0 ? 1 : 0;
+        t[j] = sum;
+        carry = hi;
+      }
+      long sum = t[n] + carry;
+      t[n + 1] = Long.compareUnsigned(sum, carry) < 0 ? 1 : 0;
+      t[n] = sum;
+
+      long m = t[0] * modulusInverse;
+      long lo = m * modulusLimbs[0];
+      long hi = Math.unsignedMultiplyHigh(m, modulusLimbs[0]);
+      carry = hi + (Long.compareUnsigned(lo + t[0], lo) < 0 ? 1 : 0);
+      for (int j = 1; j < n; ++j) {
+        lo = m * modulusLimbs[j];
+        hi = Math.unsignedMultiplyHigh(m, modulusLimbs[j]);
+        lo += t[j];
+        hi += Long.compareUnsigned(lo, t[j]) < 0 ? 1 : 0;
+        sum = lo + carry;
+        hi += Long.compareUnsigned(sum, lo) < 0 ? 1 : 0;
+        t[j - 1] = sum;
+        carry = hi;
+      }
+      sum = t[n] + carry;
+      t[n - 1] = sum;
+      t[n] = t[n + 1] + (Long.compareUnsigned(sum, carry) < 0 ? 1 : 0);
+    }
+
+    long[] result = new long[n];
+    System.arraycopy(t, 0, result, 0, n);
+    if (t[n] != 0 || compareLimbs(result, modulusLimbs) >= 0) {
+      subtractModulus(result);
+    }
+    return result;
+  }
+
+  private void subtractModulus(long[] x) {
+    long borrow = 0;
+    for (int j = 0; j < limbCount; ++j) {
+      long diff = x[j] - modulusLimbs[j] - borrow;
+      borrow = (Long.compareUnsigned(x[j], modulusLimbs[j]) < 0 ||
+          (borrow == 1 && x[j] == modulusLimbs[j])) ? 1 : 0;
+      x[j] = diff;
+    }
+  }
+
+  private static int compareLimbs(long[] a, long[] b) {
+    for (int j = a.length - 1; j >= 0; --j) {
+      int cmp = Long.compareUnsigned(a[j], b[j]);
+      if (cmp != 0) {
+        return cmp;
+      }
+    }
+    return 0;
+  }
+
+  private long[] toMontgomery(BigInteger x) {
+    return toLimbs(x.shiftLeft(64 * limbCount).mod(modulus));
+  }
+
+  private BigInteger fromMontgomery(long[] x) {
+    long[] one = new long[limbCount];
+    one[0] = 1;
+    return fromLimbs(montMul(x, one));
+  }
+
+  private long[] toLimbs(BigInteger x) {
+    long[] limbs = new long[limbCount];
+    for (int j = 0; j < limbCount; ++j) {
+      limbs[j] = x.shiftRight(64 * j).longValue();
+    }
+    return limbs;
+  }
+
+  private static BigInteger fromLimbs(long[] limbs) {
+    byte[] bytes = new byte[limbs.length * 8 + 1];
+    for (int j = 0; j < limbs.length; ++j) {
+      long limb = limbs[j];
+      for (int k = 0; k < 8; ++k) {
+        bytes[bytes.length - 1 - (j * 8 + k)] = (byte) (limb >>> (8 * k));
+      }
+    }
+    return new BigInteger(bytes);
+  }
+
+  private static long inverseModWord(long x) {
+    long inverse = x; // correct in 3 lower bits for odd x
+    for (int i = 0; i < 5; ++i) {
+      inverse *= 2 - x * inverse;
+    }
+    return inverse;
+  }
+
+  private static int ceilToMultiple(int value, int step) {
+    return (value + step - 1) / step * step;
+  }
+
+  private static void throwIfNegative(BigInteger exponent) {
+    if (exponent.signum() < 0) {
+      throw new IllegalArgumentException("Exponent cannot be negative");
+    }
+  }
+
+
+
+  /** entries[mask] = product of g^(2^(i * spacing)) over bits {@code i} of mask */
+  private final class CombTable {
+
+    private final int bitLength;
+    private final int spacing;
+    private final long[][] entries;
+
+    private CombTable(int bitLength) {
+      this.bitLength = bitLength;
+      this.spacing = bitLength / COMB_TEETH;
+      this.entries = new long[1 << COMB_TEETH][];
+
+      long[] tooth = toMontgomery(generator);
+      entries[0] = montOne;
+      for (int i = 0; i < COMB_TEETH; ++i) {
+        int bit = 1 << i;
+        entries[bit] = tooth;
+        for (int mask = 1; mask < bit; ++mask) {
+          entries[bit | mask] = montMul(entries[mask], tooth);
+        }
+        for (int k = 0; k < spacing && i + 1 < COMB_TEETH; ++k) {
+          tooth = montMul(tooth, tooth);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,81 @@
+package org.reminstant.cryptography.asymmetric;
+
+import org.reminstant.cryptography.CryptoException;
+
+import javax.crypto.KeyAgreement;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.interfaces.XECPrivateKey;
+import java.security.interfaces.XECPublicKey;
+import java.security.spec.NamedParameterSpec;
+import java.security.spec.XECPrivateKeySpec;
+import java.security.spec.XECPublicKeySpec;
+import java.util.Base64;
+
+/**
+ * Elliptic-curve Diffie-Hellman over Curve25519 (RFC 7748).
+ * Keys are 32-byte numbers, session key is SHA-256 of the shared secret.
+ */
+public class X25519Generator {
+
+  private static final String ALGORITHM = "X25519";
+  private static final String SESSION_KEY_DIGEST = "SHA-256";
+  private static final int KEY_BYTE_LENGTH = 32;
+
+  public KeyPair generateKeyPair() {
+    try {
+      java.security.KeyPair keyPair = KeyPairGenerator.getInstance(ALGORITHM).generateKeyPair();
+      byte[] scalar = ((XECPrivateKey) keyPair.getPrivate()).getScalar()
+          .orElseThrow(() -> new CryptoException("X25519 private key is not extractable"));
+      BigInteger u = ((XECPublicKey) keyPair.getPublic()).getU();
+      return new KeyPair(new BigInteger(1, scalar), u);
+    } catch (GeneralSecurityException ex) {
+      throw new CryptoException("Failed to generate X25519 key pair", ex);
+    }
+  }
+
+  public BigInteger generateSessionKey(BigInteger privateKey, BigInteger otherPublicKey) {
+    try {
+      KeyFactory keyFactory = KeyFactory.getInstance(ALGORITHM);
+      XECPrivateKeySpec privateKeySpec =
+          new XECPrivateKeySpec(NamedParameterSpec.X25519, toKeyBytes(privateKey));
+      XECPublicKeySpec publicKeySpec = new XECPublicKeySpec(NamedParameterSpec.X25519, otherPublicKey);
+
+      KeyAgreement keyAgreement = KeyAgreement.getInstance(ALGORITHM);
+      keyAgreement.init(keyFactory.generatePrivate(privateKeySpec));
+      keyAgreement.doPhase(keyFactory.generatePublic(publicKeySpec), true);
+      byte[] secret = keyAgreement.generateSecret();
+
+      return new BigInteger(1, MessageDigest.getInstance(SESSION_KEY_DIGEST).digest(secret));
+    } catch (GeneralSecurityException ex) {
+      throw new CryptoException("Failed to generate X25519 session key", ex);
+    }
+  }
+
+  public String encodePublicKey(BigInteger publicKey) {
+    return Base64.getEncoder().encodeToString(toKeyBytes(publicKey));
+  }
+
+  public BigInteger decodePublicKey(String publicKey) {
+    byte[] bytes = Base64.getDecoder().decode(publicKey);
+    if (bytes.length != KEY_BYTE_LENGTH) {
+      throw new IllegalArgumentException("X25519 public key must be %d bytes".formatted(KEY_BYTE_LENGTH));
+    }
+    return new BigInteger(1, bytes);
+  }
+
+  private static byte[] toKeyBytes(BigInteger key) {
+    byte[] bytes = key.toByteArray();
+    if (bytes.length > KEY_BYTE_LENGTH + 1 || (bytes.length == KEY_BYTE_LENGTH + 1 && bytes[0] != 0)) {
+      throw new IllegalArgumentException("X25519 key is longer than %d bytes".formatted(KEY_BYTE_LENGTH));
+    }
+
+    byte[] result = new byte[KEY_BYTE_LENGTH];
+    int length = Math.min(bytes.length, KEY_BYTE_LENGTH);
+    System.arraycopy(bytes, bytes.length - length, result, KEY_BYTE_LENGTH - length, length);
+    return result;
+  }
+}
@@ -1,20 +1,22 @@
 package org.reminstant.cryptography.context;
 
 public enum BlockCipherMode {
-  ECB("Electronic codebook", false),
-  CBC("Cipher block chaining", true),
-  PCBC("Propagating cipher block chaining", true),
-  CFB("Cipher feedback", true),
-  OFB("Output feedback", true),
-  CTR("Counter", true),
-  RD("Random delta", true);
+  ECB("Electronic codebook", false, true),
+  CBC("Cipher block chaining", true, true),
+  PCBC("Propagating cipher block chaining", true, false),
+  CFB("Cipher feedback", true, true),
+  OFB("Output feedback", true, false),
+  CTR("Counter", true, true),
+  RD("Random delta", true, true);
 
   private final String fullName;
   private final boolean isInitVectorRequired;
+  private final boolean isRandomAccessDecryptable;
 
-  BlockCipherMode(String fullName, boolean isInitVectorRequired) {
+  BlockCipherMode(String fullName, boolean isInitVectorRequired, boolean isRandomAccessDecryptable) {
     this.fullName = fullName;
     this.isInitVectorRequired = isInitVectorRequired;
+    this.isRandomAccessDecryptable = isRandomAccessDecryptable;
   }
 
   String getName() {
@@ -24,4 +26,9 @@ public enum BlockCipherMode {
   boolean isInitVectorRequires() {
     return this.isInitVectorRequired;
   }
+
+  /** block {@code i} can be decrypted using only cipher blocks {@code i} and {@code i - 1} */
+  boolean isRandomAccessDecryptable() {
+    return this.isRandomAccessDecryptable;
+  }
 }
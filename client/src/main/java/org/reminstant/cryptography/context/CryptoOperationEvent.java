@@ -0,0 +1,49 @@
+package org.reminstant.cryptography.context;
+
+import jdk.jfr.*;
+
+/** JFR event emitted by {@link SymmetricCryptoContext} for every encryption or decryption */
+@Name("org.reminstant.cryptography.CryptoOperation")
+@Label("Crypto Operation")
+@Category({"Secretalk", "Cryptography"})
+@Description("Symmetric encryption or decryption of a message or a file")
+@StackTrace(false)
+final class CryptoOperationEvent extends Event {
+
+  @Label("Operation")
+  String operation;
+
+  @Label("Algorithm")
+  String algorithm;
+
+  @Label("Cipher Mode")
+  String cipherMode;
+
+  @Label("Padding")
+  String padding;
+
+  @Label("Byte Count")
+  @DataAmount
+  long byteCount;
+
+  @Label("Block Count")
+  long blockCount;
+
+  @Label("Parallelism")
+  int parallelism;
+
+  @Label("Read Time")
+  @Description("Summed time of all workers spent on reading blocks")
+  @Timespan
+  long readTime;
+
+  @Label("Cipher Time")
+  @Description("Summed busy time of all workers minus read and write time")
+  @Timespan
+  long cipherTime;
+
+  @Label("Write Time")
+  @Description("Summed time of all workers spent on writing blocks")
+  @Timespan
+  long writeTime;
+}
@@ -0,0 +1,84 @@
+package org.reminstant.cryptography.context;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cumulative throughput counters of all {@link SymmetricCryptoContext} instances
+ * grouped by algorithm and cipher mode.
+ */
+public final class CryptoStatistics {
+
+  public record Snapshot(
+      String algorithm,
+      BlockCipherMode cipherMode,
+      long operationCount,
+      long byteCount,
+      long blockCount,
+      long busyNanos) {
+
+    public double getBytesPerSecond() {
+      return busyNanos == 0 ? 0 : byteCount * 1e9 / busyNanos;
+    }
+
+    /** block cipher operations per second */
+    public double getOpsPerSecond() {
+      return busyNanos == 0 ? 0 : blockCount * 1e9 / busyNanos;
+    }
+  }
+
+  private record Key(
+      String algorithm,
+      BlockCipherMode cipherMode) {
+  }
+
+  private static final class Counter {
+
+    private final LongAdder operationCount = new LongAdder();
+    private final LongAdder byteCount = new LongAdder();
+    private final LongAdder blockCount = new LongAdder();
+    private final LongAdder busyNanos = new LongAdder();
+  }
+
+  private static final Map<Key, Counter> COUNTERS = new ConcurrentHashMap<>();
+
+  private CryptoStatistics() {
+
+  }
+
+  public static Snapshot get(String algorithm, BlockCipherMode cipherMode) {
+    Counter counter = COUNTERS.get(new Key(algorithm, cipherMode));
+    if (counter == null) {
+      return new Snapshot(algorithm, cipherMode, 0, 0, 0, 0);
+    }
+    return toSnapshot(new Key(algorithm, cipherMode), counter);
+  }
+
+  public static List<Snapshot> getAll() {
+    return COUNTERS.entrySet().stream()
+        .map(entry -> toSnapshot(entry.getKey(), entry.getValue()))
+        .sorted(Comparator.comparing(Snapshot::algorithm).thenComparing(Snapshot::cipherMode))
+        .toList();
+  }
+
+  public static void reset() {
+    COUNTERS.clear();
+  }
+
+  static void record(String algorithm, BlockCipherMode cipherMode,
+                     long byteCount, long blockCount, long busyNanos) {
+    Counter counter = COUNTERS.computeIfAbsent(new Key(algorithm, cipherMode), _ -> new Counter());
+    counter.operationCount.increment();
+    counter.byteCount.add(byteCount);
+    counter.blockCount.add(blockCount);
+    counter.busyNanos.add(busyNanos);
+  }
+
+  private static Snapshot toSnapshot(Key key, Counter counter) {
+    return new Snapshot(key.algorithm(), key.cipherMode(), counter.operationCount.sum(),
+        counter.byteCount.sum(), counter.blockCount.sum(), counter.busyNanos.sum());
+  }
+}
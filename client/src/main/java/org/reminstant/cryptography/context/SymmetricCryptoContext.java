@@ -7,17 +7,26 @@ import org.reminstant.cryptography.SymmetricCryptoSystem;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.UncheckedIOException;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.file.Path;
 import java.security.SecureRandom;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.LongConsumer;
 import java.util.stream.IntStream;
 
@@ -26,7 +35,7 @@ import static java.nio.file.StandardOpenOption.*;
 public final class SymmetricCryptoContext {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(SymmetricCryptoContext.class);
-  private static final int PARALLELISM = Runtime.getRuntime().availableProcessors() / 2;
+  private static final int PARALLELISM = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
   private static final ExecutorService DEFAULT_EXECUTOR = Executors.newVirtualThreadPerTaskExecutor();
 
   public static final String RD_PARAM = "RandomDelta";
@@ -132,57 +141,130 @@ public final class SymmetricCryptoContext {
 
   // TODO: perhaps public methods need javadoc
   public CryptoProgress<byte[]> encryptAsync(byte[] message) {
-    CryptoProgress.Counter<byte[]> counter = new CryptoProgress.Counter<>();
-    counter.setFuture(ChainableFuture.supplyWeaklyAsync(() -> encryptInternal(message, counter)));
-    return new CryptoProgress<>(counter);
+    CryptoProgress<byte[]> progress = new CryptoProgress<>(blockByteSize);
+    progress.setFuture(ChainableFuture.supplyWeaklyAsync(() -> encryptInternal(message, progress)));
+    return progress;
   }
 
   public CryptoProgress<byte[]> encryptAsync(String inputFilename) {
-    CryptoProgress.Counter<byte[]> counter = new CryptoProgress.Counter<>();
-    counter.setFuture(ChainableFuture.supplyWeaklyAsync(() -> encryptInternal(inputFilename, counter)));
-    return new CryptoProgress<>(counter);
+    CryptoProgress<byte[]> progress = new CryptoProgress<>(blockByteSize);
+    progress.setFuture(ChainableFuture.supplyWeaklyAsync(() -> encryptInternal(inputFilename, progress)));
+    return progress;
   }
 
   public CryptoProgress<Void> encryptAsync(byte[] message, String outputFilename) {
-    CryptoProgress.Counter<Void> counter = new CryptoProgress.Counter<>();
-    counter.setFuture(ChainableFuture
-        .runWeaklyAsync(() -> encryptInternal(message, outputFilename, counter)));
-    return new CryptoProgress<>(counter);
+    CryptoProgress<Void> progress = new CryptoProgress<>(blockByteSize);
+    progress.setFuture(ChainableFuture
+        .runWeaklyAsync(() -> encryptInternal(message, outputFilename, progress)));
+    return progress;
   }
 
   public CryptoProgress<Void> encryptAsync(String inputFilename, String outputFilename) {
-    CryptoProgress.Counter<Void> counter = new CryptoProgress.Counter<>();
-    counter.setFuture(ChainableFuture
-        .runWeaklyAsync(() -> encryptInternal(inputFilename, outputFilename, counter)));
-    return new CryptoProgress<>(counter);
+    CryptoProgress<Void> progress = new CryptoProgress<>(blockByteSize);
+    progress.setFuture(ChainableFuture
+        .runWeaklyAsync(() -> encryptInternal(inputFilename, outputFilename, progress)));
+    return progress;
   }
 
   public CryptoProgress<byte[]> decryptAsync(byte[] cipher) {
-    CryptoProgress.Counter<byte[]> counter = new CryptoProgress.Counter<>();
-    counter.setFuture(ChainableFuture
-        .supplyWeaklyAsync(() -> decryptInternal(cipher, counter)));
-    return new CryptoProgress<>(counter);
+    CryptoProgress<byte[]> progress = new CryptoProgress<>(blockByteSize);
+    progress.setFuture(ChainableFuture
+        .supplyWeaklyAsync(() -> decryptInternal(cipher, progress)));
+    return progress;
   }
 
   public CryptoProgress<byte[]> decryptAsync(String inputFilename) {
-    CryptoProgress.Counter<byte[]> counter = new CryptoProgress.Counter<>();
-    counter.setFuture(ChainableFuture
-        .supplyWeaklyAsync(() -> decryptInternal(inputFilename, counter)));
-    return new CryptoProgress<>(counter);
+    CryptoProgress<byte[]> progress = new CryptoProgress<>(blockByteSize);
+    progress.setFuture(ChainableFuture
+        .supplyWeaklyAsync(() -> decryptInternal(inputFilename, progress)));
+    return progress;
   }
 
   public CryptoProgress<Void> decryptAsync(byte[] message, String outputFilename) {
-    CryptoProgress.Counter<Void> counter = new CryptoProgress.Counter<>();
-    counter.setFuture(ChainableFuture
-        .runWeaklyAsync(() -> decryptInternal(message, outputFilename, counter)));
-    return new CryptoProgress<>(counter);
+    CryptoProgress<Void> progress = new CryptoProgress<>(blockByteSize);
+    progress.setFuture(ChainableFuture
+        .runWeaklyAsync(() -> decryptInternal(message, outputFilename, progress)));
+    return progress;
   }
 
   public CryptoProgress<Void> decryptAsync(String inputFilename, String outputFilename) {
-    CryptoProgress.Counter<Void> counter = new CryptoProgress.Counter<>();
-    counter.setFuture(ChainableFuture
-        .runWeaklyAsync(() -> decryptInternal(inputFilename, outputFilename, counter)));
-    return new CryptoProgress<>(counter);
+    CryptoProgress<Void> progress = new CryptoProgress<>(blockByteSize);
+    progress.setFuture(ChainableFuture
+        .runWeaklyAsync(() -> decryptInternal(inputFilename, outputFilename, progress)));
+    return progress;
+  }
+
+  /**
+   * Starts encryption of a message that is given chunk by chunk. The concatenated result
+   * is the same as the result of encrypting the whole message at once.
+   */
+  public ChunkCipher startChunkedEncryption() {
+    return new ChunkCipher(true);
+  }
+
+  /**
+   * Starts decryption of a cipher that is given chunk by chunk. The concatenated result
+   * is the same as the result of decrypting the whole cipher at once.
+   */
+  public ChunkCipher startChunkedDecryption() {
+    return new ChunkCipher(false);
+  }
+
+  /**
+   * Resumes chunked decryption from the state taken with {@link ChunkCipher#getState()}
+   * after the last chunk that was passed to {@link ChunkCipher#update(byte[])}.
+   */
+  public ChunkCipher resumeChunkedDecryption(ChunkState state) {
+    return new ChunkCipher(false, state);
+  }
+
+  public long getCipherLength(long messageByteLength) {
+    return getCipherBlockCount(messageByteLength) * blockByteSize;
+  }
+
+  public boolean isRandomAccessDecryptable() {
+    return encryptionMode.isRandomAccessDecryptable();
+  }
+
+  /**
+   * Decrypts {@code length} bytes of the message starting from message byte {@code offset}
+   * without decrypting the rest of the cipher file.
+   * Available only for modes where any block can be decrypted on its own (ECB, CBC, CFB, CTR, RD).
+   * The result is shorter than {@code length} if the message ends earlier.
+   */
+  public byte[] decryptRange(Path cipherFile, long offset, long length) throws IOException {
+    if (offset < 0 || length < 0) {
+      throw new IllegalArgumentException("Offset and length must be non-negative");
+    }
+    try (SeekableByteChannel channel = openDecryptingChannel(cipherFile)) {
+      long available = Math.max(0, channel.size() - offset);
+      int resLength = (int) Math.min(Math.min(length, available), Integer.MAX_VALUE - 8);
+      ByteBuffer buffer = ByteBuffer.allocate(resLength);
+      channel.position(offset);
+      while (buffer.hasRemaining() && channel.read(buffer) > 0) {
+        // reads until the range is filled
+      }
+      return buffer.array();
+    }
+  }
+
+  /**
+   * Opens read-only channel over the message of the given cipher file. Position and size
+   * of the channel are measured in message bytes, blocks are decrypted on demand.
+   * Available only for modes where any block can be decrypted on its own (ECB, CBC, CFB, CTR, RD).
+   */
+  public SeekableByteChannel openDecryptingChannel(Path cipherFile) throws IOException {
+    if (!encryptionMode.isRandomAccessDecryptable()) {
+      throw new UnsupportedOperationException(
+          "%s mode does not support random access decryption".formatted(encryptionMode.name()));
+    }
+    FileChannel input = FileChannel.open(cipherFile, READ);
+    try {
+      return new DecryptingFileChannel(input);
+    } catch (IOException | RuntimeException ex) {
+      input.close();
+      throw ex;
+    }
   }
 
   // endregion
@@ -289,6 +371,44 @@ public final class SymmetricCryptoContext {
 
   private void encrypt(DataReader msgReader, DataWriter cipherWriter,
                        long blockCount, Progress.Counter progress) {
+    CryptoOperationEvent event = new CryptoOperationEvent();
+    if (event.isEnabled()) {
+      TimedDataReader timedReader = new TimedDataReader(msgReader);
+      TimedDataWriter timedWriter = new TimedDataWriter(cipherWriter);
+      event.begin();
+      long start = System.nanoTime();
+      encryptUntimed(timedReader, timedWriter, blockCount, progress);
+      long nanos = System.nanoTime() - start;
+      event.end();
+      commitEvent(event, "encrypt", blockCount, getEncryptionParallelism(), nanos, timedReader, timedWriter);
+    } else {
+      long start = System.nanoTime();
+      encryptUntimed(msgReader, cipherWriter, blockCount, progress);
+      recordStatistics(blockCount, System.nanoTime() - start);
+    }
+  }
+
+  private void decrypt(DataReader cipherReader, DataWriter msgWriter,
+                       long blockCount, Progress.Counter progress) {
+    CryptoOperationEvent event = new CryptoOperationEvent();
+    if (event.isEnabled()) {
+      TimedDataReader timedReader = new TimedDataReader(cipherReader);
+      TimedDataWriter timedWriter = new TimedDataWriter(msgWriter);
+      event.begin();
+      long start = System.nanoTime();
+      decryptUntimed(timedReader, timedWriter, blockCount, progress);
+      long nanos = System.nanoTime() - start;
+      event.end();
+      commitEvent(event, "decrypt", blockCount, getDecryptionParallelism(), nanos, timedReader, timedWriter);
+    } else {
+      long start = System.nanoTime();
+      decryptUntimed(cipherReader, msgWriter, blockCount, progress);
+      recordStatistics(blockCount, System.nanoTime() - start);
+    }
+  }
+
+  private void encryptUntimed(DataReader msgReader, DataWriter cipherWriter,
+                              long blockCount, Progress.Counter progress) {
     BigInteger delta = (BigInteger) extraConfig.getOrDefault(RD_PARAM, null);
     switch (encryptionMode) {
       case ECB -> encryptByECB(msgReader, cipherWriter, blockCount, progress);
@@ -301,8 +421,8 @@ public final class SymmetricCryptoContext {
     }
   }
 
-  private void decrypt(DataReader cipherReader, DataWriter msgWriter,
-                       long blockCount, Progress.Counter progress) {
+  private void decryptUntimed(DataReader cipherReader, DataWriter msgWriter,
+                              long blockCount, Progress.Counter progress) {
     BigInteger delta = (BigInteger) extraConfig.getOrDefault(RD_PARAM, null);
     switch (encryptionMode) {
       case ECB -> decryptByECB(cipherReader, msgWriter, blockCount, progress);
@@ -439,20 +559,7 @@ public final class SymmetricCryptoContext {
     BigInteger counter = new BigInteger(1, initVector);
     operateParallel(i -> {
       byte[] msg = msgReader.readBlock(i);
-      byte[] tmp = counter
-          .add(BigInteger.valueOf(i).multiply(delta))
-          .and(counterMask)
-          .toByteArray();
-
-      if (tmp.length != blockByteSize) {
-        byte[] tmp2 = new byte[blockByteSize];
-        int srcPos = Math.max(tmp.length - blockByteSize, 0);
-        int destPos = Math.max(blockByteSize - tmp.length, 0);
-        int length = blockByteSize - destPos;
-        System.arraycopy(tmp, srcPos, tmp2, destPos, length); // TODO: perhaps virtual threads do not like native code
-        tmp = tmp2;
-      }
-
+      byte[] tmp = getCounterBlock(counter, i, delta);
       byte[] cipher = Bits.xor(msg, cryptoSystem.encrypt(tmp));
       cipherWriter.writeBlock(i, cipher);
       incrementProgressIfPresent(progress);
@@ -464,6 +571,126 @@ public final class SymmetricCryptoContext {
     encryptByRandomDelta(cipherReader, msgWriter, blockCount, progress, delta);
   }
 
+  /** decrypts single block of random access decryptable mode (padding is not cleared) */
+  private byte[] decryptBlock(DataReader cipherReader, long idx) {
+    byte[] cipher = cipherReader.readBlock(idx);
+    return switch (encryptionMode) {
+      case ECB -> cryptoSystem.decrypt(cipher);
+      case CBC -> Bits.xor(cryptoSystem.decrypt(cipher), idx > 0 ? cipherReader.readBlock(idx - 1) : initVector);
+      case CFB -> Bits.xor(cipher, cryptoSystem.encrypt(idx > 0 ? cipherReader.readBlock(idx - 1) : initVector));
+      case CTR -> Bits.xor(cipher, cryptoSystem
+          .encrypt(getCounterBlock(new BigInteger(1, initVector), idx, BigInteger.ONE)));
+      case RD -> Bits.xor(cipher, cryptoSystem
+          .encrypt(getCounterBlock(new BigInteger(1, initVector), idx, (BigInteger) extraConfig.get(RD_PARAM))));
+      default -> throw new UnsupportedOperationException(
+          "%s mode does not support random access decryption".formatted(encryptionMode.name()));
+    };
+  }
+
+  // endregion
+
+  // region --- Chunked encryption/decryption ---
+
+  /**
+   * Stateful encryptor (decryptor) of a message split into chunks.
+   * Every chunk except the last one must consist of whole blocks,
+   * the last one is passed to {@link #doFinal(byte[])} which sets (clears) padding.
+   */
+  public final class ChunkCipher {
+
+    private final boolean isEncryption;
+    private final BigInteger counter;
+
+    private byte[] chainVector;
+    private long processedBlockCount;
+    private boolean isFinished;
+
+    private ChunkCipher(boolean isEncryption) {
+      this(isEncryption, new ChunkState(initVector, 0));
+    }
+
+    private ChunkCipher(boolean isEncryption, ChunkState state) {
+      if (state.processedBlockCount() < 0) {
+        throw new IllegalArgumentException("Processed block count cannot be negative");
+      }
+      this.isEncryption = isEncryption;
+      this.counter = initVector != null ? new BigInteger(1, initVector) : null;
+      this.chainVector = state.chainVector() != null ? state.chainVector().clone() : null;
+      this.processedBlockCount = state.processedBlockCount();
+      this.isFinished = false;
+    }
+
+    public synchronized byte[] update(byte[] chunk) {
+      throwIfFinished();
+      if (chunk.length % blockByteSize != 0) {
+        throw new IllegalArgumentException("Only the last chunk may contain partial block");
+      }
+
+      byte[] result = process(chunk, Padding.NONE);
+      advance(chunk, result);
+      return result;
+    }
+
+    public synchronized byte[] doFinal(byte[] chunk) {
+      throwIfFinished();
+      isFinished = true;
+      return process(chunk, paddingMode);
+    }
+
+    public synchronized long getProcessedBlockCount() {
+      return processedBlockCount;
+    }
+
+    public synchronized ChunkState getState() {
+      throwIfFinished();
+      return new ChunkState(chainVector != null ? chainVector.clone() : null, processedBlockCount);
+    }
+
+    private byte[] process(byte[] chunk, Padding padding) {
+      byte[] chunkInitVector = switch (encryptionMode) {
+        case ECB -> null;
+        case CTR -> getCounterBlock(counter, processedBlockCount, BigInteger.ONE);
+        case RD -> getCounterBlock(counter, processedBlockCount, (BigInteger) extraConfig.get(RD_PARAM));
+        default -> chainVector;
+      };
+
+      SymmetricCryptoContext chunkContext = new SymmetricCryptoContext(
+          cryptoSystem, padding, encryptionMode, chunkInitVector, extraConfig);
+      return isEncryption ? chunkContext.encrypt(chunk) : chunkContext.decrypt(chunk);
+    }
+
+    private void advance(byte[] input, byte[] output) {
+      if (input.length == 0) {
+        return;
+      }
+
+      byte[] cipher = isEncryption ? output : input;
+      byte[] message = isEncryption ? input : output;
+      byte[] lastCipherBlock = Arrays.copyOfRange(cipher, cipher.length - blockByteSize, cipher.length);
+      byte[] lastMessageBlock = Arrays.copyOfRange(message, message.length - blockByteSize, message.length);
+
+      // next chunk starts as a separate message with the vector that carries the chain on
+      switch (encryptionMode) {
+        case CBC, CFB -> chainVector = lastCipherBlock;
+        case PCBC, OFB -> chainVector = Bits.xor(lastCipherBlock, lastMessageBlock);
+        default -> { } // NOSONAR
+      }
+      processedBlockCount += input.length / blockByteSize;
+    }
+
+    private void throwIfFinished() {
+      if (isFinished) {
+        throw new IllegalStateException("Chunked operation is already finished");
+      }
+    }
+  }
+
+  /** Chain vector and block counter that the next chunk of a chunked operation starts with */
+  public record ChunkState(
+      byte[] chainVector,
+      long processedBlockCount) {
+  }
+
   // endregion
 
   // region --- Utility read/write classes ---
@@ -476,6 +703,50 @@ public final class SymmetricCryptoContext {
     void writeBlock(long idx, byte[] block);
   }
 
+  /** measures summed time spent in the wrapped reader by all workers */
+  private static class TimedDataReader implements DataReader {
+
+    private final DataReader reader;
+    private final LongAdder nanos;
+
+    public TimedDataReader(DataReader reader) {
+      this.reader = reader;
+      this.nanos = new LongAdder();
+    }
+
+    @Override
+    public byte[] readBlock(long idx) {
+      long start = System.nanoTime();
+      try {
+        return reader.readBlock(idx);
+      } finally {
+        nanos.add(System.nanoTime() - start);
+      }
+    }
+  }
+
+  /** measures summed time spent in the wrapped writer by all workers */
+  private static class TimedDataWriter implements DataWriter {
+
+    private final DataWriter writer;
+    private final LongAdder nanos;
+
+    public TimedDataWriter(DataWriter writer) {
+      this.writer = writer;
+      this.nanos = new LongAdder();
+    }
+
+    @Override
+    public void writeBlock(long idx, byte[] block) {
+      long start = System.nanoTime();
+      try {
+        writer.writeBlock(idx, block);
+      } finally {
+        nanos.add(System.nanoTime() - start);
+      }
+    }
+  }
+
   /** reads both message and cipher blocks from array */
   private class ArrayDataReader implements DataReader {
 
@@ -513,7 +784,11 @@ public final class SymmetricCryptoContext {
     @Override
     public byte[] readBlock(long idx) {
       try {
-        int availBlockSize = Math.min((int) (fileChannel.size() - blockByteSize * idx), blockByteSize);
+        long availByteLength = fileChannel.size() - blockByteSize * idx;
+        if (availByteLength <= 0) {
+          throw new EOFException("Block %d is beyond the end of the file".formatted(idx));
+        }
+        int availBlockSize = (int) Math.min(availByteLength, blockByteSize);
         byte[] block = new byte[availBlockSize];
         fileChannel.read(ByteBuffer.wrap(block), blockByteSize * idx);
 //        byte[] block = readCache(idx);
@@ -639,6 +914,189 @@ public final class SymmetricCryptoContext {
     }
   }
 
+  /** read-only view of the message of cipher file, blocks are decrypted on demand */
+  private class DecryptingFileChannel implements SeekableByteChannel {
+
+    private final FileChannel fileChannel;
+    private final FileDataReader cipherReader;
+    private final long blockCount;
+    private final long size;
+
+    private long position;
+    private long cachedBlockIdx;
+    private byte[] cachedBlock;
+
+    public DecryptingFileChannel(FileChannel fileChannel) throws IOException {
+      this.fileChannel = fileChannel;
+      this.cipherReader = new FileDataReader(fileChannel);
+      this.blockCount = getMessageBlockCount(fileChannel.size());
+      this.position = 0;
+      this.cachedBlockIdx = -1;
+      this.cachedBlock = null;
+
+      try {
+        if (blockCount == 0) {
+          this.size = 0;
+        } else {
+          byte[] lastBlock = paddingMode.clearPadding(getBlock(blockCount - 1));
+          this.size = (blockCount - 1) * blockByteSize + lastBlock.length;
+        }
+      } catch (UncheckedIOException ex) {
+        throw ex.getCause();
+      }
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+      throwIfClosed();
+      if (position >= size) {
+        return -1;
+      }
+
+      int toRead = (int) Math.min(dst.remaining(), size - position);
+      if (toRead == 0) {
+        return 0;
+      }
+
+      long firstBlockIdx = position / blockByteSize;
+      long lastBlockIdx = (position + toRead - 1) / blockByteSize;
+      try {
+        byte[][] blocks = getBlocks(firstBlockIdx, lastBlockIdx);
+        int blockOffset = (int) (position % blockByteSize);
+        int remaining = toRead;
+        for (byte[] block : blocks) {
+          int chunk = Math.min(remaining, blockByteSize - blockOffset);
+          dst.put(block, blockOffset, chunk);
+          remaining -= chunk;
+          blockOffset = 0;
+        }
+      } catch (UncheckedIOException ex) {
+        throw ex.getCause();
+      }
+
+      position += toRead;
+      return toRead;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+      throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+      throwIfClosed();
+      return position;
+    }
+
+    @Override
+    public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+      throwIfClosed();
+      if (newPosition < 0) {
+        throw new IllegalArgumentException("Position must be non-negative");
+      }
+      position = newPosition;
+      return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+      throwIfClosed();
+      return size;
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+      throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+      return fileChannel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+      fileChannel.close();
+    }
+
+    private byte[][] getBlocks(long firstBlockIdx, long lastBlockIdx) throws IOException {
+      int count = (int) (lastBlockIdx - firstBlockIdx + 1);
+      byte[][] blocks = new byte[count][];
+      if (count <= PARALLELISM) {
+        for (int i = 0; i < count; ++i) {
+          blocks[i] = getBlock(firstBlockIdx + i);
+        }
+      } else {
+        decryptBlocksParallel(blocks, firstBlockIdx);
+      }
+
+      cachedBlockIdx = lastBlockIdx;
+      cachedBlock = blocks[count - 1];
+      return blocks;
+    }
+
+    /**
+     * Workers read the channel of the caller, and an interrupt would close it, so they are never interrupted.
+     * If the caller is interrupted or a worker fails, the other workers stop after their current block
+     * and are waited for, so none of them reads the channel after the method returns
+     */
+    private void decryptBlocksParallel(byte[][] blocks, long firstBlockIdx) throws IOException {
+      AtomicBoolean isStopped = new AtomicBoolean(false);
+      List<Future<?>> tasks = IntStream.range(0, PARALLELISM)
+          .<Future<?>>mapToObj(k -> executor.submit(() -> {
+            for (int i = k; i < blocks.length && !isStopped.get(); i += PARALLELISM) {
+              blocks[i] = decryptBlock(cipherReader, firstBlockIdx + i);
+            }
+          }))
+          .toList();
+
+      boolean isInterrupted = false;
+      Throwable failure = null;
+      for (Future<?> task : tasks) {
+        while (true) {
+          try {
+            task.get();
+            break;
+          } catch (InterruptedException ex) {
+            isInterrupted = true;
+            isStopped.set(true);
+          } catch (ExecutionException ex) {
+            failure = failure != null ? failure : ex.getCause();
+            isStopped.set(true);
+            break;
+          }
+        }
+      }
+
+      if (isInterrupted) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while decrypting blocks");
+      }
+      switch (failure) {
+        case null -> { }
+        case UncheckedIOException ex -> throw ex.getCause();
+        case RuntimeException ex -> throw ex;
+        case Error ex -> throw ex;
+        default -> throw new IOException("Failed to decrypt blocks", failure);
+      }
+    }
+
+    private byte[] getBlock(long idx) {
+      if (idx != cachedBlockIdx) {
+        cachedBlock = decryptBlock(cipherReader, idx);
+        cachedBlockIdx = idx;
+      }
+      return cachedBlock;
+    }
+
+    private void throwIfClosed() throws ClosedChannelException {
+      if (!fileChannel.isOpen()) {
+        throw new ClosedChannelException();
+      }
+    }
+  }
+
   // endregion
 
   // region --- Other utility ---
@@ -701,6 +1159,63 @@ public final class SymmetricCryptoContext {
     }
   }
   
+  private int getEncryptionParallelism() {
+    return switch (encryptionMode) {
+      case ECB, CTR, RD -> PARALLELISM;
+      default -> 1;
+    };
+  }
+
+  private int getDecryptionParallelism() {
+    return switch (encryptionMode) {
+      case ECB, CBC, CFB, CTR, RD -> PARALLELISM;
+      default -> 1;
+    };
+  }
+
+  private void commitEvent(CryptoOperationEvent event, String operation, long blockCount, int parallelism,
+                           long nanos, TimedDataReader reader, TimedDataWriter writer) {
+    long readNanos = reader.nanos.sum();
+    long writeNanos = writer.nanos.sum();
+    long busyNanos = nanos * parallelism;
+
+    event.operation = operation;
+    event.algorithm = cryptoSystem.getClass().getSimpleName();
+    event.cipherMode = encryptionMode.name();
+    event.padding = paddingMode.name();
+    event.blockCount = blockCount;
+    event.byteCount = blockCount * blockByteSize;
+    event.parallelism = parallelism;
+    event.readTime = readNanos;
+    event.writeTime = writeNanos;
+    event.cipherTime = Math.max(0, busyNanos - readNanos - writeNanos);
+    event.commit();
+
+    recordStatistics(blockCount, nanos);
+  }
+
+  private void recordStatistics(long blockCount, long nanos) {
+    CryptoStatistics.record(cryptoSystem.getClass().getSimpleName(), encryptionMode,
+        blockCount * blockByteSize, blockCount, nanos);
+  }
+
+  private byte[] getCounterBlock(BigInteger counter, long idx, BigInteger delta) {
+    byte[] tmp = counter
+        .add(BigInteger.valueOf(idx).multiply(delta))
+        .and(counterMask)
+        .toByteArray();
+
+    if (tmp.length != blockByteSize) {
+      byte[] tmp2 = new byte[blockByteSize];
+      int srcPos = Math.max(tmp.length - blockByteSize, 0);
+      int destPos = Math.max(blockByteSize - tmp.length, 0);
+      int length = blockByteSize - destPos;
+      System.arraycopy(tmp, srcPos, tmp2, destPos, length); // TODO: perhaps virtual threads do not like native code
+      tmp = tmp2;
+    }
+    return tmp;
+  }
+
   private void setupProgressIfPresent(Progress.Counter progress, long blockCnt) {
     if (progress != null) {
       progress.setSubTaskCount(blockCnt);
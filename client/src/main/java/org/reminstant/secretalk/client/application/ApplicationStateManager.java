@@ -13,25 +13,34 @@ import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import net.rgielen.fxweaver.core.FxWeaver;
 import org.reminstant.concurrent.ChainExecutionException;
+import org.reminstant.concurrent.DeadlineExpiredException;
 import org.reminstant.concurrent.Progress;
-import org.reminstant.concurrent.functions.ThrowingSupplier;
+import org.reminstant.concurrent.TaskProgress;
 import org.reminstant.secretalk.client.exception.*;
 import org.reminstant.concurrent.ChainableFuture;
 import org.reminstant.concurrent.ConcurrentUtil;
+import org.reminstant.concurrent.KeyedSerialExecutor;
 import org.reminstant.concurrent.functions.ThrowingFunction;
+import org.reminstant.concurrent.functions.ThrowingSupplier;
 import org.reminstant.cryptography.CryptoProvider;
 import org.reminstant.cryptography.context.CryptoProgress;
 import org.reminstant.cryptography.context.SymmetricCryptoContext;
 import org.reminstant.cryptography.asymmetric.DiffieHellmanGenerator;
+import org.reminstant.cryptography.asymmetric.KeyPair;
+import org.reminstant.cryptography.asymmetric.X25519Generator;
+import org.reminstant.secretalk.client.service.EventChannel;
+import org.reminstant.secretalk.client.service.FilePartSizer;
+import org.reminstant.secretalk.client.service.MessageOutbox;
 import org.reminstant.secretalk.client.service.ServerClient;
 import org.reminstant.secretalk.client.dto.DHResponse;
 import org.reminstant.secretalk.client.dto.JwtResponse;
+import org.reminstant.secretalk.client.dto.MissingFilePartsResponse;
 import org.reminstant.secretalk.client.dto.NoPayloadResponse;
+import org.reminstant.secretalk.client.dto.UserEventBatchResponse;
 import org.reminstant.secretalk.client.dto.UserEventWrapperResponse;
-import org.reminstant.secretalk.client.model.HttpReceivingProgress;
-import org.reminstant.secretalk.client.model.HttpSendingProgress;
 import org.reminstant.secretalk.client.model.Message;
 import org.reminstant.secretalk.client.model.Chat;
+import org.reminstant.secretalk.client.model.FileLoadCheckpoint;
 import org.reminstant.secretalk.client.model.event.*;
 import org.reminstant.secretalk.client.repository.LocalStorage;
 import org.reminstant.secretalk.client.util.ClientStatus;
@@ -48,6 +57,8 @@ import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 import java.util.function.Function;
 import java.util.function.UnaryOperator;
 
@@ -58,8 +69,23 @@ import static java.nio.file.StandardOpenOption.*;
 public class ApplicationStateManager {
 
   private static final long EVENT_CYCLE_TIMEOUT = 30000;
+  private static final long EVENT_CHANNEL_RETRY_MILLIS = 60000;
+  private static final int EVENT_BATCH_SIZE = 32;
+  private static final int EVENT_MAX_PENDING_COUNT = 256;
+  private static final long EVENT_ACK_RETRY_MILLIS = 1000;
   private static final int DH_PRIVATE_KEY_BIT_LENGTH = 512;
-  private static final int FILE_PART_SIZE = 128 * (1 << 10);
+  private static final int DH_KEY_PAIR_POOL_CAPACITY = 8;
+  private static final long NETWORK_TIMEOUT_MILLIS = 30000;
+  private static final int NETWORK_PARALLELISM = 16;
+  private static final int NETWORK_QUEUE_CAPACITY = 256;
+  private static final int FILE_PIPELINE_CAPACITY = 4;
+  private static final long FILE_PIPELINE_POLL_MILLIS = 100;
+  private static final int FILE_UPLOAD_WINDOW = 4;
+  private static final int FILE_PART_REORDER_WINDOW = 2 * FILE_UPLOAD_WINDOW;
+  private static final int FILE_PART_MAX_ATTEMPTS = 3;
+  private static final long FILE_PART_RETRY_DELAY_MILLIS = 500;
+  private static final int FILE_TRANSFER_MAX_ATTEMPTS = 3;
+  private static final long FILE_TRANSFER_RETRY_DELAY_MILLIS = 5000;
 
   private static final ThrowingFunction<Exception, Integer> defaultHandler;
 
@@ -70,12 +96,20 @@ public class ApplicationStateManager {
   private final AtomicBoolean isEventCycleWorking;
   private final Map<String, MessageLoadBundle> currentLoads;
   private final LocalStorage localStorage;
+  private final X25519Generator x25519;
+  private final ExecutorService networkExecutor;
+  private final FilePartSizer filePartSizer;
+  private final MessageOutbox messageOutbox;
+  private final KeyedSerialExecutor<String> eventExecutor;
 
   @Getter
   private Stage stage = null;
   private Scene loginScene = null;
   private Scene mainScene = null;
   private ChainableFuture<?> eventCycleFuture = null;
+  private ChainableFuture<?> eventAckCycleFuture = null;
+  private volatile EventChannel eventChannel = null;
+  private long eventChannelRetryTime = 0;
   private DiffieHellmanGenerator dh = null;
 
   static {
@@ -137,6 +171,15 @@ public class ApplicationStateManager {
           log.error("Failed to delete file in the local storage", ex);
           yield ClientStatus.STORAGE_DELETION_FAILURE;
         }
+        // CHAIN
+        case DeadlineExpiredException ex -> {
+          log.error("Operation did not complete in time", ex);
+          yield ClientStatus.DEADLINE_EXPIRED;
+        }
+        case RejectedExecutionException ex -> {
+          log.error("Operation was rejected due to overload", ex);
+          yield ClientStatus.OVERLOAD_REJECTION;
+        }
         // OTHER
         case CancellationException _ -> {
           log.trace("Message transmission was gracefully cancelled");
@@ -160,8 +203,15 @@ public class ApplicationStateManager {
     this.chatManager = chatManager;
 
     this.isEventCycleWorking = new AtomicBoolean(false);
-    this.currentLoads = new HashMap<>();
+    this.currentLoads = new ConcurrentHashMap<>();
     this.localStorage = localStorage;
+    this.x25519 = new X25519Generator();
+    this.networkExecutor = ConcurrentUtil.newBoundedExecutor("network",
+        NETWORK_PARALLELISM, NETWORK_QUEUE_CAPACITY);
+    this.filePartSizer = new FilePartSizer();
+    this.messageOutbox = new MessageOutbox(serverClient);
+    this.eventExecutor = new KeyedSerialExecutor<>(
+        Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("event-", 0).factory()));
   }
 
   public void init(Stage stage) {
@@ -176,6 +226,11 @@ public class ApplicationStateManager {
       String activeChatId = chatManager.getActiveChatId();
       String otherUsername = chatManager.getChatOtherUsername(activeChatId);
 
+      // a partly downloaded file is continued in place
+      if (message.getFilePath() != null && Files.exists(message.getFilePath())) {
+        return processFileRequest(message.getId(), activeChatId, otherUsername, message.getFilePath());
+      }
+
       DirectoryChooser directoryChooser = new DirectoryChooser();
       File file = directoryChooser.showDialog(stage.getScene().getWindow());
       if (file == null) {
@@ -185,10 +240,12 @@ public class ApplicationStateManager {
       Path path = file.toPath().resolve(message.getFileName());
       return processFileRequest(message.getId(), activeChatId, otherUsername, path);
     };
+    BiConsumer<String, String> onFileRelease = (chatId, messageId) ->
+        releaseMessageFile(chatId, messageId, chatManager.getChatOtherUsername(chatId));
 
     try {
       chatManager.initObjects(chatHolder, chatHint, chatBlock);
-      chatManager.initBehaviour(onChatOpening, onChatClosing, onChatChanging, onFileRequest);
+      chatManager.initBehaviour(onChatOpening, onChatClosing, onChatChanging, onFileRequest, onFileRelease);
     } catch (ModuleInitialisationException ex) {
       log.error("Failed to initialise chatManager", ex);
       return;
@@ -211,18 +268,28 @@ public class ApplicationStateManager {
             return dhResponse.getInternalStatus();
           }
 
+          if (dh != null) {
+            dh.stopKeyPairPool();
+          }
           dh = new DiffieHellmanGenerator(dhResponse.getPrime(), dhResponse.getGenerator());
+          dh.startKeyPairPool(DH_PRIVATE_KEY_BIT_LENGTH, DH_KEY_PAIR_POOL_CAPACITY);
           serverClient.saveCredentials(username, jwtResponse.getToken());
 
           localStorage.init(username);
 
           log.info("LOGGED AS {}", username);
           showMainScene();
-          chatManager.loadChats();
+          Map<String, List<Message>> interruptedUploads = chatManager.loadChats();
           startEventCycle();
+          interruptedUploads.forEach((chatId, messages) -> messages.forEach(message ->
+              processResumingUpload(chatId, message).thenWeaklyConsumeAsync(status -> {
+                if (status != ClientStatus.OK) {
+                  log.error("Failed to resume upload of message '{}' (status {})", message.getId(), status);
+                }
+              })));
 
           return ClientStatus.OK;
-        })
+        }, networkExecutor)
         .thenWeaklyHandleAsync(defaultHandler);
   }
 
@@ -231,12 +298,16 @@ public class ApplicationStateManager {
         .supplyWeaklyAsync(() -> {
           NoPayloadResponse response = serverClient.processRegister(username, password);
           return response.getInternalStatus();
-        })
+        }, networkExecutor)
+        .orTimeout(NETWORK_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
         .thenWeaklyHandleAsync(defaultHandler);
   }
 
   public void processLogout() {
     stopEventCycle();
+    if (dh != null) {
+      dh.stopKeyPairPool();
+    }
 
 //    for (MessageLoadBundle bundle : currentLoads.values()) {
 //      bundle.httpProgress.cancel(true);
@@ -269,12 +340,14 @@ public class ApplicationStateManager {
       return ChainableFuture.supplyWeaklyAsync(() -> ClientStatus.NOTHING_TO_PROCESS);
     }
 
-    return ChainableFuture
-        .supplyWeaklyAsync(() -> {
+    return supplyServerRequestAsync(() -> {
           if (!isChatAboutToDelete) {
             NoPayloadResponse response = serverClient.desertChat(chatId, otherUsername);
             throwTransportIfStatusNotOk(response.getInternalStatus());
           }
+          return null;
+        })
+        .thenWeaklySupplyAsync(() -> {
           chatManager.deleteChat(chatId);
           return ClientStatus.OK;
         })
@@ -291,12 +364,14 @@ public class ApplicationStateManager {
       return ChainableFuture.supplyWeaklyAsync(() -> ClientStatus.NOTHING_TO_PROCESS);
     }
 
-    return ChainableFuture
-        .supplyWeaklyAsync(() -> {
+    return supplyServerRequestAsync(() -> {
           if (!isChatAboutToDelete) {
             NoPayloadResponse response = serverClient.destroyChat(chatId, otherUsername);
             throwTransportIfStatusNotOk(response.getInternalStatus());
           }
+          return null;
+        })
+        .thenWeaklySupplyAsync(() -> {
           chatManager.deleteChat(chatId);
           return ClientStatus.OK;
         })
@@ -312,16 +387,16 @@ public class ApplicationStateManager {
 
   public ChainableFuture<Integer> processChatRequest(String chatId, String otherUsername,
                                                      Chat.Configuration config) {
-    return ChainableFuture
-        .supplyWeaklyAsync(() -> {
-          throwIfDHUninitialised();
-          BigInteger privateKey = dh.generatePrivateKey(DH_PRIVATE_KEY_BIT_LENGTH);
-          BigInteger publicKey = dh.generatePublicKey(privateKey);
+    return supplyServerRequestAsync(() -> {
+          KeyPair keyPair = takeKeyPair(config);
+          String publicKey = encodePublicKey(config, keyPair.publicKey());
 
           NoPayloadResponse response = serverClient
-              .requestChatConnection(chatId, otherUsername, config, publicKey.toString());
+              .requestChatConnection(chatId, otherUsername, config, publicKey);
           throwTransportIfStatusNotOk(response.getInternalStatus());
-
+          return keyPair.privateKey();
+        })
+        .thenWeaklyMapAsync(privateKey -> {
           chatManager.createOrReconnectOnRequesterSide(chatId, otherUsername, config, privateKey);
           return ClientStatus.OK;
         })
@@ -335,18 +410,20 @@ public class ApplicationStateManager {
   }
 
   public ChainableFuture<Integer> processChatAcceptance(String chatId, String otherUsername) {
-    return ChainableFuture
-        .supplyWeaklyAsync(() -> {
-          throwIfDHUninitialised();
-          BigInteger privateKey = dh.generatePrivateKey(DH_PRIVATE_KEY_BIT_LENGTH);
-          BigInteger publicKey = dh.generatePublicKey(privateKey);
-          UnaryOperator<BigInteger> generator = otherPublicKey -> dh
-              .generateSessionKey(privateKey, otherPublicKey);
+    return supplyServerRequestAsync(() -> {
+          Chat.Configuration config = chatManager.getChatConfiguration(chatId);
+          KeyPair keyPair = takeKeyPair(config);
+          BigInteger privateKey = keyPair.privateKey();
+          String publicKey = encodePublicKey(config, keyPair.publicKey());
+          UnaryOperator<BigInteger> generator = otherPublicKey ->
+              generateSessionKey(config, privateKey, otherPublicKey);
 
           NoPayloadResponse response = serverClient
-              .acceptChatConnection(chatId, otherUsername, publicKey.toString());
+              .acceptChatConnection(chatId, otherUsername, publicKey);
           throwTransportIfStatusNotOk(response.getInternalStatus());
-
+          return generator;
+        })
+        .thenWeaklyMapAsync(generator -> {
           chatManager.acceptChat(chatId, otherUsername, generator);
           return ClientStatus.OK;
         })
@@ -360,10 +437,12 @@ public class ApplicationStateManager {
   }
 
   public ChainableFuture<Integer> processChatDisconnection(String chatId, String otherUsername) {
-    return ChainableFuture
-        .supplyWeaklyAsync(() -> {
+    return supplyServerRequestAsync(() -> {
           NoPayloadResponse response = serverClient.breakChatConnection(chatId, otherUsername);
           throwTransportIfStatusNotOk(response.getInternalStatus());
+          return null;
+        })
+        .thenWeaklySupplyAsync(() -> {
           chatManager.disconnectChat(chatId, otherUsername);
           return ClientStatus.OK;
         })
@@ -387,8 +466,8 @@ public class ApplicationStateManager {
           chatManager.startMessageEncryption(chatId, messageId, textProgress, false);
           byte[] encText = textProgress.getResult();
 
-          HttpSendingProgress httpProgress = wrapSendingHttp(() -> serverClient
-              .sendChatMessage(messageId, chatId, otherUsername, encText));
+          TaskProgress<Integer> httpProgress = wrapSendingHttp(messageOutbox
+              .send(messageId, chatId, otherUsername, encText));
           chatManager.startMessageUpload(chatId, messageId, httpProgress, false);
 
           int status = httpProgress.getResult();
@@ -406,10 +485,6 @@ public class ApplicationStateManager {
 
   public ChainableFuture<Integer> processSendingMessage(String messageText, Path filePath, boolean isImage) {
     String chatId = chatManager.getActiveChatId();
-    String otherUsername = chatManager.getChatOtherUsername(chatId);
-    SymmetricCryptoContext cryptoContext = chatManager.getChatCryptoContext(chatId);
-
-    byte[] data = messageText.getBytes();
     String messageId = UUID.randomUUID().toString();
 
     return ChainableFuture
@@ -422,52 +497,11 @@ public class ApplicationStateManager {
             localStorage.copyToFile(filePath, resPath);
           }
 
-          String outFileName = (isImage ? "load" : "") + fileName;
-
           Message message = new Message(messageId, messageText, serverClient.getUsername(),
               fileName, true, resPath, isImage);
 
           chatManager.insertMessage(chatId, message, false);
-          CryptoProgress<byte[]> textProgress = cryptoContext.encryptAsync(data);
-          chatManager.startMessageEncryption(chatId, messageId, textProgress, false);
-          byte[] encText = textProgress.getResult();
-
-          Path encTmpFilePath = localStorage.createTmpFile(fileName, "enc");
-          String in = resPath.toString();
-          String out = encTmpFilePath.toString();
-          CryptoProgress<Void> fileProgress = cryptoContext.encryptAsync(in, out);
-          fileProgress.getFuture()
-              .thenWeaklyHandleAsync(getFileCancellationHandler(encTmpFilePath, "encrypting"));
-
-          chatManager.startMessageEncryption(chatId, messageId, fileProgress, true);
-          fileProgress.getResult();
-
-          Thread.sleep(100);
-
-          HttpSendingProgress httpProgress;
-          if (isImage) {
-            byte[] encData = localStorage.readAsBytes(encTmpFilePath);
-            localStorage.deleteTmpFile(encTmpFilePath.getFileName().toString());
-            httpProgress = wrapSendingHttp(() ->
-                serverClient.sendImage(messageId, chatId, otherUsername, outFileName, encData));
-          } else {
-            httpProgress = processSendingFilePartly(messageId, chatId, otherUsername, encTmpFilePath);
-          }
-
-          chatManager.startMessageUpload(chatId, messageId, httpProgress, true);
-          int status = httpProgress.getResult();
-          throwTransportIfStatusNotOk(status);
-          Thread.sleep(500); // cancel gap
-
-          httpProgress = wrapSendingHttp(() -> serverClient
-              .sendChatMessage(messageId, chatId, otherUsername, encText, outFileName, isImage));
-          chatManager.startMessageUpload(chatId, messageId, httpProgress, false);
-
-          status = httpProgress.getResult();
-          throwTransportIfStatusNotOk(status);
-
-          chatManager.completeMessage(chatId, messageId);
-          return ClientStatus.OK;
+          return sendMessageWithFile(chatId, message);
         })
         .thenWeaklyHandleAsync(ex -> {
           chatManager.failMessage(chatId, messageId);
@@ -476,68 +510,360 @@ public class ApplicationStateManager {
         .thenWeaklyHandleAsync(defaultHandler);
   }
 
+  /** Sends again an own message whose file upload was interrupted by the client shutdown */
+  public ChainableFuture<Integer> processResumingUpload(String chatId, Message message) {
+    return ChainableFuture
+        .supplyWeaklyAsync(() -> sendMessageWithFile(chatId, message))
+        .thenWeaklyHandleAsync(ex -> {
+          chatManager.failMessage(chatId, message.getId());
+          throw ex;
+        })
+        .thenWeaklyHandleAsync(defaultHandler);
+  }
+
+  /**
+   * Requests the file of the message. If the file was partly downloaded into the same path before,
+   * the download continues from the first part that was not decrypted
+   */
   public ChainableFuture<Integer> processFileRequest(String messageId, String chatId,
                                                      String otherUsername, Path filePath) {
     return ChainableFuture
         .supplyWeaklyAsync(() -> {
-          Path loadPath = localStorage.createTmpFile(filePath.getFileName() + "_", "");
+          SymmetricCryptoContext cryptoContext = chatManager.getChatCryptoContext(chatId);
 
-          HttpReceivingProgress.Counter counter = new HttpReceivingProgress.Counter();
-          HttpReceivingProgress httpProgress = new HttpReceivingProgress(counter);
+          TaskProgress<Void> httpProgress = TaskProgress.completedByCount();
+          MessageLoadBundle bundle = createLoadBundle(chatId, messageId, otherUsername,
+              filePath, cryptoContext, httpProgress);
           chatManager.startMessageDownload(chatId, messageId, filePath, httpProgress);
-          currentLoads.put(messageId,
-              new MessageLoadBundle(messageId, httpProgress, counter, loadPath, filePath));
+          currentLoads.put(messageId, bundle);
 
-          NoPayloadResponse response = serverClient.requestMessageFile(messageId, chatId, otherUsername);
-          if (!response.isOk()) {
-            currentLoads.remove(messageId);
-            return response.getInternalStatus();
+          for (int attempt = 1; ; ++attempt) {
+            try {
+              NoPayloadResponse response = serverClient
+                  .requestMessageFile(messageId, chatId, otherUsername, bundle.nextPartNumber().get());
+              if (!response.isOk()) {
+                currentLoads.remove(messageId);
+                return response.getInternalStatus();
+              }
+              return ClientStatus.OK;
+            } catch (ServerConnectionException ex) {
+              if (attempt == FILE_PART_MAX_ATTEMPTS) {
+                currentLoads.remove(messageId);
+                throw ex;
+              }
+              log.warn("Failed to request file of message {} (attempt {}), retrying", messageId, attempt, ex);
+              Thread.sleep(FILE_PART_RETRY_DELAY_MILLIS << (attempt - 1));
+            }
           }
-
-          return ClientStatus.OK;
-        })
+        }, networkExecutor)
+        .orTimeout(NETWORK_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
         .thenWeaklyHandleAsync(defaultHandler);
   }
 
 
 
-  private HttpSendingProgress processSendingFilePartly(String messageId, String chatId,
-                                                       String otherUser, Path path) {
-    HttpSendingProgress.Counter counter = new HttpSendingProgress.Counter();
+  /**
+   * Runs the server request under the network deadline. The returned stage has no deadline,
+   * since handle stages do not inherit it, so the local update chained after a request
+   * the server has accepted is not interrupted by the expiration
+   */
+  private <V> ChainableFuture<V> supplyServerRequestAsync(ThrowingSupplier<V> request) {
+    return ChainableFuture
+        .supplyWeaklyAsync(request, networkExecutor)
+        .orTimeout(NETWORK_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+        .thenWeaklyHandleAsync(ex -> {
+          throw ex;
+        });
+  }
+
+  private int sendMessageWithFile(String chatId, Message message) throws Exception {
+    String otherUsername = chatManager.getChatOtherUsername(chatId);
+    SymmetricCryptoContext cryptoContext = chatManager.getChatCryptoContext(chatId);
+
+    String messageId = message.getId();
+    boolean isImage = message.isImage();
+    Path resPath = message.getFilePath();
+    String outFileName = (isImage ? "load" : "") + message.getFileName();
+    byte[] data = message.getText().getBytes();
+
+    CryptoProgress<byte[]> textProgress = cryptoContext.encryptAsync(data);
+    chatManager.startMessageEncryption(chatId, messageId, textProgress, false);
+    byte[] encText = textProgress.getResult();
+
+    TaskProgress<Integer> httpProgress;
+    Progress<?> fileProgress;
+    if (isImage) {
+      TaskProgress<Void> imageProgress = TaskProgress.ofChildren(2);
+      CryptoProgress<byte[]> encProgress = cryptoContext.encryptAsync(resPath.toString());
+      imageProgress.addChild(encProgress, 1);
+      chatManager.startMessageEncryption(chatId, messageId, imageProgress, true);
+      byte[] encData = encProgress.getResult();
+      httpProgress = wrapSendingHttp(
+          serverClient.sendImageAsync(messageId, chatId, otherUsername, outFileName, encData));
+      imageProgress.addChild(httpProgress, 1);
+      fileProgress = imageProgress;
+    } else {
+      httpProgress = processSendingFilePartly(messageId, chatId, otherUsername, resPath, cryptoContext);
+      fileProgress = httpProgress;
+    }
+
+    chatManager.startMessageUpload(chatId, messageId, fileProgress, true);
+    int status = httpProgress.getResult();
+    throwTransportIfStatusNotOk(status);
+    Thread.sleep(500); // cancel gap
+
+    httpProgress = wrapSendingHttp(serverClient
+        .sendChatMessageAsync(messageId, chatId, otherUsername, encText, outFileName, isImage));
+    chatManager.startMessageUpload(chatId, messageId, httpProgress, false);
+
+    status = httpProgress.getResult();
+    throwTransportIfStatusNotOk(status);
+
+    chatManager.completeMessage(chatId, messageId);
+    return ClientStatus.OK;
+  }
+
+  /**
+   * Uploads the parts of the file that the server is missing. If the connection is lost
+   * for longer than part retries last, the upload starts over with the parts that are still missing.
+   * The part length is proposed by {@link FilePartSizer}, but a resumed upload keeps the length fixed for it
+   */
+  private TaskProgress<Integer> processSendingFilePartly(String messageId, String chatId, String otherUser,
+                                                         Path path, SymmetricCryptoContext cryptoContext) {
+    TaskProgress<Integer> progress = new TaskProgress<>();
     ChainableFuture<Integer> future = ChainableFuture
         .supplyWeaklyAsync(() -> {
-          try (FileChannel fileChannel = FileChannel.open(path, READ, DELETE_ON_CLOSE)) {
-            int partCnt = (int) Math.ceil(1. * fileChannel.size() / FILE_PART_SIZE);
-            counter.setSubTaskCount(partCnt);
-
-            for (int i = 0; i < partCnt; ++i) {
-              byte[] part = new byte[FILE_PART_SIZE];
-              int read = fileChannel.read(ByteBuffer.wrap(part));
-              if (read < FILE_PART_SIZE) {
-                part = Arrays.copyOf(part, read);
-              }
-              NoPayloadResponse response = serverClient
-                  .sendFilePart(messageId, chatId, otherUser, i, partCnt, part);
+          long cipherLength = cryptoContext.getCipherLength(Files.size(path));
+
+          for (int attempt = 1; ; ++attempt) {
+            try {
+              long startNanos = System.nanoTime();
+              throwTransportIfStatusNotOk(serverClient.ping().getInternalStatus());
+              filePartSizer.recordRoundTrip(System.nanoTime() - startNanos);
+
+              MissingFilePartsResponse response = serverClient.getMissingFileParts(messageId, chatId,
+                  otherUser, cipherLength, filePartSizer.getPartByteLength());
               throwTransportIfStatusNotOk(response.getInternalStatus());
-              counter.incrementProgress();
+
+              int partByteLength = response.getPartByteLength();
+              int partCnt = (int) Math.ceilDiv(cipherLength, partByteLength);
+              Set<Long> missingParts = new HashSet<>(response.getPartNumbers());
+              progress.setSubTaskByteSize(partByteLength);
+              progress.setSubTaskCount(partCnt);
+              progress.setCompletedSubTaskCount(partCnt - missingParts.size());
+
+              uploadMissingFileParts(messageId, chatId, otherUser, path, cryptoContext,
+                  partByteLength, partCnt, missingParts, progress);
+              return ClientStatus.OK;
+            } catch (Exception ex) {
+              if (attempt == FILE_TRANSFER_MAX_ATTEMPTS || !isConnectionFailure(ex)) {
+                throw ex;
+              }
+              log.warn("Upload of message {} is interrupted (attempt {}), resuming", messageId, attempt, ex);
+              Thread.sleep(FILE_TRANSFER_RETRY_DELAY_MILLIS);
             }
-            return ClientStatus.OK;
           }
         })
         .thenWeaklyHandleAsync(defaultHandler);
-    counter.setFuture(future);
-    return new HttpSendingProgress(counter);
+    progress.setFuture(future);
+    return progress;
+  }
+
+  /**
+   * Encrypts file part by part while uploading already encrypted parts that the server is missing.
+   * Encryption is deterministic, so parts uploaded by an interrupted attempt match the new ones.
+   * At most {@link #FILE_PIPELINE_CAPACITY} encrypted parts wait for uploading
+   * and at most {@link #FILE_UPLOAD_WINDOW} parts are uploaded concurrently
+   */
+  private void uploadMissingFileParts(String messageId, String chatId, String otherUser, Path path,
+                                      SymmetricCryptoContext cryptoContext, int partByteLength, int partCnt,
+                                      Set<Long> missingParts, TaskProgress<Integer> progress)
+      throws ExecutionException, InterruptedException {
+    if (missingParts.isEmpty()) {
+      return;
+    }
+
+    BlockingQueue<byte[]> parts = new ArrayBlockingQueue<>(FILE_PIPELINE_CAPACITY);
+    ChainableFuture<Void> encryption = ChainableFuture
+        .runStronglyAsync(() -> encryptFilePartly(path, cryptoContext, partByteLength, parts));
+
+    Semaphore window = new Semaphore(FILE_UPLOAD_WINDOW);
+    List<ChainableFuture<Void>> uploads = new ArrayList<>();
+    filePartSizer.startUpload();
+    try {
+      long lastMissingPart = Collections.max(missingParts);
+      for (int i = 0; i <= lastMissingPart; ++i) {
+        byte[] part = takeFilePart(parts, encryption);
+        if (!missingParts.contains((long) i)) {
+          continue;
+        }
+        window.acquire();
+        throwIfAnyUploadFailed(uploads);
+
+        int partNumber = i;
+        uploads.add(ChainableFuture.runWeaklyAsync(() -> {
+          try {
+            uploadFilePart(messageId, chatId, otherUser, partNumber, partCnt, (long) partNumber * partByteLength, part);
+            progress.incrementProgress();
+          } finally {
+            window.release();
+          }
+        }));
+      }
+      for (ChainableFuture<Void> upload : uploads) {
+        upload.get();
+      }
+    } finally {
+      filePartSizer.finishUpload();
+      encryption.cancel(true);
+      uploads.forEach(upload -> upload.cancel(true));
+    }
+  }
+
+  private void uploadFilePart(String messageId, String chatId, String otherUser,
+                              int partNumber, int partCount, long partOffset, byte[] part)
+      throws ServerConnectionException, ServerResponseException, InterruptedException {
+    for (int attempt = 1; ; ++attempt) {
+      try {
+        NoPayloadResponse response = serverClient
+            .sendFilePart(messageId, chatId, otherUser, partNumber, partCount, partOffset, part);
+        if (response.isOk()) {
+          filePartSizer.recordPartUpload(part.length);
+        }
+        if (response.getInternalStatus() != ClientStatus.CORRUPTED_DATA || attempt == FILE_PART_MAX_ATTEMPTS) {
+          throwTransportIfStatusNotOk(response.getInternalStatus());
+          return;
+        }
+        log.warn("Part {} of message {} is corrupted in transit (attempt {}), retrying",
+            partNumber, messageId, attempt);
+      } catch (ServerConnectionException ex) {
+        if (attempt == FILE_PART_MAX_ATTEMPTS) {
+          throw ex;
+        }
+        log.warn("Failed to upload part {} of message {} (attempt {}), retrying",
+            partNumber, messageId, attempt, ex);
+        Thread.sleep(FILE_PART_RETRY_DELAY_MILLIS << (attempt - 1));
+      }
+    }
+  }
+
+  private static boolean isConnectionFailure(Exception rawEx) {
+    while ((rawEx instanceof ExecutionException || rawEx instanceof ChainExecutionException) &&
+        rawEx.getCause() instanceof Exception ex) {
+      rawEx = ex;
+    }
+    return rawEx instanceof ServerConnectionException;
+  }
+
+  /** Drops finished uploads from the list, rethrowing the failure of the first failed one */
+  private static void throwIfAnyUploadFailed(List<ChainableFuture<Void>> uploads)
+      throws ExecutionException, InterruptedException {
+    Iterator<ChainableFuture<Void>> iterator = uploads.iterator();
+    while (iterator.hasNext()) {
+      ChainableFuture<Void> upload = iterator.next();
+      if (upload.isDone()) {
+        upload.get();
+        iterator.remove();
+      }
+    }
+  }
+
+  private void encryptFilePartly(Path path, SymmetricCryptoContext cryptoContext, int partByteLength,
+                                 BlockingQueue<byte[]> parts) throws IOException, InterruptedException {
+    SymmetricCryptoContext.ChunkCipher cipher = cryptoContext.startChunkedEncryption();
+
+    try (FileChannel fileChannel = FileChannel.open(path, READ)) {
+      long remaining = fileChannel.size();
+      while (remaining > partByteLength) {
+        parts.put(cipher.update(readFully(fileChannel, partByteLength)));
+        remaining -= partByteLength;
+      }
+
+      // padding may make the last cipher chunk a block longer than a part
+      byte[] lastChunk = cipher.doFinal(readFully(fileChannel, (int) remaining));
+      for (int pos = 0; pos < lastChunk.length; pos += partByteLength) {
+        parts.put(Arrays.copyOfRange(lastChunk, pos, Math.min(lastChunk.length, pos + partByteLength)));
+      }
+    }
+  }
+
+  private MessageLoadBundle createLoadBundle(String chatId, String messageId, String otherUsername,
+                                             Path filePath, SymmetricCryptoContext cryptoContext,
+                                             TaskProgress<Void> progress)
+      throws LocalStorageReadException, LocalStorageDeletionException {
+    Optional<FileLoadCheckpoint> checkpoint = localStorage.getLoadCheckpoint(chatId, messageId);
+    if (checkpoint.isPresent() && checkpoint.get().resultPath().equals(filePath)) {
+      long writtenByteCount = checkpoint.get().writtenByteCount();
+      try (FileChannel fileChannel = FileChannel.open(filePath, WRITE)) {
+        if (fileChannel.size() >= writtenByteCount) {
+          fileChannel.truncate(writtenByteCount);
+          log.info("Resuming download of message {} from part {}",
+              messageId, checkpoint.get().nextPartNumber());
+          return new MessageLoadBundle(chatId, messageId, otherUsername, progress, filePath,
+              cryptoContext.resumeChunkedDecryption(checkpoint.get().cipherState()), new HashMap<>(),
+              new AtomicLong(checkpoint.get().nextPartNumber()), new AtomicLong(writtenByteCount));
+        }
+      } catch (IOException ex) {
+        log.warn("Partly downloaded file of message {} is unavailable, downloading anew", messageId, ex);
+      }
+    }
+    if (checkpoint.isPresent()) {
+      localStorage.deleteLoadCheckpoint(chatId, messageId);
+    }
+    return new MessageLoadBundle(chatId, messageId, otherUsername, progress,
+        filePath, cryptoContext.startChunkedDecryption());
   }
 
+  private byte[] takeFilePart(BlockingQueue<byte[]> parts, ChainableFuture<Void> encryption)
+      throws InterruptedException, ExecutionException {
+    byte[] part;
+    while ((part = parts.poll(FILE_PIPELINE_POLL_MILLIS, TimeUnit.MILLISECONDS)) == null) {
+      if (encryption.isDone()) {
+        part = parts.poll();
+        if (part != null) {
+          break;
+        }
+        encryption.get();
+        throw new IllegalStateException("File encryption is finished before all parts are produced");
+      }
+    }
+    return part;
+  }
 
+  private static void writeFully(FileChannel fileChannel, byte[] data, long pos) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(data);
+    while (buffer.hasRemaining()) {
+      fileChannel.write(buffer, pos + buffer.position());
+    }
+  }
+
+  private static byte[] readFully(FileChannel fileChannel, int size) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(size);
+    while (buffer.hasRemaining()) {
+      if (fileChannel.read(buffer) < 0) {
+        throw new IOException("Unexpected end of file");
+      }
+    }
+    return buffer.array();
+  }
+
+
+  /**
+   * <p> Starts the event pipeline. The fetching loop dispatches events to per-chat serial queues
+   * and goes on fetching, so events of different chats are decrypted and persisted in parallel
+   * while every chat keeps the order of its events.
+   * <p> The acknowledging loop acknowledges events as soon as all the events before them are handled.
+   */
   private void startEventCycle() {
     isEventCycleWorking.set(true);
+    PendingEvents pendingEvents = new PendingEvents();
     eventCycleFuture = ChainableFuture.runWeaklyAsync(() -> {
       log.debug("Event cycle is started");
       while (isEventCycleWorking.get()) {
         boolean isOk;
         try {
-          isOk = doEventCycle();
+          pendingEvents.awaitFewerThan(EVENT_MAX_PENDING_COUNT);
+          isOk = doEventCycle(pendingEvents);
         } catch (InterruptedException ex) {
           Thread.currentThread().interrupt();
           break;
@@ -551,6 +877,26 @@ public class ApplicationStateManager {
       }
       log.debug("Event cycle is stopped");
     });
+    eventAckCycleFuture = ChainableFuture.runWeaklyAsync(() -> {
+      while (isEventCycleWorking.get()) {
+        try {
+          long sequence = pendingEvents.awaitAcknowledgeable(EVENT_CYCLE_TIMEOUT);
+          if (sequence != 0 && isEventCycleWorking.get()) {
+            if (acknowledgeEvents(sequence)) {
+              pendingEvents.markAcknowledged(sequence);
+            } else {
+              ConcurrentUtil.sleepSafely(EVENT_ACK_RETRY_MILLIS);
+            }
+          }
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          break;
+        } catch (RuntimeException ex) {
+          log.error("Unexpected unchecked exception is threw in event acknowledgement cycle", ex);
+          ConcurrentUtil.sleepSafely(EVENT_ACK_RETRY_MILLIS);
+        }
+      }
+    });
   }
 
   private void stopEventCycle() {
@@ -558,34 +904,83 @@ public class ApplicationStateManager {
     if (eventCycleFuture != null) {
       eventCycleFuture.cancel(true);
     }
+    if (eventAckCycleFuture != null) {
+      eventAckCycleFuture.cancel(true);
+    }
+    closeEventChannel();
+    eventChannelRetryTime = 0;
   }
 
-  private boolean doEventCycle() throws Exception {
-    UserEvent rawEvent;
+  /** Fetches a batch of events and dispatches the ones not dispatched yet */
+  private boolean doEventCycle(PendingEvents pendingEvents) throws Exception {
+    EventChannel channel = getEventChannel();
+    List<UserEventWrapperResponse> wrappers;
     try {
-      UserEventWrapperResponse wrapper = serverClient.getEvent(EVENT_CYCLE_TIMEOUT);
-      if (wrapper.getInternalStatus() == 401000) {
+      UserEventBatchResponse batch = channel != null
+          ? channel.poll(EVENT_CYCLE_TIMEOUT)
+          : serverClient.getEvents(EVENT_BATCH_SIZE, EVENT_CYCLE_TIMEOUT);
+      if (batch == null) {
+        return true;
+      }
+      if (batch.getInternalStatus() == 401000) {
         processLogout();
         return false;
       }
-      rawEvent = UserEvent.getEvent(wrapper.getEventType(), wrapper.getEventJson().getBytes());
+      wrappers = batch.getEvents();
     } catch (ServerResponseException ex) {
       log.error("Server response error", ex);
       return false;
     } catch (IOException ex) {
-      log.error("Event cycle failed to get event", ex);
+      log.error("Event cycle failed to get events", ex);
+      closeEventChannel();
       return false;
     }
 
-    if (!isEventCycleWorking.get()) {
-      log.debug("ignored event: {}", rawEvent);
-      return true;
+    for (UserEventWrapperResponse wrapper : wrappers) {
+      if (!isEventCycleWorking.get()) {
+        log.debug("ignored events starting from #{}", wrapper.getSequence());
+        return true;
+      }
+      dispatchEvent(wrapper, pendingEvents);
     }
+    return true;
+  }
 
+  /**
+   * Event of unknown type is logged and skipped so that it does not block the ones after it.
+   * Messages of a batch are handled in the queues of their own chats
+   */
+  private void dispatchEvent(UserEventWrapperResponse wrapper, PendingEvents pendingEvents) {
+    long sequence = wrapper.getSequence();
+    UserEvent rawEvent = wrapper.getEvent();
+    if (rawEvent == null || rawEvent instanceof UnknownEvent) {
+      log.error("Got event #{} of unknown type", sequence);
+      pendingEvents.dispatch(sequence, 0);
+      return;
+    }
+
+    List<? extends UserEvent> parts = rawEvent instanceof ChatMessageBatchEvent batch
+        ? batch.getMessages()
+        : List.of(rawEvent);
+    if (!pendingEvents.dispatch(sequence, rawEvent instanceof VoidEvent ? 0 : parts.size())) {
+      log.debug("skipped redelivered event #{}", sequence);
+      return;
+    }
     if (rawEvent instanceof VoidEvent) {
-      return true;
+      return;
+    }
+
+    for (UserEvent part : parts) {
+      eventExecutor.execute(getEventChatId(part), () -> {
+        if (isEventCycleWorking.get()) {
+          handleEvent(part);
+        }
+        pendingEvents.completePart(sequence);
+      });
     }
+  }
 
+  private void handleEvent(UserEvent rawEvent) {
     log.debug("got event: {} ", rawEvent);
     try {
       switch (rawEvent) {
@@ -600,24 +995,89 @@ public class ApplicationStateManager {
         default -> { } // NOSONAR
       }
     } catch (Exception ex) {
-      defaultHandler.apply(ex);
+      try {
+        defaultHandler.apply(ex);
+      } catch (Exception handlerEx) {
+        log.error("Failed to handle event {}", rawEvent.getId(), handlerEx);
+      }
+    }
+  }
+
+  private static String getEventChatId(UserEvent event) {
+    return switch (event) {
+      case ChatDesertEvent e -> e.getChatId();
+      case ChatDestroyEvent e -> e.getChatId();
+      case ChatConnectionRequestEvent e -> e.getChatId();
+      case ChatConnectionAcceptEvent e -> e.getChatId();
+      case ChatConnectionBreakEvent e -> e.getChatId();
+      case ChatMessageEvent e -> e.getChatId();
+      case ChatImageEvent e -> e.getChatId();
+      case ChatFileEvent e -> e.getChatId();
+      default -> "";
+    };
+  }
+
+  private boolean acknowledgeEvents(long upToSequence) throws InterruptedException {
+    EventChannel channel = eventChannel;
+    if (channel != null && channel.isOpen()) {
+      try {
+        channel.acknowledge(upToSequence);
+        return true;
+      } catch (ServerConnectionException ex) {
+        log.error("Failed to acknowledge events up to #{}", upToSequence, ex);
+        closeEventChannel();
+        return false;
+      }
     }
 
     try {
-      NoPayloadResponse response = serverClient.acknowledgeEvent(rawEvent.getId());
+      NoPayloadResponse response = serverClient.acknowledgeEvents(upToSequence);
       if (!response.isOk()) {
-        log.error("Failed to acknowledge event #{} (code {})",
-            rawEvent.getId(), response.getInternalStatus());
+        log.error("Failed to acknowledge events up to #{} (code {})",
+            upToSequence, response.getInternalStatus());
         return false;
       }
-    } catch (ServerResponseException ex) {
-      log.error("Failed to acknowledge event #{}", rawEvent.getId(), ex);
+    } catch (ServerConnectionException | ServerResponseException ex) {
+      log.error("Failed to acknowledge events up to #{}", upToSequence, ex);
       return false;
     }
-
     return true;
   }
 
+  /**
+   * Returns open event channel, reopening it if needed.
+   * While the channel cannot be opened, events are long-polled and reopening is retried
+   * every {@link #EVENT_CHANNEL_RETRY_MILLIS} ms
+   */
+  private EventChannel getEventChannel() throws InterruptedException {
+    EventChannel channel = eventChannel;
+    if (channel != null && channel.isOpen()) {
+      return channel;
+    }
+    if (System.currentTimeMillis() < eventChannelRetryTime) {
+      return null;
+    }
+
+    try {
+      channel = serverClient.openEventChannel();
+      log.debug("Event channel is opened");
+    } catch (ServerConnectionException ex) {
+      log.warn("Failed to open event channel, falling back to long-polling", ex);
+      channel = null;
+      eventChannelRetryTime = System.currentTimeMillis() + EVENT_CHANNEL_RETRY_MILLIS;
+    }
+    eventChannel = channel;
+    return channel;
+  }
+
+  private void closeEventChannel() {
+    EventChannel channel = eventChannel;
+    eventChannel = null;
+    if (channel != null) {
+      channel.close();
+    }
+  }
+
   private void handleChatDesertEvent(ChatDesertEvent event) throws LocalStorageWriteException {
     chatManager.desertChat(event.getChatId(), event.getSenderUsername());
   }
@@ -632,7 +1092,7 @@ public class ApplicationStateManager {
     String chatId = event.getChatId();
     String otherUsername = event.getRequesterUsername();
     Chat.Configuration config = event.getChatConfiguration();
-    BigInteger publicKey = new BigInteger(event.getPublicKey());
+    BigInteger publicKey = decodePublicKey(config, event.getPublicKey());
 
     chatManager.createOrReconnectOnAcceptorSide(chatId, otherUsername, config, publicKey);
   }
@@ -641,8 +1101,9 @@ public class ApplicationStateManager {
       throws LocalStorageWriteException {
     String chatId = event.getChatId();
     String otherUsername = event.getAcceptorUsername();
-    BigInteger otherPublicKey = new BigInteger(event.getPublicKey());
-    UnaryOperator<BigInteger> generator = secretKey -> dh.generateSessionKey(secretKey, otherPublicKey);
+    Chat.Configuration config = chatManager.getChatConfiguration(chatId);
+    BigInteger otherPublicKey = decodePublicKey(config, event.getPublicKey());
+    UnaryOperator<BigInteger> generator = secretKey -> generateSessionKey(config, secretKey, otherPublicKey);
 
     chatManager.acceptChat(chatId, otherUsername, generator);
   }
@@ -695,15 +1156,16 @@ public class ApplicationStateManager {
       return;
     }
     if (bundle.progress().isCancelled()) {
-      if (bundle.loadPath != null) {
+      if (bundle.resultPath != null) {
         try {
-          Files.deleteIfExists(bundle.loadPath);
+          Files.deleteIfExists(bundle.resultPath);
         } catch (IOException ex) {
-          log.warn("Failed to delete loading encrypted file after cancellation", ex);
+          log.warn("Failed to delete partly decrypted file after cancellation", ex);
         }
         MessageLoadBundle cancelledBundle = new MessageLoadBundle(
-            messageId, bundle.progress, bundle.progressCounter, null, null);
+            chatId, messageId, bundle.otherUsername, bundle.progress, null, null);
         currentLoads.put(messageId, cancelledBundle);
+        finishLoad(bundle);
       }
       if (event.getPartNumber() + 1 == event.getPartCount()) {
         currentLoads.remove(messageId);
@@ -711,44 +1173,98 @@ public class ApplicationStateManager {
       return;
     }
 
-    if (event.getPartNumber() == 0) {
-      bundle.progressCounter.setSubTaskCount(event.getPartCount());
+    bundle.progress().setSubTaskCount(event.getPartCount());
+    if (event.getPartNumber() + 1 < event.getPartCount()) {
+      bundle.progress().setSubTaskByteSize(event.getFileData().length);
     }
 
-    try (FileChannel fileChannel = FileChannel.open(bundle.loadPath, CREATE, WRITE)) {
-      long pos = FILE_PART_SIZE * event.getPartNumber();
-      int write = fileChannel.write(ByteBuffer.wrap(event.getFileData()), pos);
-      if (write != event.getFileData().length) {
-        log.error("Wrong written byte count");
+    try {
+      decryptFilePart(bundle, event.getPartNumber(), event.getPartCount(), event.getFileData());
+    } catch (IOException | RuntimeException ex) {
+      log.error("File part decryption error", ex);
+      currentLoads.remove(messageId);
+      try {
+        Files.deleteIfExists(bundle.resultPath);
+      } catch (IOException deletionEx) {
+        log.warn("Failed to delete partly decrypted file after failure", deletionEx);
       }
-    } catch (IOException ex) {
-      log.error("File writing error", ex);
-      currentLoads.remove(event.getMessageId());
+      finishLoad(bundle);
       chatManager.failMessage(chatId, messageId);
+      return;
     }
 
-    bundle.progressCounter().incrementProgress();
-//    bundle.httpProgress().setProcessedBlocksCount(event.getPartNumber() + 1);
-
     if (bundle.progress().isDone()) {
-      SymmetricCryptoContext cryptoContext = chatManager.getChatCryptoContext(event.getChatId());
-      String in = bundle.loadPath.toString();
-      String out = bundle.resultPath.toString();
-      CryptoProgress<Void> progress = cryptoContext.decryptAsync(in, out);
-      chatManager.startMessageDecryption(chatId, messageId, progress);
-      progress.getFuture()
-          .thenWeaklySupplyAsync(() -> {
-            try {
-              Files.deleteIfExists(bundle.loadPath);
-            } catch (IOException ex) {
-              log.warn("Failed to delete loaded encrypted file after decryption", ex);
-            }
-            chatManager.completeMessage(chatId, messageId);
-            return ClientStatus.OK;
-          })
-          .thenWeaklyHandleAsync(getFileCancellationHandler(bundle.resultPath, "decrypting"))
-          .thenWeaklyHandleAsync(getFileCancellationHandler(bundle.loadPath, "loaded encrypted"))
-          .thenWeaklyHandleAsync(defaultHandler);
+      currentLoads.remove(messageId);
+      finishLoad(bundle);
+      chatManager.completeMessage(chatId, messageId);
+    }
+  }
+
+  /** Drops the download checkpoint and lets the server delete the file */
+  private void finishLoad(MessageLoadBundle bundle) {
+    try {
+      localStorage.deleteLoadCheckpoint(bundle.chatId, bundle.messageId);
+    } catch (LocalStorageDeletionException ex) {
+      log.warn("Failed to delete download checkpoint of message {}", bundle.messageId, ex);
+    }
+    releaseMessageFile(bundle.chatId, bundle.messageId, bundle.otherUsername);
+  }
+
+  private void releaseMessageFile(String chatId, String messageId, String otherUsername) {
+    serverClient
+        .releaseMessageFileAsync(messageId, chatId, otherUsername)
+        .thenWeaklyConsumeAsync(response -> {
+          if (!response.isOk()) {
+            log.warn("Failed to release file of message {} (status {})", messageId, response.getInternalStatus());
+          }
+        })
+        .thenWeaklyHandleAsync(ex -> {
+          log.warn("Failed to release file of message {}", messageId, ex);
+          return null;
+        });
+  }
+
+  /**
+   * Decrypts file parts straight into the result file. Parts are decrypted strictly in order,
+   * the ones that came ahead of time wait in the reorder buffer of the bundle.
+   * The buffer holds no more than {@value #FILE_PART_REORDER_WINDOW} parts past the next one,
+   * a part beyond it fails the load instead of piling up in memory.
+   * After the decrypted parts are written, a checkpoint to resume the download from is saved
+   */
+  private void decryptFilePart(MessageLoadBundle bundle, long partNumber, long partCount, byte[] part)
+      throws IOException {
+    synchronized (bundle) {
+      if (partNumber < bundle.nextPartNumber.get()) {
+        return; // resent by a resumed request
+      }
+      if (partNumber > bundle.nextPartNumber.get() + FILE_PART_REORDER_WINDOW) {
+        throw new IOException("Part %d is beyond the reorder window of part %d"
+            .formatted(partNumber, bundle.nextPartNumber.get()));
+      }
+      bundle.pendingParts.put(partNumber, part);
+
+      try (FileChannel fileChannel = FileChannel.open(bundle.resultPath, CREATE, WRITE)) {
+        byte[] nextPart;
+        while ((nextPart = bundle.pendingParts.remove(bundle.nextPartNumber.get())) != null) {
+          boolean isLast = bundle.nextPartNumber.incrementAndGet() == partCount;
+          byte[] data = isLast ? bundle.cipher.doFinal(nextPart) : bundle.cipher.update(nextPart);
+
+          writeFully(fileChannel, data, bundle.writtenByteCount.getAndAdd(data.length));
+          if (isLast) {
+            fileChannel.truncate(bundle.writtenByteCount.get());
+          }
+          bundle.progress().setCompletedSubTaskCount(bundle.nextPartNumber.get());
+        }
+      }
+
+      if (bundle.nextPartNumber.get() < partCount) {
+        try {
+          localStorage.saveLoadCheckpoint(bundle.chatId, new FileLoadCheckpoint(bundle.messageId,
+              bundle.resultPath, bundle.nextPartNumber.get(), bundle.writtenByteCount.get(), bundle.cipher.getState()));
+        } catch (LocalStorageWriteException ex) {
+          log.warn("Failed to save download checkpoint of message {}", bundle.messageId, ex);
+        }
+      }
     }
   }
 
@@ -794,34 +1310,14 @@ public class ApplicationStateManager {
     stage.setY((primScreenBounds.getHeight() - stage.getHeight()) / 2);
   }
 
-  private <T> ThrowingFunction<Exception, T> getFileCancellationHandler(Path path, String filePrefix) {
-    return originEx -> {
-      Exception ex = originEx;
-      while (ex instanceof ChainExecutionException && ex.getCause() instanceof Exception cause) {
-        ex = cause;
-      }
-      if (ex instanceof CancellationException) {
-        try {
-          Files.deleteIfExists(path);
-        } catch (IOException ioEx) {
-          log.warn("Failed to delete {} file after cancellation", filePrefix, ioEx);
-        }
-      }
-      throw originEx;
-    };
-  }
-
-
-  private HttpSendingProgress wrapSendingHttp(ThrowingSupplier<NoPayloadResponse> httpAction) {
-    HttpSendingProgress.Counter counter = new HttpSendingProgress.Counter();
-    counter.setFuture(ChainableFuture.supplyWeaklyAsync(() -> {
-      counter.setSubTaskCount(1);
-      NoPayloadResponse response = httpAction.get();
-      counter.incrementProgress();
+  private TaskProgress<Integer> wrapSendingHttp(ChainableFuture<NoPayloadResponse> request) {
+    TaskProgress<Integer> progress = new TaskProgress<>();
+    progress.setFuture(request.thenWeaklyMapAsync(response -> {
+      progress.incrementProgress();
       return response.getInternalStatus();
     }));
 
-    return new HttpSendingProgress(counter);
+    return progress;
   }
 
   private String getFileExtension(String fileName) {
@@ -835,6 +1331,35 @@ public class ApplicationStateManager {
     }
   }
   
+  private KeyPair takeKeyPair(Chat.Configuration config) {
+    if (isX25519KeyAgreement(config)) {
+      return x25519.generateKeyPair();
+    }
+    throwIfDHUninitialised();
+    return dh.takeKeyPair(DH_PRIVATE_KEY_BIT_LENGTH);
+  }
+
+  private BigInteger generateSessionKey(Chat.Configuration config, BigInteger privateKey,
+                                        BigInteger otherPublicKey) {
+    if (isX25519KeyAgreement(config)) {
+      return x25519.generateSessionKey(privateKey, otherPublicKey);
+    }
+    throwIfDHUninitialised();
+    return dh.generateSessionKey(privateKey, otherPublicKey);
+  }
+
+  private boolean isX25519KeyAgreement(Chat.Configuration config) {
+    return config != null && config.isX25519KeyAgreement();
+  }
+
+  private String encodePublicKey(Chat.Configuration config, BigInteger publicKey) {
+    return isX25519KeyAgreement(config) ? x25519.encodePublicKey(publicKey) : publicKey.toString();
+  }
+
+  private BigInteger decodePublicKey(Chat.Configuration config, String publicKey) {
+    return isX25519KeyAgreement(config) ? x25519.decodePublicKey(publicKey) : new BigInteger(publicKey);
+  }
+
   private void throwIfDHUninitialised() {
     if (dh == null) {
       throw new ModuleUninitialisedStateException("DH is uninitialised");
@@ -842,10 +1367,20 @@ public class ApplicationStateManager {
   }
 
   private record MessageLoadBundle(
+      String chatId,
       String messageId,
-      Progress<?> progress,
-      Progress.Counter progressCounter,
-      Path loadPath,
-      Path resultPath) {
+      String otherUsername,
+      TaskProgress<Void> progress,
+      Path resultPath,
+      SymmetricCryptoContext.ChunkCipher cipher,
+      Map<Long, byte[]> pendingParts,
+      AtomicLong nextPartNumber,
+      AtomicLong writtenByteCount) {
+
+    MessageLoadBundle(String chatId, String messageId, String otherUsername, TaskProgress<Void> progress,
+                      Path resultPath, SymmetricCryptoContext.ChunkCipher cipher) {
+      this(chatId, messageId, otherUsername, progress, resultPath, cipher,
+          new HashMap<>(), new AtomicLong(0), new AtomicLong(0));
+    }
   }
 }
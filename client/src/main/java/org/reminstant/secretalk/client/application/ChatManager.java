@@ -15,7 +15,6 @@ import org.reminstant.concurrent.ChainableFuture;
 import org.reminstant.concurrent.ConcurrentUtil;
 import org.reminstant.concurrent.Progress;
 import org.reminstant.cryptography.CryptoProvider;
-import org.reminstant.cryptography.context.CryptoProgress;
 import org.reminstant.cryptography.context.SymmetricCryptoContext;
 import org.reminstant.secretalk.client.application.control.MessageEntry;
 import org.reminstant.secretalk.client.application.control.SecretChatEntry;
@@ -33,6 +32,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
 import java.util.function.Function;
 import java.util.function.UnaryOperator;
 
@@ -40,6 +40,8 @@ import java.util.function.UnaryOperator;
 @Component
 public class ChatManager {
 
+  private static final int MESSAGE_PAGE_SIZE = 50;
+
   private final LocalStorage localStorage;
   private final HostServices hostServices;
 
@@ -48,6 +50,7 @@ public class ChatManager {
   private Label chatTitle = null;
   private ScrollPane messageHolderWrapper = null;
   private Function<Message, ChainableFuture<Integer>> onFileRequest = null;
+  private BiConsumer<String, String> onFileRelease = null;
 
   private final Map<Chat.State, Pane> stateBlocks;
   // Chat properties
@@ -60,6 +63,9 @@ public class ChatManager {
   // Message properties
   private final Map<String, MessageEntry> messageEntries;
   private final Map<String, MessageEntry> processingMessageEntries;
+  /** ID of the earliest loaded message by chat ID, while the chat has earlier messages on disk */
+  private final Map<String, String> historyCursors;
+  private final Set<String> historyLoadingChatIds;
 
 
   public ChatManager(LocalStorage localStorage, HostServices hostServices) {
@@ -75,6 +81,8 @@ public class ChatManager {
     this.activeChatState = new SimpleObjectProperty<>(null);
     this.messageEntries = new ConcurrentHashMap<>();
     this.processingMessageEntries = new ConcurrentHashMap<>();
+    this.historyCursors = new ConcurrentHashMap<>();
+    this.historyLoadingChatIds = ConcurrentHashMap.newKeySet();
 
     activeChat.addListener((_, oldActiveChat, newActiveChat) -> {
       if (oldActiveChat != null) {
@@ -98,6 +106,9 @@ public class ChatManager {
       }
 
       messageHolderWrapper.setVvalue(1);
+      if (newActiveChat != null) {
+        fillViewportWithHistory(newActiveChat.getChat().getId());
+      }
     });
   }
 
@@ -126,6 +137,13 @@ public class ChatManager {
         throw new FxControlNotFoundException("Some state blocks was not found");
       }
 
+      messageHolderWrapper.vvalueProperty().addListener((_, _, vvalue) -> {
+        SecretChatEntry chatEntry = activeChat.get();
+        if (chatEntry != null && vvalue.doubleValue() <= messageHolderWrapper.getVmin()) {
+          loadEarlierMessages(chatEntry.getChat().getId());
+        }
+      });
+
       activeChatState.addListener(_ -> chatFooter.getChildrenUnmodifiable().forEach(node -> {
         if (activeChatState.get() != null) {
           node.setVisible(activeChatState.get().equals(Chat.State.CONNECTED));
@@ -139,7 +157,8 @@ public class ChatManager {
   public void initBehaviour(Runnable onChatOpening,
                             Runnable onChatClosing,
                             Runnable onChatChanging,
-                            Function<Message, ChainableFuture<Integer>> onFileRequest) {
+                            Function<Message, ChainableFuture<Integer>> onFileRequest,
+                            BiConsumer<String, String> onFileRelease) {
     activeChat.addListener((_, oldActiveChat, newActiveChat) -> {
       if (onChatOpening != null && oldActiveChat == null) {
         onChatOpening.run();
@@ -152,28 +171,32 @@ public class ChatManager {
       }
     });
     this.onFileRequest = onFileRequest;
+    this.onFileRelease = onFileRelease;
   }
 
-  public void loadChats() {
+  /**
+   * Loads chats with their latest {@value #MESSAGE_PAGE_SIZE} messages; earlier ones are loaded
+   * once the chat is scrolled to the top. Interrupted downloads return to the requesting state
+   * since the server keeps the file until it is downloaded
+   * @return own messages of connected chats whose file upload was interrupted, by chat id
+   */
+  public Map<String, List<Message>> loadChats() {
     throwIfUninitialised();
+    Map<String, List<Message>> interruptedUploads = new HashMap<>();
     List<Chat> chats;
     try {
       chats = localStorage.getChats();
     } catch (LocalStorageReadException ex) {
       log.error("Failed to load chat data", ex);
-      return;
+      return interruptedUploads;
     }
     for (Chat chat : chats) {
       try {
-        List<Message> messages = localStorage.getMessages(chat.getId());
-        messages = messages.stream().filter(msg -> !msg.getState().equals(Message.State.CANCELLED)).toList();
-
-        for (Message message : messages) {
-          Message.State state = message.getState();
-          if (!state.equals(Message.State.SENT) && !state.equals(Message.State.REQUESTING)) {
-            localStorage.updateMessageState(chat.getId(), message.getId(), Message.State.FAILED);
-            message.setState(Message.State.FAILED);
-          }
+        List<Message> messages = readMessagePage(chat.getId(), null);
+        List<Message> chatInterruptedUploads = new ArrayList<>();
+        restoreMessageStates(chat, messages, chatInterruptedUploads);
+        if (!chatInterruptedUploads.isEmpty()) {
+          interruptedUploads.put(chat.getId(), chatInterruptedUploads);
         }
 
         createOrReconnect(chat, true);
@@ -183,6 +206,7 @@ public class ChatManager {
       }
     }
     FxUtil.runOnFxThread(this::updateChatHint);
+    return interruptedUploads;
   }
 
   public void reset() {
@@ -201,6 +225,7 @@ public class ChatManager {
       activeChat.set(null);
       messageEntries.clear();
       processingMessageEntries.clear();
+      historyCursors.clear();
     });
   }
 
@@ -225,10 +250,11 @@ public class ChatManager {
 
   public Chat.Configuration getChatConfiguration(String chatId) {
     throwIfUninitialised();
-    if (chatId == null) {
+    SecretChatEntry chatEntry = chatId != null ? secretChatEntries.get(chatId) : null;
+    if (chatEntry == null) {
       return null;
     }
-    return secretChatEntries.get(chatId).getChat().getConfiguration();
+    return chatEntry.getChat().getConfiguration();
   }
 
   public boolean isChatAboutToDelete(String chatId) {
@@ -314,8 +340,10 @@ public class ChatManager {
     throwIfUninitialised();
     SecretChatEntry chatEntry = secretChatEntries.getOrDefault(chatId, null);
     throwIfIllegalRequest(chatEntry, otherUsername);
+    releaseReceivedFiles(chatId);
     localStorage.updateChatConfig(chatId, Chat.State.DESTROYED, null);
     localStorage.clearChat(chatId);
+    historyCursors.remove(chatId);
     FxUtil.runOnFxThread(() -> {
       updateActiveChatState(chatId, Chat.State.DESTROYED);
       messageHolders.get(chatId).getChildren().clear();
@@ -328,7 +356,9 @@ public class ChatManager {
     throwIfUninitialised();
     SecretChatEntry chatEntry = secretChatEntries.getOrDefault(chatId, null);
     throwIfIllegalRequest(chatEntry);
+    releaseReceivedFiles(chatId);
     localStorage.deleteChat(chatId);
+    historyCursors.remove(chatId);
     cryptoContexts.remove(chatId);
     FxUtil.runOnFxThread(() -> {
       activeChat.set(null);
@@ -350,10 +380,9 @@ public class ChatManager {
       localStorage.saveMessage(chatId, message);
     }
 
-    MessageEntry messageEntry = new MessageEntry(message, hostServices);
+    MessageEntry messageEntry = createMessageEntry(chatId, message);
     VBox messageHolder = messageHolders.get(chatId);
 
-    messageEntries.put(message.getId(), messageEntry);
     if (!isLoadedFromDisk) {
       processingMessageEntries.put(chatId, messageEntry);
     }
@@ -367,38 +396,6 @@ public class ChatManager {
         }
       });
     });
-
-    FxUtil.runOnFxThread(() -> {
-      messageEntry.setOnCancel(() -> {
-        if (!message.isBelongedToReceiver() && message.getState().equals(Message.State.DECRYPTING)) {
-          try {
-            Files.delete(message.getFilePath());
-          } catch (IOException ex) {
-            log.warn("Failed to delete cancelled file");
-          }
-        }
-        try {
-          if (message.isBelongedToReceiver()) {
-            localStorage.updateMessageState(chatId, message.getId(), Message.State.CANCELLED);
-          } else {
-            localStorage.updateMessageState(chatId, message.getId(), Message.State.SENT);
-            localStorage.updateMessageFileName(chatId, message.getId(), null);
-          }
-        } catch (LocalStorageWriteException ex) {
-          log.warn("Failed to update message config after user cancellation", ex);
-        }
-        if (message.isBelongedToReceiver() || message.getText().isEmpty()) {
-          messageHolder.getChildren().remove(messageEntry);
-        }
-      });
-      messageEntry.setOnFileRequest(() -> {
-        onFileRequest.apply(message).thenWeaklyConsumeAsync(status -> {
-          if (status != ClientStatus.OK) {
-            log.error("Failed to request file of message '{}' (status {})", message.getId(), status);
-          }
-        });
-      });
-    });
   }
 
   public void insertMessages(String chatId, Collection<Message> messages,
@@ -408,8 +405,42 @@ public class ChatManager {
     }
   }
 
+  /**
+   * Loads the page of messages preceding the earliest loaded one and puts it on top of the chat,
+   * keeping the visible messages in place. Unfinished messages of the page are failed,
+   * since only the latest page is resumed at login.
+   * Pages keep being loaded while the active chat does not fill the viewport
+   */
+  public void loadEarlierMessages(String chatId) {
+    throwIfUninitialised();
+    String cursor = historyCursors.get(chatId);
+    if (cursor == null || !historyLoadingChatIds.add(chatId)) {
+      return;
+    }
+
+    ChainableFuture.runWeaklyAsync(() -> {
+      try {
+        Chat chat = secretChatEntries.get(chatId).getChat();
+        List<Message> messages = readMessagePage(chatId, cursor);
+        restoreMessageStates(chat, messages, null);
+        List<MessageEntry> entries = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+          entries.add(createMessageEntry(chatId, message));
+        }
+        FxUtil.runOnFxThread(() -> {
+          historyLoadingChatIds.remove(chatId);
+          prependMessageEntries(chatId, entries);
+          fillViewportWithHistory(chatId);
+        });
+      } catch (LocalStorageReadException | LocalStorageWriteException | RuntimeException ex) {
+        log.error("Failed to load earlier messages of chat '{}'", chatId, ex);
+        historyLoadingChatIds.remove(chatId);
+      }
+    });
+  }
+
   public void startMessageEncryption(String chatId, String messageId,
-                                     CryptoProgress<?> progress, boolean showProgressBar)
+                                     Progress<?> progress, boolean showProgressBar)
       throws LocalStorageWriteException {
     throwIfUninitialised();
     localStorage.updateMessageState(chatId, messageId, Message.State.ENCRYPTING);
@@ -443,7 +474,7 @@ public class ChatManager {
     FxUtil.runOnFxThread(() -> messageEntries.get(messageId).startDownloading(progress));
   }
 
-  public void startMessageDecryption(String chatId, String messageId, CryptoProgress<?> progress)
+  public void startMessageDecryption(String chatId, String messageId, Progress<?> progress)
       throws LocalStorageWriteException {
     throwIfUninitialised();
     localStorage.updateMessageState(chatId, messageId, Message.State.DECRYPTING);
@@ -474,6 +505,85 @@ public class ChatManager {
 
 
 
+  private MessageEntry createMessageEntry(String chatId, Message message) {
+    MessageEntry messageEntry = new MessageEntry(message, hostServices);
+    VBox messageHolder = messageHolders.get(chatId);
+    messageEntries.put(message.getId(), messageEntry);
+
+    FxUtil.runOnFxThread(() -> {
+      messageEntry.setOnCancel(() -> {
+        if (!message.isBelongedToReceiver() && message.getState().equals(Message.State.DECRYPTING)) {
+          try {
+            Files.delete(message.getFilePath());
+          } catch (IOException ex) {
+            log.warn("Failed to delete cancelled file");
+          }
+        }
+        try {
+          if (message.isBelongedToReceiver()) {
+            localStorage.updateMessageState(chatId, message.getId(), Message.State.CANCELLED);
+          } else {
+            localStorage.updateMessageState(chatId, message.getId(), Message.State.SENT);
+            localStorage.updateMessageFileName(chatId, message.getId(), null);
+          }
+        } catch (LocalStorageWriteException ex) {
+          log.warn("Failed to update message config after user cancellation", ex);
+        }
+        if (message.isBelongedToReceiver()) {
+          onFileRelease.accept(chatId, message.getId());
+        }
+        if (message.isBelongedToReceiver() || message.getText().isEmpty()) {
+          messageHolder.getChildren().remove(messageEntry);
+        }
+      });
+      messageEntry.setOnFileRequest(() -> {
+        onFileRequest.apply(message).thenWeaklyConsumeAsync(status -> {
+          if (status != ClientStatus.OK) {
+            log.error("Failed to request file of message '{}' (status {})", message.getId(), status);
+          }
+        });
+      });
+    });
+    return messageEntry;
+  }
+
+  private void prependMessageEntries(String chatId, List<MessageEntry> entries) {
+    VBox messageHolder = messageHolders.get(chatId);
+    if (messageHolder == null || entries.isEmpty()) {
+      return;
+    }
+    boolean isChatActive = activeChat.get() != null && activeChat.get().getChat().getId().equals(chatId);
+    double oldHeight = messageHolder.getHeight();
+
+    messageHolder.getChildren().addAll(0, entries);
+
+    if (isChatActive) {
+      messageHolderWrapper.layout();
+      double addedHeight = messageHolder.getHeight() - oldHeight;
+      double scrollableHeight = messageHolder.getHeight() - messageHolderWrapper.getViewportBounds().getHeight();
+      if (scrollableHeight > 0) {
+        messageHolderWrapper.setVvalue(Math.min(addedHeight / scrollableHeight, 1));
+      }
+    }
+  }
+
+  /**
+   * A chat whose messages do not overflow the viewport cannot be scrolled to the top to load earlier ones,
+   * e.g. when a page is mostly cancelled messages, which are not shown
+   */
+  private void fillViewportWithHistory(String chatId) {
+    VBox messageHolder = messageHolders.get(chatId);
+    boolean isChatActive = activeChat.get() != null && activeChat.get().getChat().getId().equals(chatId);
+    if (messageHolder == null || !isChatActive || !historyCursors.containsKey(chatId)) {
+      return;
+    }
+
+    messageHolderWrapper.layout();
+    if (messageHolder.getHeight() <= messageHolderWrapper.getViewportBounds().getHeight()) {
+      loadEarlierMessages(chatId);
+    }
+  }
+
   private void createOrReconnect(Chat chat, boolean isLoadedFromDisk) throws LocalStorageWriteException {
     if (!isLoadedFromDisk) {
       localStorage.saveChatConfig(chat);
@@ -516,6 +626,70 @@ public class ChatManager {
     });
   }
 
+  /** Reads a page of messages before the cursor message and moves the cursor to the earliest one read */
+  private List<Message> readMessagePage(String chatId, String cursor) throws LocalStorageReadException {
+    List<Message> page = localStorage.getMessages(chatId, cursor, MESSAGE_PAGE_SIZE);
+    if (page.size() < MESSAGE_PAGE_SIZE) {
+      historyCursors.remove(chatId);
+    } else {
+      historyCursors.put(chatId, page.getFirst().getId());
+    }
+    return page.stream().filter(msg -> !msg.getState().equals(Message.State.CANCELLED)).toList();
+  }
+
+  /**
+   * Returns unfinished messages to a state they can be continued from. Interrupted uploads are
+   * collected to be resumed, or failed if {@code interruptedUploads} is {@code null}
+   */
+  private void restoreMessageStates(Chat chat, List<Message> messages, List<Message> interruptedUploads)
+      throws LocalStorageWriteException {
+    for (Message message : messages) {
+      Message.State state = message.getState();
+      if (interruptedUploads != null && isInterruptedUpload(chat, message)) {
+        interruptedUploads.add(message);
+      } else if (isInterruptedDownload(message)) {
+        localStorage.updateMessageState(chat.getId(), message.getId(), Message.State.REQUESTING);
+        message.setState(Message.State.REQUESTING);
+      } else if (!state.equals(Message.State.SENT) && !state.equals(Message.State.REQUESTING)) {
+        localStorage.updateMessageState(chat.getId(), message.getId(), Message.State.FAILED);
+        message.setState(Message.State.FAILED);
+      }
+    }
+  }
+
+  /** Lets the server delete the files of the chat that were not downloaded yet */
+  private void releaseReceivedFiles(String chatId) {
+    List<Message> messages;
+    try {
+      messages = localStorage.getMessages(chatId);
+    } catch (LocalStorageReadException ex) {
+      log.warn("Failed to read messages of chat {} to release their files", chatId, ex);
+      return;
+    }
+    for (Message message : messages) {
+      if (message.isBelongedToReceiver() && message.getFileName() != null && !message.isImage() &&
+          !message.getState().equals(Message.State.SENT)) {
+        onFileRelease.accept(chatId, message.getId());
+      }
+    }
+  }
+
+  private boolean isInterruptedUpload(Chat chat, Message message) {
+    Message.State state = message.getState();
+    return chat.getState().equals(Chat.State.CONNECTED) &&
+        !message.isBelongedToReceiver() &&
+        message.getFileName() != null &&
+        message.getFilePath() != null && Files.exists(message.getFilePath()) &&
+        (state.equals(Message.State.ENCRYPTING) || state.equals(Message.State.UPLOADING));
+  }
+
+  private boolean isInterruptedDownload(Message message) {
+    Message.State state = message.getState();
+    return message.isBelongedToReceiver() &&
+        message.getFileName() != null && !message.isImage() &&
+        (state.equals(Message.State.DOWNLOADING) || state.equals(Message.State.DECRYPTING));
+  }
+
   private void failRequestingMessages(String chatId) throws LocalStorageWriteException {
     Set<String> requestingMessages = chatRequestingMessages.get(chatId);
     for (String messageId : new ArrayList<>(requestingMessages)) {
@@ -549,7 +723,7 @@ public class ChatManager {
   }
 
   private void throwIfUninitialised() {
-    if (chatHolder == null || onFileRequest == null) {
+    if (chatHolder == null || onFileRequest == null || onFileRelease == null) {
       throw new ModuleUninitialisedStateException("ChatManager is uninitialised");
     }
   }
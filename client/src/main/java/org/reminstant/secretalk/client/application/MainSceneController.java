@@ -73,6 +73,7 @@ public class MainSceneController implements Initializable {
   @FXML private ChoiceBox<String> chatCreationAlgoChoice;
   @FXML private ChoiceBox<String> chatCreationModeChoice;
   @FXML private ChoiceBox<String> chatCreationPaddingChoice;
+  @FXML private ChoiceBox<String> chatCreationKeyAgreementChoice;
   @FXML private NotificationLabel chatCreationNotificationLabel;
   @FXML private Button chatCreationButton;
   @FXML private Button chatCreationCancelButton;
@@ -234,7 +235,10 @@ public class MainSceneController implements Initializable {
     String cryptoSystemName = chatCreationAlgoChoice.getValue();
     String cipherMode = chatCreationModeChoice.getValue();
     String paddingMode = chatCreationPaddingChoice.getValue();
-    Chat.Configuration config = new Chat.Configuration(title, cryptoSystemName, cipherMode, paddingMode);
+    // X25519 is chosen by the user, since clients older than it read every public key as a DH one
+    String keyAgreement = chatCreationKeyAgreementChoice.getValue();
+    Chat.Configuration config = new Chat.Configuration(title, cryptoSystemName, cipherMode, paddingMode,
+        keyAgreement);
 
     chatCreationButton.setDisable(true);
 
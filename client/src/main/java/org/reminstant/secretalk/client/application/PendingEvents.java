@@ -0,0 +1,80 @@
+package org.reminstant.secretalk.client.application;
+
+import java.util.TreeMap;
+
+/**
+ * <p> Tracks events that are dispatched but not handled yet, by their stream sequence.
+ * <p> Events are handled out of order, but acknowledgement is cumulative, so only the sequences
+ * below the earliest unhandled event may be acknowledged.
+ */
+class PendingEvents {
+
+  private final TreeMap<Long, Integer> remainingParts;
+  private long lastDispatchedSequence;
+  private long lastAcknowledgedSequence;
+
+  PendingEvents() {
+    this.remainingParts = new TreeMap<>();
+    this.lastDispatchedSequence = 0;
+    this.lastAcknowledgedSequence = 0;
+  }
+
+  /**
+   * Registers an event handled in {@code partCount} parts.
+   * Returns {@code false} if the event is already dispatched, i.e. it is redelivered before acknowledgement
+   */
+  synchronized boolean dispatch(long sequence, int partCount) {
+    if (sequence <= lastDispatchedSequence) {
+      return false;
+    }
+    lastDispatchedSequence = sequence;
+    if (partCount > 0) {
+      remainingParts.put(sequence, partCount);
+    }
+    notifyAll();
+    return true;
+  }
+
+  synchronized void completePart(long sequence) {
+    Integer remaining = remainingParts.get(sequence);
+    if (remaining == null) {
+      return;
+    }
+    if (remaining > 1) {
+      remainingParts.put(sequence, remaining - 1);
+      return;
+    }
+    remainingParts.remove(sequence);
+    notifyAll();
+  }
+
+  /** Waits while at least {@code limit} events are pending */
+  synchronized void awaitFewerThan(int limit) throws InterruptedException {
+    while (remainingParts.size() >= limit) {
+      wait();
+    }
+  }
+
+  /**
+   * Waits up to the timeout for more events to become acknowledgeable.
+   * Returns the sequence to acknowledge up to, or 0 if there are no new ones
+   */
+  synchronized long awaitAcknowledgeable(long timeoutMillis) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    long sequence;
+    long left;
+    while ((sequence = getAcknowledgeableSequence()) <= lastAcknowledgedSequence &&
+        (left = deadline - System.currentTimeMillis()) > 0) {
+      wait(left);
+    }
+    return sequence > lastAcknowledgedSequence ? sequence : 0;
+  }
+
+  synchronized void markAcknowledged(long sequence) {
+    lastAcknowledgedSequence = Math.max(lastAcknowledgedSequence, sequence);
+  }
+
+  private long getAcknowledgeableSequence() {
+    return remainingParts.isEmpty() ? lastDispatchedSequence : remainingParts.firstKey() - 1;
+  }
+}
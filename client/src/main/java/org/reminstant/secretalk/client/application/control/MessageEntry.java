@@ -22,9 +22,7 @@ import javafx.scene.layout.VBox;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
-import org.reminstant.concurrent.ChainableFuture;
 import org.reminstant.concurrent.Progress;
-import org.reminstant.cryptography.context.CryptoProgress;
 import org.reminstant.secretalk.client.SpringBootWrapperApplication;
 import org.reminstant.secretalk.client.model.Message;
 import org.reminstant.secretalk.client.util.FxUtil;
@@ -192,7 +190,7 @@ public class MessageEntry extends HBox {
     });
   }
 
-  public void startDecryption(CryptoProgress<?> progress) {
+  public void startDecryption(Progress<?> progress) {
     Objects.requireNonNull(progress, "progress cannot be null");
     stateProperty.setValue(Message.State.DECRYPTING);
     FxUtil.runOnFxThread(() -> {
@@ -311,18 +309,17 @@ public class MessageEntry extends HBox {
   }
 
   private void trackProgress(Progress<?> progress) {
-    progresses.add(progress);
-    ChainableFuture.runStronglyAsync(() -> {
-      while (!progress.isDone()) {
-        Platform.runLater(() -> setProgress(progress.getProgress()));
-        Thread.sleep(200);
-      }
-      Platform.runLater(() -> setProgress(progress.getProgress()));
-      if (progress.isCompletedExceptionally()) {
-        FxUtil.runOnFxThread(this::fail);
-      }
-      progresses.remove(progress);
-    });
+    if (progresses.add(progress)) {
+      progress.addListener(this::onProgress);
+    }
+  }
+
+  private void onProgress(Progress<?> progress) {
+    double value = progress.getProgress();
+    Platform.runLater(() -> setProgress(value));
+    if (progress.isDone() && progresses.remove(progress) && progress.isCompletedExceptionally()) {
+      FxUtil.runOnFxThread(this::fail);
+    }
   }
 
   private void setProgress(double value) {
@@ -0,0 +1,20 @@
+package org.reminstant.secretalk.client.dto;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+import java.util.List;
+
+@RequiredArgsConstructor
+@Getter
+public class MissingFilePartsResponse extends NoPayloadResponse {
+
+  private final int partByteLength;
+  private final List<Long> partNumbers;
+
+  public MissingFilePartsResponse() {
+    super();
+    partByteLength = 0;
+    partNumbers = List.of();
+  }
+}
@@ -0,0 +1,18 @@
+package org.reminstant.secretalk.client.dto;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+import java.util.List;
+
+@RequiredArgsConstructor
+@Getter
+public class UserEventBatchResponse extends NoPayloadResponse {
+
+  private final List<UserEventWrapperResponse> events;
+
+  public UserEventBatchResponse() {
+    super();
+    events = List.of();
+  }
+}
@@ -1,18 +1,24 @@
 package org.reminstant.secretalk.client.dto;
 
+import com.fasterxml.jackson.annotation.JsonTypeInfo;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
+import org.reminstant.secretalk.client.model.event.UnknownEvent;
+import org.reminstant.secretalk.client.model.event.UserEvent;
 
+/** The event is parsed straight into its subclass named by the {@code eventType} property */
 @RequiredArgsConstructor
 @Getter
 public class UserEventWrapperResponse extends NoPayloadResponse {
 
-  private final String eventType;
-  private final String eventJson;
+  @JsonTypeInfo(use = JsonTypeInfo.Id.NAME, include = JsonTypeInfo.As.EXTERNAL_PROPERTY,
+      property = "eventType", defaultImpl = UnknownEvent.class)
+  private final UserEvent event;
+  private final long sequence;
 
   public UserEventWrapperResponse() {
     super();
-    eventType = null;
-    eventJson = null;
+    event = null;
+    sequence = 0;
   }
 }
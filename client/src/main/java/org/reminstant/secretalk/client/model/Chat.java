@@ -18,20 +18,30 @@ public class Chat {
       String cipherMode,
       String paddingMode,
       byte[] initVector,
-      byte[] randomDelta) {
+      byte[] randomDelta,
+      String keyAgreement) {
+
+    public static final String DH_KEY_AGREEMENT = "DH";
+    public static final String X25519_KEY_AGREEMENT = "X25519";
 
     public Configuration() {
-      this(null, null, null, null, null, null);
+      this(null, null, null, null, null, null, null);
     }
 
     public Configuration(String title, String cryptoSystemName,
-                         String cipherMode, String paddingMode) {
-      this(title, cryptoSystemName, cipherMode, paddingMode, null, null);
+                         String cipherMode, String paddingMode, String keyAgreement) {
+      this(title, cryptoSystemName, cipherMode, paddingMode, null, null, keyAgreement);
     }
 
     public Configuration(Configuration other, byte[] initVector, byte[] randomDelta) {
       this(other.title, other.cryptoSystemName, other.cipherMode,
-          other.paddingMode, initVector, randomDelta);
+          other.paddingMode, initVector, randomDelta, other.keyAgreement);
+    }
+
+    /** chats created before key agreement negotiation have no value and use DH */
+    @JsonIgnore
+    public boolean isX25519KeyAgreement() {
+      return X25519_KEY_AGREEMENT.equals(keyAgreement);
     }
   }
 
@@ -66,7 +76,7 @@ public class Chat {
     this(id,
         otherUsername,
         new Configuration(otherUsername, null,
-            null, null, null, null),
+            null, null, null, null, null),
         state,
         null);
   }
@@ -0,0 +1,14 @@
+package org.reminstant.secretalk.client.model;
+
+import org.reminstant.cryptography.context.SymmetricCryptoContext;
+
+import java.nio.file.Path;
+
+/** State of a partly downloaded file that lets its download continue after the client restarts */
+public record FileLoadCheckpoint(
+    String messageId,
+    Path resultPath,
+    long nextPartNumber,
+    long writtenByteCount,
+    SymmetricCryptoContext.ChunkState cipherState) {
+}
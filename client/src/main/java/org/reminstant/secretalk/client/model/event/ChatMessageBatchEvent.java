@@ -0,0 +1,25 @@
+package org.reminstant.secretalk.client.model.event;
+
+import lombok.Getter;
+
+import java.util.List;
+import java.util.Objects;
+
+/** Messages sent at once by the same user, in the order they were sent */
+@Getter
+public class ChatMessageBatchEvent extends UserEvent {
+
+  public static final String EVENT_NAME = "ChatMessageBatch";
+
+  private final List<ChatMessageEvent> messages;
+
+  ChatMessageBatchEvent(String id, List<ChatMessageEvent> messages) {
+    super(id);
+    Objects.requireNonNull(messages, "messages cannot be null");
+    this.messages = messages;
+  }
+
+  ChatMessageBatchEvent() {
+    this("", List.of());
+  }
+}
\ No newline at end of file
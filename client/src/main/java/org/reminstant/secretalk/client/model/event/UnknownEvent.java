@@ -1,5 +1,9 @@
 package org.reminstant.secretalk.client.model.event;
 
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+/** Event of a type this client does not know. Its fields are skipped */
+@JsonIgnoreProperties(ignoreUnknown = true)
 public class UnknownEvent extends UserEvent {
 
   UnknownEvent(String id) {
@@ -1,16 +1,23 @@
 package org.reminstant.secretalk.client.model.event;
 
-import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.annotation.JsonSubTypes;
 import lombok.Getter;
-import lombok.extern.slf4j.Slf4j;
 
-import java.io.IOException;
 import java.util.Objects;
 
-import static org.reminstant.secretalk.client.util.ObjectMappers.defaultObjectMapper;
-
-@Slf4j
 @Getter
+@JsonSubTypes({
+    @JsonSubTypes.Type(value = ChatConnectionRequestEvent.class, name = ChatConnectionRequestEvent.EVENT_NAME),
+    @JsonSubTypes.Type(value = ChatConnectionAcceptEvent.class, name = ChatConnectionAcceptEvent.EVENT_NAME),
+    @JsonSubTypes.Type(value = ChatConnectionBreakEvent.class, name = ChatConnectionBreakEvent.EVENT_NAME),
+    @JsonSubTypes.Type(value = ChatDesertEvent.class, name = ChatDesertEvent.EVENT_NAME),
+    @JsonSubTypes.Type(value = ChatDestroyEvent.class, name = ChatDestroyEvent.EVENT_NAME),
+    @JsonSubTypes.Type(value = ChatMessageEvent.class, name = ChatMessageEvent.EVENT_NAME),
+    @JsonSubTypes.Type(value = ChatMessageBatchEvent.class, name = ChatMessageBatchEvent.EVENT_NAME),
+    @JsonSubTypes.Type(value = ChatImageEvent.class, name = ChatImageEvent.EVENT_NAME),
+    @JsonSubTypes.Type(value = ChatFileEvent.class, name = ChatFileEvent.EVENT_NAME),
+    @JsonSubTypes.Type(value = VoidEvent.class, name = VoidEvent.EVENT_NAME)
+})
 public abstract class UserEvent {
 
   private final String id;
@@ -19,31 +26,4 @@ public abstract class UserEvent {
     Objects.requireNonNull(eventId, "eventId cannot be null");
     this.id = eventId;
   }
-
-  public static UserEvent getEvent(String eventType, byte[] data) throws IOException {
-    UserEvent event = switch (eventType) {
-      case ChatConnectionRequestEvent.EVENT_NAME -> defaultObjectMapper
-          .readValue(data, ChatConnectionRequestEvent.class);
-      case ChatConnectionAcceptEvent.EVENT_NAME -> defaultObjectMapper
-          .readValue(data, ChatConnectionAcceptEvent.class);
-      case ChatConnectionBreakEvent.EVENT_NAME -> defaultObjectMapper
-          .readValue(data, ChatConnectionBreakEvent.class);
-      case ChatDesertEvent.EVENT_NAME -> defaultObjectMapper.readValue(data, ChatDesertEvent.class);
-      case ChatDestroyEvent.EVENT_NAME -> defaultObjectMapper.readValue(data, ChatDestroyEvent.class);
-      case ChatMessageEvent.EVENT_NAME -> defaultObjectMapper.readValue(data, ChatMessageEvent.class);
-      case ChatImageEvent.EVENT_NAME -> defaultObjectMapper.readValue(data, ChatImageEvent.class);
-      case ChatFileEvent.EVENT_NAME -> defaultObjectMapper.readValue(data, ChatFileEvent.class);
-
-      case VoidEvent.EVENT_NAME -> VoidEvent.instance;
-
-      default -> null;
-    };
-
-    if (event == null) {
-      log.error("Got invalid event type ({})", eventType);
-      event = defaultObjectMapper.readValue(data, new TypeReference<UnknownEvent>() {});
-    }
-
-    return event;
-  }
 }
\ No newline at end of file
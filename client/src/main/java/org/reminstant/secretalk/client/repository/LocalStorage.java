@@ -2,56 +2,103 @@ package org.reminstant.secretalk.client.repository;
 
 import lombok.extern.slf4j.Slf4j;
 import org.reminstant.cryptography.Bits;
+import org.reminstant.cryptography.context.SymmetricCryptoContext;
 import org.reminstant.secretalk.client.exception.*;
 import org.reminstant.secretalk.client.model.Message;
 import org.reminstant.secretalk.client.model.Chat;
+import org.reminstant.secretalk.client.model.FileLoadCheckpoint;
+import org.reminstant.secretalk.client.repository.StorageJournal.DataFile;
+import org.reminstant.secretalk.client.repository.StorageJournal.ForcePolicy;
 import org.reminstant.secretalk.client.util.ObjectMappers;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Repository;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.stream.Stream;
 
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
 import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 import static java.nio.file.StandardOpenOption.*;
 
+/**
+ * <p> Storage of chats and their messages in the user's home folder.
+ * <p> Message data files are kept open for the session. Their mutations go through
+ * {@link StorageJournal}, so saving a message costs no syscalls on the calling thread;
+ * reads sync the journal first. A channel closed by an interrupt of one of its readers
+ * is reopened for the others.
+ * <p> Strings replaced in the dynamic data file are left there as garbage. Chats where it piles up
+ * are compacted in the background, see {@link #compactDynamicData(String)}.
+ */
 @Slf4j
 @Repository
-public class LocalStorage {
+public class LocalStorage implements DisposableBean {
 
   record FileLocation(
       long begin,
       int length) {
   }
 
-  private static final Path HOME_PATH = Path.of(System.getProperty("user.home"));
   private static final int MESSAGE_ID_BYTE_LENGTH = 36;
   private static final int AUTHOR_BYTE_LENGTH = 32;
   private static final int STRING_LOCATION_BYTE_LENGTH = 12;
   private static final int MESSAGE_CONFIG_LENGTH = 107;
+  private static final int MESSAGE_INDEX_ENTRY_LENGTH = 24;
   private static final int MAX_DYNAMIC_STRING_LENGTH = 4096;
   private static final int MAX_RESOURCE_SIZE = 1 << 20;
+  private static final int LOAD_CHECKPOINT_HEADER_LENGTH = 32;
+  private static final int STRING_LOCATIONS_OFFSET = MESSAGE_ID_BYTE_LENGTH + AUTHOR_BYTE_LENGTH;
+  private static final int COMPACTION_CHUNK_CONFIG_COUNT = 1024;
+  private static final int CLOSED_CHANNEL_MAX_ATTEMPTS = 3;
 
+  private final Path appPath;
   private final Map<String, ReadWriteLock> chatLocks;
-  private final Map<String, Long> messageConfigPositions;
+  private final Map<String, ChatDataChannels> chatDataChannels;
+  private final ForcePolicy journalForcePolicy;
+  private final long journalCommitIntervalMillis;
+  private final int journalCommitByteThreshold;
+  private final Set<String> compactionCandidateChatIds;
+  private final long compactionCheckIntervalMillis;
+  private final double compactionGarbageRatio;
+  private final long compactionMinGarbageByteLength;
 
   private String username;
+  private StorageJournal journal;
+  private ScheduledExecutorService compactor;
 
 
-  public LocalStorage() {
+  public LocalStorage(@Value("${local-storage.journal.force-policy}") ForcePolicy journalForcePolicy,
+                      @Value("${local-storage.journal.commit-interval-millis}") long journalCommitIntervalMillis,
+                      @Value("${local-storage.journal.commit-byte-threshold}") int journalCommitByteThreshold,
+                      @Value("${local-storage.compaction.check-interval-millis}") long compactionCheckIntervalMillis,
+                      @Value("${local-storage.compaction.garbage-ratio}") double compactionGarbageRatio,
+                      @Value("${local-storage.compaction.min-garbage-byte-length}") long compactionMinGarbageByteLength) {
+    this.appPath = Path.of(System.getProperty("user.home")).resolve(".secretalk");
     this.chatLocks = new ConcurrentHashMap<>();
-    this.messageConfigPositions = new ConcurrentHashMap<>();
+    this.chatDataChannels = new ConcurrentHashMap<>();
+    this.journalForcePolicy = journalForcePolicy;
+    this.journalCommitIntervalMillis = journalCommitIntervalMillis;
+    this.journalCommitByteThreshold = journalCommitByteThreshold;
+    this.compactionCandidateChatIds = ConcurrentHashMap.newKeySet();
+    this.compactionCheckIntervalMillis = compactionCheckIntervalMillis;
+    this.compactionGarbageRatio = compactionGarbageRatio;
+    this.compactionMinGarbageByteLength = compactionMinGarbageByteLength;
   }
 
   public void init(String username) throws ModuleInitialisationException {
@@ -60,8 +107,20 @@ public class LocalStorage {
     try {
       createDirectoryIfNotExist(getAppPath());
       createDirectoryIfNotExist(getUserFolderPath());
+      for (String chatId : getChatIds(getUserFolderPath())) {
+        recoverCompaction(chatId);
+      }
+
+      journal = new StorageJournal(getUserFolderPath().resolve("journal"), new StorageDataChannels(),
+          journalForcePolicy, journalCommitIntervalMillis, journalCommitByteThreshold);
+      for (String chatId : chatDataChannels.keySet()) {
+        closeChatDataChannels(chatId); // opened by the replay with the lengths from before it
+      }
 
-      indexStorage(getUserFolderPath());
+      compactor = Executors.newSingleThreadScheduledExecutor(
+          Thread.ofPlatform().name("storage-compactor").daemon(true).factory());
+      compactor.scheduleWithFixedDelay(this::compactCandidateChats,
+          compactionCheckIntervalMillis, compactionCheckIntervalMillis, TimeUnit.MILLISECONDS);
     } catch (IOException ex) {
       throw new ModuleInitialisationException("Failed to initialise local storage", ex);
     }
@@ -69,10 +128,39 @@ public class LocalStorage {
     log.info("LocalStorage INITIALIZED");
   }
 
+  /** Waits for the journal to be applied and closes the data files */
   public void reset() {
+    if (compactor != null) {
+      compactor.shutdown(); // not interrupted, since an interrupt closes the shared channels it reads
+      try {
+        if (!compactor.awaitTermination(1, TimeUnit.MINUTES)) {
+          log.warn("Storage compaction did not finish in time");
+        }
+      } catch (InterruptedException _) {
+        Thread.currentThread().interrupt();
+      }
+      compactor = null;
+    }
+    compactionCandidateChatIds.clear();
+    if (journal != null) {
+      try {
+        journal.close();
+      } catch (IOException ex) {
+        log.error("Failed to close storage journal", ex);
+      }
+      journal = null;
+    }
+    for (String chatId : chatDataChannels.keySet()) {
+      closeChatDataChannels(chatId);
+    }
     this.username = null;
   }
 
+  @Override
+  public void destroy() {
+    reset();
+  }
+
 
   public byte[] readAsBytes(Path path) throws LocalStorageReadException {
     try {
@@ -272,11 +360,16 @@ public class LocalStorage {
     lock.writeLock().lock();
 
     try {
+      journal.checkpoint();
+      closeChatDataChannels(chatId);
+      compactionCandidateChatIds.remove(chatId);
+
       Path chatStaticDataPath = getStaticDataPath(chatId);
       Path chatDynamicDataPath = getDynamicDataPath(chatId);
 
       Files.deleteIfExists(chatStaticDataPath);
       Files.deleteIfExists(chatDynamicDataPath);
+      Files.deleteIfExists(getMessageIndexPath(chatId));
     } catch (Exception e) {
       throw new LocalStorageDeletionException("Failed to delete chat data");
     } finally {
@@ -290,6 +383,10 @@ public class LocalStorage {
     lock.writeLock().lock();
 
     try {
+      journal.checkpoint();
+      closeChatDataChannels(chatId);
+      compactionCandidateChatIds.remove(chatId);
+
       Path chatFolderPath = getChatFolderPath(chatId);
       Files.walkFileTree(chatFolderPath, new FileDeleteVisitor());
     } catch (IOException e) {
@@ -307,9 +404,8 @@ public class LocalStorage {
     lock.readLock().lock();
 
     try {
-      Path staticDataPath = getStaticDataPath(chatId);
-      Path dynamicDataPath = getDynamicDataPath(chatId);
-      return readMessageById(staticDataPath, dynamicDataPath, messageId);
+      journal.sync();
+      return readMessageById(chatId, getChatDataChannels(chatId), messageId);
     } catch (IOException ex) {
       throw new LocalStorageReadException("Failed to read message", ex);
     } finally {
@@ -323,9 +419,37 @@ public class LocalStorage {
     lock.readLock().lock();
 
     try {
-      Path staticDataPath = getStaticDataPath(chatId);
-      Path dynamicDataPath = getDynamicDataPath(chatId);
-      return readMessages(staticDataPath, dynamicDataPath);
+      journal.sync();
+      return readMessages(getChatDataChannels(chatId));
+    } catch (IOException ex) {
+      throw new LocalStorageReadException("Failed to read messages", ex);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Reads up to {@code limit} messages sent right before the given one, or the latest ones
+   * if {@code beforeMessageId} is {@code null}. Messages are read backwards from it,
+   * so the cost does not depend on the history length
+   * @return messages in the order they were sent; empty list if there are no earlier messages
+   */
+  public List<Message> getMessages(String chatId, String beforeMessageId, int limit)
+      throws LocalStorageReadException {
+    throwIfUninitialised();
+    ReadWriteLock lock = getChatLock(chatId);
+    lock.readLock().lock();
+
+    try {
+      journal.sync();
+      ChatDataChannels channels = getChatDataChannels(chatId);
+      long endPos = beforeMessageId != null
+          ? getMessageConfigPosition(chatId, channels, beforeMessageId)
+          : channels.staticByteLength;
+      if (endPos == -1) {
+        throw new LocalStorageReadException("No message '%s' to read messages before".formatted(beforeMessageId));
+      }
+      return readMessagesBackwards(channels, endPos, limit);
     } catch (IOException ex) {
       throw new LocalStorageReadException("Failed to read messages", ex);
     } finally {
@@ -339,23 +463,26 @@ public class LocalStorage {
     lock.writeLock().lock();
 
     try {
-      Path staticDataPath = getStaticDataPath(chatId);
-      Path dynamicDataPath = getDynamicDataPath(chatId);
+      ChatDataChannels channels = getChatDataChannels(chatId);
 
-      FileLocation textLoc = writeDataString(dynamicDataPath, message.getText());
+      FileLocation textLoc = writeDataString(chatId, channels, message.getText());
       FileLocation fileNameLoc = new FileLocation(0, 0);
       FileLocation filePathLoc = new FileLocation(0, 0);
       if (message.getFileName() != null) {
-        fileNameLoc = writeDataString(dynamicDataPath, message.getFileName());
+        fileNameLoc = writeDataString(chatId, channels, message.getFileName());
       }
       if (message.getFilePath() != null) {
-        filePathLoc = writeDataString(dynamicDataPath, message.getFilePath().toString());
+        filePathLoc = writeDataString(chatId, channels, message.getFilePath().toString());
       }
 
-      long configPos = messageConfigPositions.getOrDefault(message.getId(), -1L);
+      long configPos = getMessageConfigPosition(chatId, channels, message.getId());
       FileLocation configLoc = writeMessageConfig(
-          staticDataPath, message, textLoc, fileNameLoc, filePathLoc, configPos);
-      messageConfigPositions.put(message.getId(), configLoc.begin());
+          chatId, channels, message, textLoc, fileNameLoc, filePathLoc, configPos);
+      if (configPos == -1) {
+        indexMessage(chatId, channels, message.getId(), configLoc.begin());
+      } else {
+        compactionCandidateChatIds.add(chatId); // the strings of the overwritten config are garbage now
+      }
     } catch (IOException ex) {
       throw new LocalStorageWriteException("Failed to save message", ex);
     } finally {
@@ -370,14 +497,13 @@ public class LocalStorage {
     lock.writeLock().lock();
 
     try {
-      long configPos = messageConfigPositions.getOrDefault(messageId, -1L);
+      long configPos = getMessageConfigPosition(chatId, getChatDataChannels(chatId), messageId);
       if (configPos == -1) {
         log.warn("No config entry for message '{}' (tried to set state '{}')", messageId, state);
         return;
       }
 
-      Path staticDataPath = getStaticDataPath(chatId);
-      rewriteMessageState(staticDataPath, configPos, state);
+      rewriteMessageState(chatId, configPos, state);
     } catch (IOException ex) {
       throw new LocalStorageWriteException("Failed to rewrite message state", ex);
     } finally {
@@ -392,7 +518,7 @@ public class LocalStorage {
     lock.writeLock().lock();
 
     try {
-      long configPos = messageConfigPositions.getOrDefault(messageId, -1L);
+      long configPos = getMessageConfigPosition(chatId, getChatDataChannels(chatId), messageId);
       if (configPos == -1) {
         log.warn("No config entry for message '{}' (tried to set file name '{}')", messageId, fileName);
         return;
@@ -400,12 +526,11 @@ public class LocalStorage {
 
       FileLocation filePathLoc = new FileLocation(0, 0);
       if (fileName != null) {
-        Path dynamicDataPath = getDynamicDataPath(chatId);
-        filePathLoc = writeDataString(dynamicDataPath, fileName);
+        filePathLoc = writeDataString(chatId, getChatDataChannels(chatId), fileName);
       }
 
-      Path staticDataPath = getStaticDataPath(chatId);
-      rewriteMessageStringLocation(staticDataPath, configPos, filePathLoc, 1);
+      rewriteMessageStringLocation(chatId, configPos, filePathLoc, 1);
+      compactionCandidateChatIds.add(chatId);
     } catch (IOException ex) {
       throw new LocalStorageWriteException("Failed to rewrite message state", ex);
     } finally {
@@ -420,16 +545,15 @@ public class LocalStorage {
     lock.writeLock().lock();
 
     try {
-      long configPos = messageConfigPositions.getOrDefault(messageId, -1L);
+      long configPos = getMessageConfigPosition(chatId, getChatDataChannels(chatId), messageId);
       if (configPos == -1) {
         log.warn("No config entry for message '{}' (tried to set file path '{}')", messageId, filePath);
         return;
       }
 
-      Path staticDataPath = getStaticDataPath(chatId);
-      Path dynamicDataPath = getDynamicDataPath(chatId);
-      FileLocation filePathLoc = writeDataString(dynamicDataPath, filePath.toString());
-      rewriteMessageStringLocation(staticDataPath, configPos, filePathLoc, 2);
+      FileLocation filePathLoc = writeDataString(chatId, getChatDataChannels(chatId), filePath.toString());
+      rewriteMessageStringLocation(chatId, configPos, filePathLoc, 2);
+      compactionCandidateChatIds.add(chatId);
     } catch (IOException ex) {
       throw new LocalStorageWriteException("Failed to rewrite message state", ex);
     } finally {
@@ -439,6 +563,75 @@ public class LocalStorage {
 
 
 
+  /** Checkpoints are replaced atomically, so a crash leaves either the previous or the new one */
+  public void saveLoadCheckpoint(String chatId, FileLoadCheckpoint checkpoint) throws LocalStorageWriteException {
+    throwIfUninitialised();
+    byte[] resultPath = checkpoint.resultPath().toString().getBytes(StandardCharsets.UTF_8);
+    byte[] chainVector = checkpoint.cipherState().chainVector();
+    ByteBuffer buffer = ByteBuffer
+        .allocate(LOAD_CHECKPOINT_HEADER_LENGTH + resultPath.length +
+            (chainVector != null ? chainVector.length : 0))
+        .putInt(resultPath.length)
+        .put(resultPath)
+        .putLong(checkpoint.nextPartNumber())
+        .putLong(checkpoint.writtenByteCount())
+        .putLong(checkpoint.cipherState().processedBlockCount())
+        .putInt(chainVector != null ? chainVector.length : -1);
+    if (chainVector != null) {
+      buffer.put(chainVector);
+    }
+
+    try {
+      Path loadsPath = getLoadCheckpointFolderPath(chatId);
+      createDirectoryIfNotExist(loadsPath);
+      Path tmpPath = loadsPath.resolve(checkpoint.messageId() + ".tmp");
+      Files.write(tmpPath, buffer.array());
+      Files.move(tmpPath, getLoadCheckpointPath(chatId, checkpoint.messageId()), REPLACE_EXISTING, ATOMIC_MOVE);
+    } catch (IOException ex) {
+      throw new LocalStorageWriteException("Failed to save download checkpoint", ex);
+    }
+  }
+
+  public Optional<FileLoadCheckpoint> getLoadCheckpoint(String chatId, String messageId)
+      throws LocalStorageReadException {
+    throwIfUninitialised();
+    Path checkpointPath = getLoadCheckpointPath(chatId, messageId);
+    if (!Files.exists(checkpointPath)) {
+      return Optional.empty();
+    }
+
+    try {
+      ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(checkpointPath));
+      byte[] resultPath = new byte[buffer.getInt()];
+      buffer.get(resultPath);
+      long nextPartNumber = buffer.getLong();
+      long writtenByteCount = buffer.getLong();
+      long processedBlockCount = buffer.getLong();
+      int chainVectorLength = buffer.getInt();
+      byte[] chainVector = null;
+      if (chainVectorLength >= 0) {
+        chainVector = new byte[chainVectorLength];
+        buffer.get(chainVector);
+      }
+      return Optional.of(new FileLoadCheckpoint(messageId,
+          Path.of(new String(resultPath, StandardCharsets.UTF_8)), nextPartNumber, writtenByteCount,
+          new SymmetricCryptoContext.ChunkState(chainVector, processedBlockCount)));
+    } catch (IOException | RuntimeException ex) {
+      throw new LocalStorageReadException("Failed to read download checkpoint", ex);
+    }
+  }
+
+  public void deleteLoadCheckpoint(String chatId, String messageId) throws LocalStorageDeletionException {
+    throwIfUninitialised();
+    try {
+      Files.deleteIfExists(getLoadCheckpointPath(chatId, messageId));
+    } catch (IOException ex) {
+      throw new LocalStorageDeletionException("Failed to delete download checkpoint", ex);
+    }
+  }
+
+
+
   private List<String> getChatIds(Path chatHolderPath) throws IOException {
     try (Stream<Path> paths = Files.walk(chatHolderPath, 1)) {
       return paths
@@ -449,168 +642,186 @@ public class LocalStorage {
     }
   }
 
-  private void indexStorage(Path chatHolderPath) throws IOException {
-    List<String> chatIds = getChatIds(chatHolderPath);
-    for (String chatId : chatIds) {
-      Path staticDataPath = getStaticDataPath(chatId);
-      try (FileChannel configChannel = FileChannel.open(staticDataPath, CREATE, READ, WRITE)) {
-        byte[] messageIdBuffer = new byte[MESSAGE_ID_BYTE_LENGTH];
-        for (int i = 0; i < configChannel.size(); i += MESSAGE_CONFIG_LENGTH) {
-          int read = configChannel.read(ByteBuffer.wrap(messageIdBuffer), i);
-          if (read != MESSAGE_ID_BYTE_LENGTH) {
-            log.warn("Failed to read all {} bytes of message ID while indexing", MESSAGE_ID_BYTE_LENGTH);
-          }
-          String readMsgId = new String(messageIdBuffer, StandardCharsets.UTF_8).trim();
-          messageConfigPositions.put(readMsgId, (long) i);
-        }
-      }
-    }
+  /** Allocates the string at the end of the dynamic data file and journals it */
+  private FileLocation writeDataString(String chatId, ChatDataChannels channels, String str) throws IOException {
+    byte[] data = str.getBytes(StandardCharsets.UTF_8);
+    long beginPos = channels.dynamicByteLength;
+    journal.write(chatId, DataFile.DYNAMIC, beginPos, data);
+    channels.dynamicByteLength += data.length;
+    return new FileLocation(beginPos, data.length);
   }
 
-  private FileLocation writeDataString(Path path, String str) throws IOException {
-    try (FileChannel channel = FileChannel.open(path, CREATE, WRITE, APPEND)) {
-      long beginPos = channel.position();
-      int length = channel.write(ByteBuffer.wrap(str.getBytes(StandardCharsets.UTF_8)));
-      return new FileLocation(beginPos, length);
-    }
-  }
+  private FileLocation writeMessageConfig(String chatId, ChatDataChannels channels, Message message,
+                                          FileLocation textLoc, FileLocation fileNameLoc,
+                                          FileLocation filePathLoc, long position) throws IOException {
+    long beginPos = position != -1 ? position : channels.staticByteLength;
 
-  private FileLocation writeMessageConfig(Path path, Message message, FileLocation textLoc,
-                                          FileLocation fileNameLoc, FileLocation filePathLoc,
-                                          long position) throws IOException {
-    try (FileChannel channel = FileChannel.open(path, CREATE, WRITE)) {
-      long beginPos = position != -1 ? position : channel.size();
-      int length = 0;
+    byte[] msgIdBuffer = message.getId().getBytes();
+    byte[] authorBuffer = message.getAuthor().getBytes();
+    byte[] locBuffer = new byte[36];
+    byte[] stateBuffer = new byte[3];
+
+    Bits.unpackLongToBigEndian(textLoc.begin(), locBuffer, 0);
+    Bits.unpackIntToBigEndian(textLoc.length(), locBuffer, 8);
+    Bits.unpackLongToBigEndian(fileNameLoc.begin(), locBuffer, 12);
+    Bits.unpackIntToBigEndian(fileNameLoc.length(), locBuffer, 20);
+    Bits.unpackLongToBigEndian(filePathLoc.begin(), locBuffer, 24);
+    Bits.unpackIntToBigEndian(filePathLoc.length(), locBuffer, 32);
+    stateBuffer[0] = (byte) (message.isBelongedToReceiver() ? 1 : 0);
+    stateBuffer[1] = (byte) (message.getState().ordinal());
+    stateBuffer[2] = (byte) (message.isImage() ? 1 : 0);
+
+    if (msgIdBuffer.length != MESSAGE_ID_BYTE_LENGTH) {
+      msgIdBuffer = Arrays.copyOf(msgIdBuffer, MESSAGE_ID_BYTE_LENGTH);
+    }
+    if (authorBuffer.length != AUTHOR_BYTE_LENGTH) {
+      authorBuffer = Arrays.copyOf(authorBuffer, AUTHOR_BYTE_LENGTH);
+    }
 
-      byte[] msgIdBuffer = message.getId().getBytes();
-      byte[] authorBuffer = message.getAuthor().getBytes();
-      byte[] locBuffer = new byte[36];
-      byte[] stateBuffer = new byte[3];
+    ByteBuffer config = ByteBuffer.allocate(MESSAGE_CONFIG_LENGTH)
+        .put(msgIdBuffer)
+        .put(authorBuffer)
+        .put(locBuffer)
+        .put(stateBuffer);
+    if (config.hasRemaining()) {
+      throw new IOException("Message config has unexpected length");
+    }
 
-      Bits.unpackLongToBigEndian(textLoc.begin(), locBuffer, 0);
-      Bits.unpackIntToBigEndian(textLoc.length(), locBuffer, 8);
-      Bits.unpackLongToBigEndian(fileNameLoc.begin(), locBuffer, 12);
-      Bits.unpackIntToBigEndian(fileNameLoc.length(), locBuffer, 20);
-      Bits.unpackLongToBigEndian(filePathLoc.begin(), locBuffer, 24);
-      Bits.unpackIntToBigEndian(filePathLoc.length(), locBuffer, 32);
-      stateBuffer[0] = (byte) (message.isBelongedToReceiver() ? 1 : 0);
-      stateBuffer[1] = (byte) (message.getState().ordinal());
-      stateBuffer[2] = (byte) (message.isImage() ? 1 : 0);
+    journal.write(chatId, DataFile.STATIC, beginPos, config.array());
+    channels.staticByteLength = Math.max(channels.staticByteLength, beginPos + MESSAGE_CONFIG_LENGTH);
+    return new FileLocation(beginPos, MESSAGE_CONFIG_LENGTH);
+  }
 
-      if (msgIdBuffer.length != MESSAGE_ID_BYTE_LENGTH) {
-        msgIdBuffer = Arrays.copyOf(msgIdBuffer, MESSAGE_ID_BYTE_LENGTH);
-      }
-      if (authorBuffer.length != AUTHOR_BYTE_LENGTH) {
-        authorBuffer = Arrays.copyOf(authorBuffer, AUTHOR_BYTE_LENGTH);
-      }
+  private void rewriteMessageState(String chatId, long messageConfigPosition,
+                                   Message.State state) throws IOException {
+    byte[] stateBuffer = new byte[1];
+    stateBuffer[0] = (byte) (state.ordinal());
 
-      channel.position(beginPos);
-      length += channel.write(ByteBuffer.wrap(msgIdBuffer));
-      length += channel.write(ByteBuffer.wrap(authorBuffer));
-      length += channel.write(ByteBuffer.wrap(locBuffer));
-      length += channel.write(ByteBuffer.wrap(stateBuffer));
+    int offset = MESSAGE_ID_BYTE_LENGTH + AUTHOR_BYTE_LENGTH + 3 * STRING_LOCATION_BYTE_LENGTH + 1;
+    journal.write(chatId, DataFile.STATIC, messageConfigPosition + offset, stateBuffer);
+  }
 
-      if (length != MESSAGE_CONFIG_LENGTH) {
-        try (RandomAccessFile randomAccessFile = new RandomAccessFile(path.toFile(), "rw")) {
-          randomAccessFile.setLength(beginPos);
-        }
-        throw new IOException("Message config has unexpected length");
-      }
+  private void rewriteMessageStringLocation(String chatId, long messageConfigPosition,
+                                            FileLocation filePathLoc, int index) throws IOException {
+    byte[] locBuffer = new byte[12];
+    Bits.unpackLongToBigEndian(filePathLoc.begin(), locBuffer, 0);
+    Bits.unpackIntToBigEndian(filePathLoc.length(), locBuffer, 8);
 
-      return new FileLocation(beginPos, length);
-    }
+    int offset = MESSAGE_ID_BYTE_LENGTH + AUTHOR_BYTE_LENGTH + index * STRING_LOCATION_BYTE_LENGTH;
+    journal.write(chatId, DataFile.STATIC, messageConfigPosition + offset, locBuffer);
   }
 
-  private void rewriteMessageState(Path staticDataPath, Long messageConfigPosition,
-                                   Message.State state) throws IOException {
-    try (FileChannel channel = FileChannel.open(staticDataPath, WRITE)) {
-      byte[] stateBuffer = new byte[1];
-      stateBuffer[0] = (byte) (state.ordinal());
+  /** Returns -1 if the chat has no such message */
+  private long getMessageConfigPosition(String chatId, ChatDataChannels channels, String messageId)
+      throws IOException {
+    return getMessagePositions(chatId, channels).getOrDefault(toIndexKey(messageId), -1L);
+  }
 
-      int offset = MESSAGE_ID_BYTE_LENGTH + AUTHOR_BYTE_LENGTH + 3 * STRING_LOCATION_BYTE_LENGTH + 1;
-      channel.position(messageConfigPosition + offset);
-      int length = channel.write(ByteBuffer.wrap(stateBuffer));
+  /**
+   * Loads the message index of the chat on first access. Index entries follow the message configs
+   * in the same order, so configs appended without an index entry, e.g. by an older version,
+   * are indexed from the tail of the static data file
+   */
+  private Map<UUID, Long> getMessagePositions(String chatId, ChatDataChannels channels) throws IOException {
+    synchronized (channels) {
+      if (channels.messagePositions != null) {
+        return channels.messagePositions;
+      }
 
-      if (length != stateBuffer.length) {
-        throw new IOException("Failed to rewrite state");
+      Map<UUID, Long> positions = new HashMap<>();
+      long entryCount = channels.indexByteLength / MESSAGE_INDEX_ENTRY_LENGTH;
+      ByteBuffer index = ByteBuffer.allocate(Math.toIntExact(entryCount * MESSAGE_INDEX_ENTRY_LENGTH));
+      readFully(channels, DataFile.INDEX, index, 0);
+      index.flip();
+      while (index.remaining() >= MESSAGE_INDEX_ENTRY_LENGTH) {
+        positions.put(new UUID(index.getLong(), index.getLong()), index.getLong());
+      }
+      channels.messagePositions = positions;
+      channels.indexByteLength = entryCount * MESSAGE_INDEX_ENTRY_LENGTH;
+
+      byte[] messageIdBuffer = new byte[MESSAGE_ID_BYTE_LENGTH];
+      long configPos = entryCount * MESSAGE_CONFIG_LENGTH;
+      for (; configPos + MESSAGE_CONFIG_LENGTH <= channels.staticByteLength; configPos += MESSAGE_CONFIG_LENGTH) {
+        readFully(channels, DataFile.STATIC, ByteBuffer.wrap(messageIdBuffer), configPos);
+        String messageId = new String(messageIdBuffer, StandardCharsets.UTF_8).trim();
+        indexMessage(chatId, channels, messageId, configPos);
       }
+      return positions;
     }
   }
 
-  private void rewriteMessageStringLocation(Path staticDataPath, Long messageConfigPosition,
-                                            FileLocation filePathLoc, int index) throws IOException {
-    try (FileChannel channel = FileChannel.open(staticDataPath, WRITE)) {
-      byte[] locBuffer = new byte[12];
-      Bits.unpackLongToBigEndian(filePathLoc.begin(), locBuffer, 0);
-      Bits.unpackIntToBigEndian(filePathLoc.length(), locBuffer, 8);
-
-      int offset = MESSAGE_ID_BYTE_LENGTH + AUTHOR_BYTE_LENGTH + index * STRING_LOCATION_BYTE_LENGTH;
-      channel.position(messageConfigPosition + offset);
-      int length = channel.write(ByteBuffer.wrap(locBuffer));
+  private void indexMessage(String chatId, ChatDataChannels channels, String messageId, long configPos)
+      throws IOException {
+    UUID key = toIndexKey(messageId);
+    ByteBuffer entry = ByteBuffer.allocate(MESSAGE_INDEX_ENTRY_LENGTH)
+        .putLong(key.getMostSignificantBits())
+        .putLong(key.getLeastSignificantBits())
+        .putLong(configPos);
+    journal.write(chatId, DataFile.INDEX, channels.indexByteLength, entry.array());
+    channels.indexByteLength += MESSAGE_INDEX_ENTRY_LENGTH;
+    channels.messagePositions.put(key, configPos);
+  }
 
-      if (length != locBuffer.length) {
-        throw new IOException("Failed to rewrite filePath");
-      }
+  /** Message IDs are UUIDs; any other ID is keyed by its name-based UUID */
+  private static UUID toIndexKey(String messageId) {
+    try {
+      return UUID.fromString(messageId);
+    } catch (IllegalArgumentException _) {
+      return UUID.nameUUIDFromBytes(messageId.getBytes(StandardCharsets.UTF_8));
     }
   }
 
-  private String readDataString(FileChannel channel, FileLocation loc) throws IOException {
+  private String readDataString(ChatDataChannels channels, FileLocation loc) throws IOException {
     byte[] buffer = new byte[loc.length()];
-    channel.read(ByteBuffer.wrap(buffer), loc.begin());
+    readFully(channels, DataFile.DYNAMIC, ByteBuffer.wrap(buffer), loc.begin());
     return new String(buffer);
   }
 
-  private Optional<Message> readMessageById(Path staticDataPath, Path dynamicDataPath, String msgId)
+  private Optional<Message> readMessageById(String chatId, ChatDataChannels channels, String msgId)
       throws IOException {
-    try (FileChannel staticDataChannel = FileChannel.open(staticDataPath, CREATE, READ, WRITE);
-         FileChannel dynamicDataChannel = FileChannel.open(dynamicDataPath, CREATE, READ, WRITE)) {
-      long pos = messageConfigPositions.getOrDefault(msgId, -1L);
-      if (pos == -1) {
-        byte[] chatIdBuffer = new byte[MESSAGE_ID_BYTE_LENGTH];
-        for (int i = 0; i < staticDataChannel.size(); i += MESSAGE_CONFIG_LENGTH) {
-          @SuppressWarnings("unused")
-          int readLength = staticDataChannel.read(ByteBuffer.wrap(chatIdBuffer));
-          String readMsgId = new String(chatIdBuffer, StandardCharsets.UTF_8);
-          if (readMsgId.equals(msgId)) {
-            pos = i;
-            break;
-          }
-        }
-      }
-
-      if (pos == -1) {
-        return Optional.empty();
-      }
-
-      return Optional.of(readMessage(staticDataChannel, dynamicDataChannel, pos));
+    long pos = getMessageConfigPosition(chatId, channels, msgId);
+    if (pos == -1) {
+      return Optional.empty();
     }
-  }
 
-  private List<Message> readMessages(Path staticDataPath, Path dynamicDataPath) throws IOException {
-    try (FileChannel staticDataChannel = FileChannel.open(staticDataPath, CREATE, READ, WRITE);
-         FileChannel dynamicDataChannel = FileChannel.open(dynamicDataPath, CREATE, READ, WRITE)) {
-      List<Message> messages = new ArrayList<>();
+    return Optional.of(readMessage(channels, pos));
+  }
 
-      for (int i = 0; i < staticDataChannel.size(); i += MESSAGE_CONFIG_LENGTH) {
-        messages.add(readMessage(staticDataChannel, dynamicDataChannel, i));
-      }
+  private List<Message> readMessages(ChatDataChannels channels) throws IOException {
+    List<Message> messages = new ArrayList<>();
 
-      return messages;
+    for (long i = 0; i < channels.staticByteLength; i += MESSAGE_CONFIG_LENGTH) {
+      messages.add(readMessage(channels, i));
     }
+
+    return messages;
   }
 
-  private Message readMessage(FileChannel staticDataChannel, FileChannel dynamicDataChannel, long pos)
+  private List<Message> readMessagesBackwards(ChatDataChannels channels, long endPos, int limit)
       throws IOException {
+    Deque<Message> messages = new ArrayDeque<>(limit);
+    long pos = endPos - endPos % MESSAGE_CONFIG_LENGTH - MESSAGE_CONFIG_LENGTH;
+    for (; pos >= 0 && messages.size() < limit; pos -= MESSAGE_CONFIG_LENGTH) {
+      messages.addFirst(readMessage(channels, pos));
+    }
+    return new ArrayList<>(messages);
+  }
+
+  private Message readMessage(ChatDataChannels channels, long pos) throws IOException {
     byte[] msgIdBuffer = new byte[MESSAGE_ID_BYTE_LENGTH];
     byte[] authorBuffer = new byte[AUTHOR_BYTE_LENGTH];
     byte[] locBuffer = new byte[36];
     byte[] stateBuffer = new byte[3];
 
-    staticDataChannel.position(pos);
-    staticDataChannel.read(ByteBuffer.wrap(msgIdBuffer));
-    staticDataChannel.read(ByteBuffer.wrap(authorBuffer));
-    staticDataChannel.read(ByteBuffer.wrap(locBuffer));
-    staticDataChannel.read(ByteBuffer.wrap(stateBuffer));
+    ByteBuffer config = ByteBuffer.allocate(MESSAGE_CONFIG_LENGTH);
+    if (readFully(channels, DataFile.STATIC, config, pos) != MESSAGE_CONFIG_LENGTH) {
+      throw new IOException("Corrupted chat config");
+    }
+    config.flip()
+        .get(msgIdBuffer)
+        .get(authorBuffer)
+        .get(locBuffer)
+        .get(stateBuffer);
 
     String msgId = new String(msgIdBuffer, StandardCharsets.UTF_8).trim();
     String author = new String(authorBuffer, StandardCharsets.UTF_8).trim();
@@ -630,14 +841,14 @@ public class LocalStorage {
       throw new IOException("Corrupted chat config");
     }
 
-    String text = readDataString(dynamicDataChannel, new FileLocation(textBegin, textLength));
+    String text = readDataString(channels, new FileLocation(textBegin, textLength));
     String fileName = null;
     Path filePath = null;
     if (fileNameLength > 0) {
-      fileName = readDataString(dynamicDataChannel, new FileLocation(fileNameBegin, fileNameLength));
+      fileName = readDataString(channels, new FileLocation(fileNameBegin, fileNameLength));
     }
     if (filePathLength > 0) {
-      filePath = Path.of(readDataString(dynamicDataChannel, new FileLocation(filePathBegin, filePathLength)));
+      filePath = Path.of(readDataString(channels, new FileLocation(filePathBegin, filePathLength)));
     }
 
     return new Message(msgId, text, author, fileName, isBelongedToReceiver, filePath, isImage, state);
@@ -645,6 +856,229 @@ public class LocalStorage {
 
 
 
+  private void compactCandidateChats() {
+    for (String chatId : List.copyOf(compactionCandidateChatIds)) {
+      compactionCandidateChatIds.remove(chatId);
+      try {
+        if (isDynamicDataWasteful(chatId)) {
+          compactDynamicData(chatId);
+        }
+      } catch (IOException | RuntimeException ex) {
+        log.warn("Failed to compact dynamic data of chat {}", chatId, ex);
+      }
+    }
+  }
+
+  /** Whether the garbage of the dynamic data file exceeds both the ratio to the live strings and the minimum */
+  private boolean isDynamicDataWasteful(String chatId) throws IOException {
+    ReadWriteLock lock = getChatLock(chatId);
+    lock.readLock().lock();
+
+    try {
+      journal.sync();
+      ChatDataChannels channels = getChatDataChannels(chatId);
+      long liveByteLength = 0;
+      for (long pos = 0; pos + MESSAGE_CONFIG_LENGTH <= channels.staticByteLength; pos += MESSAGE_CONFIG_LENGTH) {
+        for (FileLocation loc : readStringLocations(channels, pos)) {
+          liveByteLength += loc.length();
+        }
+      }
+      long garbageByteLength = channels.dynamicByteLength - liveByteLength;
+      return garbageByteLength >= compactionMinGarbageByteLength &&
+          garbageByteLength >= liveByteLength * compactionGarbageRatio;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * <p> Rewrites the dynamic data file of the chat with its live strings only.
+   * <p> The strings referred to at the start are copied without holding the chat lock.
+   * Then, under the write lock, the strings appended meanwhile are copied as they are,
+   * the static data file is rewritten with the new locations and both files are swapped.
+   * Message positions do not change, so the message index stays valid.
+   * <p> The swap is committed by a marker file, so a crash in the middle of it
+   * is rolled forward on the next {@link #init(String)}.
+   */
+  private void compactDynamicData(String chatId) throws IOException {
+    ReadWriteLock lock = getChatLock(chatId);
+    ChatDataChannels channels;
+    long staticSnapshotLength;
+    long dynamicSnapshotLength;
+    lock.readLock().lock();
+    try {
+      journal.sync();
+      channels = getChatDataChannels(chatId);
+      staticSnapshotLength = channels.staticByteLength;
+      dynamicSnapshotLength = channels.dynamicByteLength;
+    } finally {
+      lock.readLock().unlock();
+    }
+
+    Path compactedStaticDataPath = getCompactedPath(getStaticDataPath(chatId));
+    Path compactedDynamicDataPath = getCompactedPath(getDynamicDataPath(chatId));
+    boolean isCommitted = false;
+    try (FileChannel compactedDynamicChannel = FileChannel.open(compactedDynamicDataPath,
+        CREATE, TRUNCATE_EXISTING, WRITE)) {
+      // configs may be rewritten meanwhile, so these locations are only a guess checked under the lock
+      Map<FileLocation, Long> newBegins = new HashMap<>();
+      for (long pos = 0; pos + MESSAGE_CONFIG_LENGTH <= staticSnapshotLength; pos += MESSAGE_CONFIG_LENGTH) {
+        for (FileLocation loc : readStringLocations(channels, pos)) {
+          if (loc.length() > 0 && loc.begin() + loc.length() <= dynamicSnapshotLength &&
+              !newBegins.containsKey(loc)) {
+            newBegins.put(loc, compactedDynamicChannel.position());
+            copyDataBytes(channels, loc.begin(), loc.length(), compactedDynamicChannel);
+          }
+        }
+      }
+
+      lock.writeLock().lock();
+      try {
+        if (chatDataChannels.get(chatId) != channels) {
+          return; // cleared or deleted meanwhile
+        }
+        journal.checkpoint(); // no journal record may refer to the old locations after the swap
+
+        long tailBegin = compactedDynamicChannel.position();
+        copyDataBytes(channels, dynamicSnapshotLength,
+            channels.dynamicByteLength - dynamicSnapshotLength, compactedDynamicChannel);
+
+        try (FileChannel compactedStaticChannel = FileChannel.open(compactedStaticDataPath,
+            CREATE, TRUNCATE_EXISTING, WRITE)) {
+          ByteBuffer chunk = ByteBuffer.allocate(MESSAGE_CONFIG_LENGTH * COMPACTION_CHUNK_CONFIG_COUNT);
+          for (long chunkPos = 0; chunkPos < channels.staticByteLength; chunkPos += chunk.limit()) {
+            chunk.clear().limit((int) Math.min(chunk.capacity(), channels.staticByteLength - chunkPos));
+            if (readFully(channels, DataFile.STATIC, chunk, chunkPos) != chunk.limit()) {
+              throw new IOException("Static data file ended unexpectedly");
+            }
+
+            for (int configOffset = 0; configOffset + MESSAGE_CONFIG_LENGTH <= chunk.limit();
+                 configOffset += MESSAGE_CONFIG_LENGTH) {
+              for (int i = 0; i < 3; ++i) {
+                int locOffset = configOffset + STRING_LOCATIONS_OFFSET + i * STRING_LOCATION_BYTE_LENGTH;
+                FileLocation loc = new FileLocation(chunk.getLong(locOffset), chunk.getInt(locOffset + 8));
+                long newBegin;
+                if (loc.length() == 0) {
+                  newBegin = 0;
+                } else if (loc.begin() >= dynamicSnapshotLength) {
+                  newBegin = loc.begin() - dynamicSnapshotLength + tailBegin;
+                } else if (newBegins.containsKey(loc)) {
+                  newBegin = newBegins.get(loc);
+                } else {
+                  newBegin = compactedDynamicChannel.position();
+                  copyDataBytes(channels, loc.begin(), loc.length(), compactedDynamicChannel);
+                }
+                chunk.putLong(locOffset, newBegin);
+              }
+            }
+
+            chunk.flip();
+            while (chunk.hasRemaining()) {
+              compactedStaticChannel.write(chunk, chunkPos + chunk.position());
+            }
+          }
+          compactedStaticChannel.force(false);
+        }
+        compactedDynamicChannel.force(false);
+
+        closeChatDataChannels(chatId);
+        Files.createFile(getCompactionMarkerPath(chatId));
+        isCommitted = true;
+        recoverCompaction(chatId);
+        log.debug("Compacted dynamic data of chat {} from {} to {} bytes",
+            chatId, channels.dynamicByteLength, compactedDynamicChannel.size());
+      } finally {
+        lock.writeLock().unlock();
+      }
+    } finally {
+      if (!isCommitted) { // a committed swap that failed midway is rolled forward on the next init
+        Files.deleteIfExists(compactedStaticDataPath);
+        Files.deleteIfExists(compactedDynamicDataPath);
+      }
+    }
+  }
+
+  /** Rolls a committed compaction forward, or drops the files of an uncommitted one */
+  private void recoverCompaction(String chatId) throws IOException {
+    Path markerPath = getCompactionMarkerPath(chatId);
+    Path staticDataPath = getStaticDataPath(chatId);
+    Path dynamicDataPath = getDynamicDataPath(chatId);
+    if (Files.exists(markerPath)) {
+      for (Path path : List.of(staticDataPath, dynamicDataPath)) {
+        Path compactedPath = getCompactedPath(path);
+        if (Files.exists(compactedPath)) {
+          Files.move(compactedPath, path, REPLACE_EXISTING, ATOMIC_MOVE);
+        }
+      }
+      Files.delete(markerPath);
+    } else {
+      Files.deleteIfExists(getCompactedPath(staticDataPath));
+      Files.deleteIfExists(getCompactedPath(dynamicDataPath));
+    }
+  }
+
+  private FileLocation[] readStringLocations(ChatDataChannels channels, long configPos) throws IOException {
+    ByteBuffer locBuffer = ByteBuffer.allocate(3 * STRING_LOCATION_BYTE_LENGTH);
+    if (readFully(channels, DataFile.STATIC, locBuffer, configPos + STRING_LOCATIONS_OFFSET) !=
+        locBuffer.capacity()) {
+      throw new IOException("Corrupted chat config");
+    }
+    locBuffer.flip();
+    return new FileLocation[] {
+        new FileLocation(locBuffer.getLong(), locBuffer.getInt()),
+        new FileLocation(locBuffer.getLong(), locBuffer.getInt()),
+        new FileLocation(locBuffer.getLong(), locBuffer.getInt())
+    };
+  }
+
+  /** Appends the bytes to the target at its position */
+  private static void copyDataBytes(ChatDataChannels source, long position, long length, FileChannel target)
+      throws IOException {
+    long copiedLength = 0;
+    int attempt = 1;
+    while (copiedLength < length) {
+      long targetPosition = target.position();
+      try {
+        long transferred = source.get(DataFile.DYNAMIC)
+            .transferTo(position + copiedLength, length - copiedLength, target);
+        if (transferred <= 0) {
+          throw new IOException("Dynamic data file ended unexpectedly");
+        }
+        copiedLength += transferred;
+      } catch (ClosedChannelException ex) {
+        if (Thread.currentThread().isInterrupted() || ++attempt > CLOSED_CHANNEL_MAX_ATTEMPTS) {
+          throw ex;
+        }
+        target.position(targetPosition);
+      }
+    }
+  }
+
+  /**
+   * Positional read until the buffer is full or the file ends; returns the number of bytes read.
+   * If another thread's interrupt closes the channel meanwhile, the read is repeated on the reopened one
+   */
+  private static int readFully(ChatDataChannels channels, DataFile file, ByteBuffer buffer, long position)
+      throws IOException {
+    int start = buffer.position();
+    for (int attempt = 1; ; ++attempt) {
+      try {
+        FileChannel channel = channels.get(file);
+        while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position() - start) >= 0) {
+          // reads until the buffer or the file ends
+        }
+        return buffer.position() - start;
+      } catch (ClosedChannelException ex) {
+        if (Thread.currentThread().isInterrupted() || attempt == CLOSED_CHANNEL_MAX_ATTEMPTS) {
+          throw ex;
+        }
+        buffer.position(start);
+      }
+    }
+  }
+
+
+
   private void createDirectoryIfNotExist(Path path) throws IOException {
     if (Files.exists(path)) {
       if (!Files.isDirectory(path)) {
@@ -660,7 +1094,7 @@ public class LocalStorage {
   }
 
   private Path getAppPath() {
-    return HOME_PATH.resolve(".secretalk");
+    return appPath;
   }
 
   private Path getTmpPath() {
@@ -691,6 +1125,52 @@ public class LocalStorage {
     return getChatFolderPath(chatId).resolve("data1");
   }
 
+  private Path getMessageIndexPath(String chatId) {
+    return getChatFolderPath(chatId).resolve("index");
+  }
+
+  private Path getCompactionMarkerPath(String chatId) {
+    return getChatFolderPath(chatId).resolve("compaction");
+  }
+
+  private Path getCompactedPath(Path dataPath) {
+    return dataPath.resolveSibling(dataPath.getFileName() + ".compacted");
+  }
+
+  private Path getLoadCheckpointFolderPath(String chatId) {
+    return getChatFolderPath(chatId).resolve("loads");
+  }
+
+  private Path getLoadCheckpointPath(String chatId, String messageId) {
+    return getLoadCheckpointFolderPath(chatId).resolve(messageId);
+  }
+
+  /** Opens the data files of the chat on first access; they stay open until the chat is cleared or deleted */
+  private ChatDataChannels getChatDataChannels(String chatId) throws IOException {
+    try {
+      return chatDataChannels.computeIfAbsent(chatId, id -> {
+        try {
+          return new ChatDataChannels(getStaticDataPath(id), getDynamicDataPath(id), getMessageIndexPath(id));
+        } catch (IOException ex) {
+          throw new UncheckedIOException(ex);
+        }
+      });
+    } catch (UncheckedIOException ex) {
+      throw ex.getCause();
+    }
+  }
+
+  private void closeChatDataChannels(String chatId) {
+    ChatDataChannels channels = chatDataChannels.remove(chatId);
+    if (channels != null) {
+      try {
+        channels.close();
+      } catch (IOException ex) {
+        log.warn("Failed to close data files of chat {}", chatId, ex);
+      }
+    }
+  }
+
   private ReadWriteLock getChatLock(String chatId) {
     return chatLocks.computeIfAbsent(chatId, _ -> new ReentrantReadWriteLock());
   }
@@ -701,6 +1181,91 @@ public class LocalStorage {
     }
   }
 
+  /**
+   * Byte lengths include the writes that are journaled but not applied yet.
+   * Message positions are loaded from the message index on first access.
+   * A channel closed by an interrupt is reopened on the next access, unless the chat's channels are closed
+   */
+  private static final class ChatDataChannels {
+
+    private final Map<DataFile, Path> paths;
+    private final Map<DataFile, FileChannel> channels;
+    private boolean isClosed;
+    private long staticByteLength;
+    private long dynamicByteLength;
+    private long indexByteLength;
+    private Map<UUID, Long> messagePositions;
+
+    private ChatDataChannels(Path staticDataPath, Path dynamicDataPath, Path indexPath) throws IOException {
+      this.paths = new EnumMap<>(Map.of(
+          DataFile.STATIC, staticDataPath,
+          DataFile.DYNAMIC, dynamicDataPath,
+          DataFile.INDEX, indexPath));
+      this.channels = new EnumMap<>(DataFile.class);
+      this.isClosed = false;
+      try {
+        for (DataFile file : DataFile.values()) {
+          channels.put(file, FileChannel.open(paths.get(file), CREATE, READ, WRITE));
+        }
+        this.staticByteLength = channels.get(DataFile.STATIC).size();
+        this.dynamicByteLength = channels.get(DataFile.DYNAMIC).size();
+        this.indexByteLength = channels.get(DataFile.INDEX).size();
+      } catch (IOException ex) {
+        close();
+        throw ex;
+      }
+      this.messagePositions = null;
+    }
+
+    private FileChannel get(DataFile file) throws IOException {
+      synchronized (channels) {
+        if (isClosed) {
+          throw new ClosedChannelException();
+        }
+        FileChannel channel = channels.get(file);
+        if (!channel.isOpen()) {
+          channel = FileChannel.open(paths.get(file), CREATE, READ, WRITE);
+          channels.put(file, channel);
+        }
+        return channel;
+      }
+    }
+
+    private void close() throws IOException {
+      synchronized (channels) {
+        isClosed = true;
+        IOException failure = null;
+        for (FileChannel channel : channels.values()) {
+          try {
+            channel.close();
+          } catch (IOException ex) {
+            failure = ex;
+          }
+        }
+        if (failure != null) {
+          throw failure;
+        }
+      }
+    }
+  }
+
+  private class StorageDataChannels implements StorageJournal.DataChannels {
+
+    @Override
+    public FileChannel get(String chatId, DataFile file) throws IOException {
+      return getChatDataChannels(chatId).get(file);
+    }
+
+    @Override
+    public void forceAll() throws IOException {
+      for (ChatDataChannels channels : chatDataChannels.values()) {
+        for (DataFile file : DataFile.values()) {
+          channels.get(file).force(false);
+        }
+      }
+    }
+  }
+
   private static class FileDeleteVisitor extends SimpleFileVisitor<Path> {
     @Override
     public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
@@ -0,0 +1,385 @@
+package org.reminstant.secretalk.client.repository;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * <p> Write-behind journal of the chat data files. Writes are buffered and appended to the journal
+ * in groups, every {@code commitIntervalMillis} ms or once {@code commitByteThreshold} bytes are pending,
+ * and then applied to the data files in the background.
+ * <p> A record is a positional write into a data file, so replaying the journal after a crash
+ * is idempotent. Records are checksummed, so a torn tail is dropped on replay.
+ * <p> The journal is truncated once it outgrows {@value #CHECKPOINT_BYTE_LENGTH} bytes,
+ * after the data files are forced if the force policy requires it.
+ * <p> The journal and the data files are written on the committer thread only, which is never interrupted,
+ * since an interrupt closes the channel for every thread sharing it. A data channel closed
+ * by an interrupted reader is reopened and the write is retried.
+ */
+@Slf4j
+class StorageJournal {
+
+  enum DataFile {
+    STATIC,
+    DYNAMIC,
+    INDEX
+  }
+
+  enum ForcePolicy {
+    /** Leaves flushing to the OS. Committed writes survive a crash of the app but not of the OS */
+    NEVER,
+    /** Forces the journal on every group commit and the data files before the journal is truncated */
+    ON_COMMIT
+  }
+
+  interface DataChannels {
+
+    /** Returns an open channel, reopening it if an interrupt closed it */
+    FileChannel get(String chatId, DataFile file) throws IOException;
+
+    void forceAll() throws IOException;
+  }
+
+  private static final int RECORD_HEADER_BYTE_LENGTH = 8;
+  private static final int RECORD_MAX_BYTE_LENGTH = 1 << 20;
+  private static final long CHECKPOINT_BYTE_LENGTH = 1 << 20;
+  private static final int CLOSED_CHANNEL_MAX_ATTEMPTS = 3;
+
+  private final FileChannel channel;
+  private final DataChannels dataChannels;
+  private final ForcePolicy forcePolicy;
+  private final int commitByteThreshold;
+  private final ScheduledExecutorService committer;
+  private final Object commitLock;
+
+  private List<Record> pendingRecords;
+  private int pendingByteLength;
+  private long writtenRecordCount;
+  private long appliedRecordCount;
+  private long journalByteLength;
+  private IOException failure;
+
+
+  /** Replays the records left by the previous session before accepting new ones */
+  StorageJournal(Path path, DataChannels dataChannels, ForcePolicy forcePolicy,
+                 long commitIntervalMillis, int commitByteThreshold) throws IOException {
+    this.channel = FileChannel.open(path, CREATE, READ, WRITE);
+    this.dataChannels = dataChannels;
+    this.forcePolicy = forcePolicy;
+    this.commitByteThreshold = commitByteThreshold;
+    this.commitLock = new Object();
+    this.pendingRecords = new ArrayList<>();
+    this.pendingByteLength = 0;
+    this.writtenRecordCount = 0;
+    this.appliedRecordCount = 0;
+    this.journalByteLength = 0;
+    this.failure = null;
+
+    this.committer = Executors.newSingleThreadScheduledExecutor(
+        Thread.ofPlatform().name("storage-journal").daemon(true).factory());
+    try {
+      awaitCommitter(() -> {
+        replay();
+        return null;
+      }, false);
+    } catch (IOException ex) {
+      committer.shutdown();
+      channel.close();
+      throw ex;
+    }
+    committer.scheduleWithFixedDelay(this::commitSafely,
+        commitIntervalMillis, commitIntervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /** Fails only if an earlier commit failed; the write itself is committed later */
+  void write(String chatId, DataFile file, long position, byte[] data) throws IOException {
+    Record record = new Record(chatId, file, position, data);
+    boolean isThresholdReached;
+    synchronized (this) {
+      throwIfFailed();
+      pendingRecords.add(record);
+      pendingByteLength += record.byteLength();
+      ++writtenRecordCount;
+      isThresholdReached = pendingByteLength >= commitByteThreshold;
+    }
+    if (isThresholdReached) {
+      committer.execute(this::commitSafely);
+    }
+  }
+
+  /** Waits until every write made before the call is applied; returns at once if they already are */
+  void sync() throws IOException {
+    synchronized (this) {
+      throwIfFailed();
+      if (appliedRecordCount == writtenRecordCount) {
+        return;
+      }
+    }
+    awaitCommitter(() -> {
+      commit();
+      return null;
+    }, true);
+  }
+
+  /** Syncs, forces the data files and truncates the journal, so none of its records refer to them */
+  void checkpoint() throws IOException {
+    awaitCommitter(() -> {
+      synchronized (commitLock) {
+        commit();
+        truncate();
+      }
+      return null;
+    }, true);
+  }
+
+  /** Checkpoints even if the calling thread is interrupted, so no write is left to the next replay */
+  void close() throws IOException {
+    try {
+      awaitCommitter(() -> {
+        synchronized (commitLock) {
+          commit();
+          truncate();
+        }
+        return null;
+      }, false);
+    } finally {
+      committer.shutdown();
+      channel.close();
+    }
+  }
+
+
+
+  private void commitSafely() {
+    try {
+      commit();
+    } catch (IOException ex) {
+      log.error("Failed to commit storage journal, further writes are rejected", ex);
+      committer.shutdown();
+    }
+  }
+
+  private void commit() throws IOException {
+    synchronized (commitLock) {
+      List<Record> records;
+      int byteLength;
+      synchronized (this) {
+        throwIfFailed();
+        if (pendingRecords.isEmpty()) {
+          return;
+        }
+        records = pendingRecords;
+        byteLength = pendingByteLength;
+        pendingRecords = new ArrayList<>();
+        pendingByteLength = 0;
+      }
+
+      try {
+        ByteBuffer group = ByteBuffer.allocate(byteLength);
+        for (Record record : records) {
+          record.encode(group);
+        }
+        group.flip();
+        while (group.hasRemaining()) {
+          journalByteLength += channel.write(group, journalByteLength);
+        }
+        if (forcePolicy == ForcePolicy.ON_COMMIT) {
+          channel.force(false);
+        }
+
+        for (Record record : records) {
+          apply(record);
+        }
+        synchronized (this) {
+          appliedRecordCount += records.size();
+        }
+        if (journalByteLength >= CHECKPOINT_BYTE_LENGTH) {
+          truncate();
+        }
+      } catch (IOException ex) {
+        synchronized (this) {
+          failure = ex;
+        }
+        throw ex;
+      }
+    }
+  }
+
+  private void truncate() throws IOException {
+    if (forcePolicy == ForcePolicy.ON_COMMIT) {
+      for (int attempt = 1; ; ++attempt) {
+        try {
+          dataChannels.forceAll();
+          break;
+        } catch (ClosedChannelException ex) {
+          if (attempt == CLOSED_CHANNEL_MAX_ATTEMPTS) {
+            throw ex;
+          }
+        }
+      }
+    }
+    channel.truncate(0);
+    journalByteLength = 0;
+  }
+
+  /** Records are positional, so a write cut by another thread closing the channel is simply repeated */
+  private void apply(Record record) throws IOException {
+    for (int attempt = 1; ; ++attempt) {
+      try {
+        FileChannel dataChannel = dataChannels.get(record.chatId, record.file);
+        ByteBuffer data = ByteBuffer.wrap(record.data);
+        while (data.hasRemaining()) {
+          dataChannel.write(data, record.position + data.position());
+        }
+        return;
+      } catch (ClosedChannelException ex) {
+        if (attempt == CLOSED_CHANNEL_MAX_ATTEMPTS) {
+          throw ex;
+        }
+      }
+    }
+  }
+
+  /**
+   * Runs the task on the committer thread and waits for it. If {@code isInterruptible},
+   * an interrupt stops the waiting but not the task
+   */
+  private void awaitCommitter(Callable<Void> task, boolean isInterruptible) throws IOException {
+    Future<Void> future;
+    try {
+      future = committer.submit(task);
+    } catch (RejectedExecutionException ex) {
+      synchronized (this) {
+        throwIfFailed();
+      }
+      throw new IOException("Storage journal is closed", ex);
+    }
+
+    boolean isInterrupted = false;
+    try {
+      while (true) {
+        try {
+          future.get();
+          return;
+        } catch (InterruptedException ex) {
+          if (isInterruptible) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for storage journal");
+          }
+          isInterrupted = true;
+        } catch (ExecutionException ex) {
+          if (ex.getCause() instanceof IOException ioEx) {
+            throw ioEx;
+          }
+          throw new IOException("Storage journal task failed", ex.getCause());
+        }
+      }
+    } finally {
+      if (isInterrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private void replay() throws IOException {
+    long position = 0;
+    int replayedCount = 0;
+    ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTE_LENGTH);
+    while (channel.read(header.clear(), position) == RECORD_HEADER_BYTE_LENGTH) {
+      int payloadLength = header.getInt(0);
+      if (payloadLength <= 0 || payloadLength > RECORD_MAX_BYTE_LENGTH) {
+        break;
+      }
+      ByteBuffer payload = ByteBuffer.allocate(payloadLength);
+      if (channel.read(payload, position + RECORD_HEADER_BYTE_LENGTH) != payloadLength ||
+          (int) checksum(payload.array()) != header.getInt(4)) {
+        break;
+      }
+
+      Record record = Record.decode(payload.flip());
+      try {
+        apply(record);
+        ++replayedCount;
+      } catch (NoSuchFileException ex) {
+        log.warn("Skipped journal record of missing chat {}", record.chatId);
+      }
+      position += RECORD_HEADER_BYTE_LENGTH + payloadLength;
+    }
+
+    if (replayedCount > 0) {
+      log.info("Replayed {} storage journal records", replayedCount);
+    }
+    truncate();
+  }
+
+  private void throwIfFailed() throws IOException {
+    if (failure != null) {
+      throw new IOException("Storage journal failed earlier", failure);
+    }
+  }
+
+  private static long checksum(byte[] data) {
+    CRC32C crc = new CRC32C();
+    crc.update(data);
+    return crc.getValue();
+  }
+
+
+
+  /** Header is the payload length and its CRC32C. Payload is the chat ID, the file, the position and the data */
+  private record Record(
+      String chatId,
+      DataFile file,
+      long position,
+      byte[] data) {
+
+    private static final int FIXED_PAYLOAD_BYTE_LENGTH = 2 + 1 + 8;
+
+    private int byteLength() {
+      return RECORD_HEADER_BYTE_LENGTH + FIXED_PAYLOAD_BYTE_LENGTH +
+          chatId.getBytes(StandardCharsets.UTF_8).length + data.length;
+    }
+
+    private void encode(ByteBuffer buffer) {
+      byte[] chatIdBytes = chatId.getBytes(StandardCharsets.UTF_8);
+      ByteBuffer payload = ByteBuffer.allocate(FIXED_PAYLOAD_BYTE_LENGTH + chatIdBytes.length + data.length)
+          .putShort((short) chatIdBytes.length)
+          .put(chatIdBytes)
+          .put((byte) file.ordinal())
+          .putLong(position)
+          .put(data);
+      buffer.putInt(payload.capacity())
+          .putInt((int) checksum(payload.array()))
+          .put(payload.array());
+    }
+
+    private static Record decode(ByteBuffer payload) {
+      byte[] chatIdBytes = new byte[payload.getShort()];
+      payload.get(chatIdBytes);
+      DataFile file = DataFile.values()[payload.get()];
+      long position = payload.getLong();
+      byte[] data = new byte[payload.remaining()];
+      payload.get(data);
+      return new Record(new String(chatIdBytes, StandardCharsets.UTF_8), file, position, data);
+    }
+  }
+}
@@ -0,0 +1,119 @@
+package org.reminstant.secretalk.client.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.reminstant.secretalk.client.dto.UserEventBatchResponse;
+import org.reminstant.secretalk.client.exception.ServerConnectionException;
+import org.reminstant.secretalk.client.exception.ServerRequestPreparationException;
+
+import java.net.http.WebSocket;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * <p> WebSocket the server pushes batches of user events into.
+ * <p> Every received batch must be acknowledged with {@link #acknowledge(long)}
+ * before the server pushes the next one.
+ */
+@Slf4j
+public class EventChannel implements WebSocket.Listener {
+
+  private static final UserEventBatchResponse CLOSED_MARKER = new UserEventBatchResponse();
+
+  private final ObjectMapper objectMapper;
+  private final BlockingQueue<UserEventBatchResponse> batches;
+  private final StringBuilder messageBuilder;
+
+  private volatile WebSocket webSocket;
+  private volatile boolean isClosed;
+
+  EventChannel(ObjectMapper objectMapper) {
+    this.objectMapper = objectMapper;
+    this.batches = new LinkedBlockingQueue<>();
+    this.messageBuilder = new StringBuilder();
+    this.webSocket = null;
+    this.isClosed = false;
+  }
+
+  /** Returns {@code null} if no batch is pushed within the timeout */
+  public UserEventBatchResponse poll(long timeoutMillis)
+      throws ServerConnectionException, InterruptedException {
+    UserEventBatchResponse batch = batches.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+    if (batch == CLOSED_MARKER) {
+      batches.offer(CLOSED_MARKER);
+      throw new ServerConnectionException("Event channel is closed");
+    }
+    return batch;
+  }
+
+  /** Acknowledges every received event with stream sequence up to the given one inclusively */
+  public void acknowledge(long upToSequence) throws ServerConnectionException, InterruptedException {
+    String json;
+    try {
+      json = objectMapper.writeValueAsString(Map.of("upToSequence", upToSequence));
+    } catch (JsonProcessingException ex) {
+      throw new ServerRequestPreparationException(ex);
+    }
+
+    try {
+      webSocket.sendText(json, true).get();
+    } catch (ExecutionException ex) {
+      throw new ServerConnectionException("Failed to acknowledge events up to " + upToSequence, ex.getCause());
+    }
+  }
+
+  public boolean isOpen() {
+    return !isClosed;
+  }
+
+  public void close() {
+    WebSocket ws = webSocket;
+    if (ws != null && !isClosed) {
+      ws.sendClose(WebSocket.NORMAL_CLOSURE, "").exceptionally(_ -> null);
+    }
+    markClosed();
+  }
+
+
+
+  @Override
+  public void onOpen(WebSocket webSocket) {
+    this.webSocket = webSocket;
+    webSocket.request(1);
+  }
+
+  @Override
+  public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
+    messageBuilder.append(data);
+    if (last) {
+      String message = messageBuilder.toString();
+      messageBuilder.setLength(0);
+      try {
+        batches.offer(objectMapper.readValue(message, UserEventBatchResponse.class));
+      } catch (JsonProcessingException ex) {
+        log.error("Failed to parse pushed event batch", ex);
+      }
+    }
+    webSocket.request(1);
+    return null;
+  }
+
+  @Override
+  public CompletionStage<?> onClose(WebSocket webSocket, int statusCode, String reason) {
+    log.debug("Event channel is closed by server ({} {})", statusCode, reason);
+    markClosed();
+    return null;
+  }
+
+  @Override
+  public void onError(WebSocket webSocket, Throwable error) {
+    log.warn("Event channel failed", error);
+    markClosed();
+  }
+
+  private void markClosed() {
+    isClosed = true;
+    batches.offer(CLOSED_MARKER);
+  }
+}
@@ -0,0 +1,84 @@
+package org.reminstant.secretalk.client.service;
+
+/**
+ * <p> Chooses the byte length of uploaded file parts from the measured round trip time and throughput.
+ * <p> A part is sized to be uploaded in about {@value #TARGET_PART_MILLIS} ms and in no less than
+ * {@value #MIN_ROUND_TRIPS_PER_PART} round trips, so parts grow on fast links and shrink on slow ones,
+ * where smaller parts keep progress and retries responsive.
+ * <p> Throughput is measured over all concurrent uploads: bytes acknowledged by the server
+ * per {@value #SAMPLE_MILLIS} ms of wall-clock time while any upload is running.
+ * Timing single parts would count the time they share the link with each other and wait for a lane.
+ * <p> Lengths are powers of two, so parts stay aligned to cipher blocks.
+ */
+public class FilePartSizer {
+
+  private static final int MIN_PART_BYTE_LENGTH = 64 * (1 << 10);
+  private static final int MAX_PART_BYTE_LENGTH = 8 * (1 << 20);
+
+  private static final int INITIAL_PART_BYTE_LENGTH = 128 * (1 << 10);
+  private static final long TARGET_PART_MILLIS = 1000;
+  private static final int MIN_ROUND_TRIPS_PER_PART = 4;
+  private static final long SAMPLE_MILLIS = 1000;
+  private static final double SMOOTHING = 0.25;
+
+  private double roundTripMillis;
+  private double bytesPerMilli;
+
+  private int activeUploadCount;
+  private long sampleStartNanos;
+  private long sampleByteLength;
+
+  public FilePartSizer() {
+    this.roundTripMillis = 0;
+    this.bytesPerMilli = 0;
+    this.activeUploadCount = 0;
+    this.sampleStartNanos = 0;
+    this.sampleByteLength = 0;
+  }
+
+  /** Records the duration of a request with a negligible body that the server answers without disk work */
+  public synchronized void recordRoundTrip(long elapsedNanos) {
+    roundTripMillis = smooth(roundTripMillis, elapsedNanos / 1e6);
+  }
+
+  /** Must be paired with {@link #finishUpload()}. Time between uploads is not measured */
+  public synchronized void startUpload() {
+    if (activeUploadCount++ == 0) {
+      sampleStartNanos = System.nanoTime();
+      sampleByteLength = 0;
+    }
+  }
+
+  /** An incomplete sample is dropped, so short uploads do not count the time before the first part is acknowledged */
+  public synchronized void finishUpload() {
+    activeUploadCount = Math.max(activeUploadCount - 1, 0);
+  }
+
+  /** Records a part acknowledged by the server */
+  public synchronized void recordPartUpload(int partByteLength) {
+    if (activeUploadCount == 0) {
+      return;
+    }
+    long nowNanos = System.nanoTime();
+    sampleByteLength += partByteLength;
+    double sampleMillis = (nowNanos - sampleStartNanos) / 1e6;
+    if (sampleMillis >= SAMPLE_MILLIS) {
+      bytesPerMilli = smooth(bytesPerMilli, sampleByteLength / sampleMillis);
+      sampleStartNanos = nowNanos;
+      sampleByteLength = 0;
+    }
+  }
+
+  public synchronized int getPartByteLength() {
+    if (bytesPerMilli == 0) {
+      return INITIAL_PART_BYTE_LENGTH;
+    }
+    double partMillis = Math.max(TARGET_PART_MILLIS, MIN_ROUND_TRIPS_PER_PART * roundTripMillis);
+    long byteLength = (long) Math.min(bytesPerMilli * partMillis, MAX_PART_BYTE_LENGTH);
+    return (int) Math.max(Long.highestOneBit(byteLength), MIN_PART_BYTE_LENGTH);
+  }
+
+  private static double smooth(double average, double sample) {
+    return average == 0 ? sample : average + SMOOTHING * (sample - average);
+  }
+}
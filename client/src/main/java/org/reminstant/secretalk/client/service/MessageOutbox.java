@@ -0,0 +1,149 @@
+package org.reminstant.secretalk.client.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.reminstant.concurrent.ChainableFuture;
+import org.reminstant.secretalk.client.dto.NoPayloadResponse;
+import org.reminstant.secretalk.client.exception.ServerConnectionException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p> Queues text messages per recipient and sends the ones written within
+ * {@value #COALESCING_MILLIS} ms of each other in one request.
+ * <p> A recipient has at most one request in flight, so messages arrive in the order they were written.
+ * Messages that failed to reach the server are sent again before the newer ones.
+ */
+@Slf4j
+public class MessageOutbox {
+
+  private static final long COALESCING_MILLIS = 25;
+  private static final long RETRY_DELAY_MILLIS = 1000;
+  private static final int MAX_ATTEMPTS = 5;
+  private static final int MAX_BATCH_SIZE = 64;
+
+  private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(
+      Thread.ofPlatform().name("message-outbox").daemon(true).factory());
+
+  private final ServerClient serverClient;
+  private final Map<String, Recipient> recipients;
+
+  public MessageOutbox(ServerClient serverClient) {
+    this.serverClient = serverClient;
+    this.recipients = new HashMap<>();
+  }
+
+  /** The result completes once the server accepts the message. Cancelling it unqueues the message */
+  public ChainableFuture<NoPayloadResponse> send(String messageId, String chatId, String otherUsername,
+                                                 byte[] messageData) {
+    PendingMessage message = new PendingMessage(new OutgoingMessage(messageId, chatId, messageData));
+    synchronized (this) {
+      Recipient recipient = recipients.computeIfAbsent(otherUsername, Recipient::new);
+      recipient.queue.addLast(message);
+      if (!recipient.isFlushing) {
+        recipient.isFlushing = true;
+        TIMER.schedule(() -> flush(recipient), COALESCING_MILLIS, TimeUnit.MILLISECONDS);
+      }
+    }
+    return ChainableFuture.wrapWeakly(message.result);
+  }
+
+  private void flush(Recipient recipient) {
+    List<PendingMessage> batch = new ArrayList<>();
+    synchronized (this) {
+      while (batch.size() < MAX_BATCH_SIZE && !recipient.queue.isEmpty()) {
+        PendingMessage message = recipient.queue.pollFirst();
+        if (!message.result.isDone()) {
+          batch.add(message);
+        }
+      }
+      if (batch.isEmpty()) {
+        recipient.isFlushing = false;
+        recipients.remove(recipient.username);
+        return;
+      }
+    }
+
+    ChainableFuture<NoPayloadResponse> request;
+    try {
+      request = batch.size() == 1
+          ? sendOne(recipient.username, batch.getFirst().message)
+          : serverClient.sendChatMessagesAsync(recipient.username,
+              batch.stream().map(PendingMessage::message).toList());
+    } catch (RuntimeException ex) {
+      complete(recipient, batch, null, ex);
+      return;
+    }
+    request.whenDone(() -> {
+      try {
+        complete(recipient, batch, request.get(), null);
+      } catch (ExecutionException ex) {
+        complete(recipient, batch, null, ex.getCause());
+      } catch (Exception ex) {
+        complete(recipient, batch, null, ex);
+      }
+    });
+  }
+
+  private ChainableFuture<NoPayloadResponse> sendOne(String otherUsername, OutgoingMessage message) {
+    return serverClient.sendChatMessageAsync(message.messageId(), message.chatId(),
+        otherUsername, message.messageData());
+  }
+
+  private void complete(Recipient recipient, List<PendingMessage> batch,
+                        NoPayloadResponse response, Throwable failure) {
+    if (failure instanceof ServerConnectionException && ++recipient.failedAttemptCount < MAX_ATTEMPTS) {
+      log.warn("Failed to send {} message(s) to {}, retrying", batch.size(), recipient.username);
+      synchronized (this) {
+        for (PendingMessage message : batch.reversed()) {
+          recipient.queue.addFirst(message);
+        }
+      }
+      TIMER.schedule(() -> flush(recipient), RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+      return;
+    }
+
+    recipient.failedAttemptCount = 0;
+    for (PendingMessage message : batch) {
+      if (failure == null) {
+        message.result.complete(response);
+      } else {
+        message.result.completeExceptionally(failure);
+      }
+    }
+    flush(recipient);
+  }
+
+
+
+  private record PendingMessage(OutgoingMessage message, CompletableFuture<NoPayloadResponse> result) {
+
+    private PendingMessage(OutgoingMessage message) {
+      this(message, new CompletableFuture<>());
+    }
+  }
+
+  private static final class Recipient {
+
+    private final String username;
+    private final Deque<PendingMessage> queue;
+    private boolean isFlushing;
+    private int failedAttemptCount;
+
+    private Recipient(String username) {
+      this.username = username;
+      this.queue = new ArrayDeque<>();
+      this.isFlushing = false;
+      this.failedAttemptCount = 0;
+    }
+  }
+}
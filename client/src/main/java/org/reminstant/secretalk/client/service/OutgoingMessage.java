@@ -0,0 +1,8 @@
+package org.reminstant.secretalk.client.service;
+
+/** Encrypted text message waiting to be sent */
+public record OutgoingMessage(
+    String messageId,
+    String chatId,
+    byte[] messageData) {
+}
@@ -4,20 +4,29 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
+import org.reminstant.concurrent.ChainableFuture;
 import org.reminstant.secretalk.client.dto.*;
 import org.reminstant.secretalk.client.exception.*;
 import org.reminstant.secretalk.client.model.Chat;
+import org.reminstant.secretalk.client.service.TransferScheduler.Lane;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import java.io.IOException;
 import java.net.URI;
+import java.net.URLEncoder;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.Base64;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.CRC32C;
 
 @Slf4j
 @Service
@@ -29,23 +38,54 @@ public class ServerClient {
 
   private static final String CONTENT_TYPE_HEADER = "Content-Type";
   private static final String CONTENT_TYPE_HEADER_APPLICATION_JSON = "application/json";
+  private static final String CONTENT_TYPE_HEADER_OCTET_STREAM = "application/octet-stream";
+
+  private static final String MESSAGE_ID_HEADER = "X-Message-Id";
+  private static final String CHAT_ID_HEADER = "X-Chat-Id";
+  private static final String OTHER_USERNAME_HEADER = "X-Other-Username";
+  private static final String FILE_NAME_HEADER = "X-File-Name";
+  private static final String PART_NUMBER_HEADER = "X-Part-Number";
+  private static final String PART_COUNT_HEADER = "X-Part-Count";
+  private static final String PART_OFFSET_HEADER = "X-Part-Offset";
+  private static final String PART_CHECKSUM_HEADER = "X-Part-Checksum";
+  private static final String IS_IMAGE_HEADER = "X-Is-Image";
 
   private static final Duration STANDARD_TIMEOUT = Duration.ofSeconds(10);
-  
-  private static final HttpClient httpClient = HttpClient.newHttpClient();
+  private static final int LOGGED_BODY_MAX_LENGTH = 512;
+
+  /** Falls back to HTTP/1.1 if the server refuses the upgrade. Connections are pooled by the client */
+  private static final HttpClient httpClient = HttpClient.newBuilder()
+      .version(HttpClient.Version.HTTP_2)
+      .connectTimeout(STANDARD_TIMEOUT)
+      .build();
   private static final ObjectMapper objectMapper = new ObjectMapper();
 
+  private final TransferScheduler transferScheduler;
+
   @Getter
   private String username = null;
   private String jwtToken = null;
 
 
+  public ServerClient(@Value("${server-client.lanes.control.max-concurrent-requests}") int controlLaneLimit,
+                      @Value("${server-client.lanes.text.max-concurrent-requests}") int textLaneLimit,
+                      @Value("${server-client.lanes.image.max-concurrent-requests}") int imageLaneLimit,
+                      @Value("${server-client.lanes.bulk.max-concurrent-requests}") int bulkLaneLimit,
+                      @Value("${server-client.lanes.bulk.max-bytes-per-second}") long bulkBytesPerSecond) {
+    this.transferScheduler = new TransferScheduler(Map.of(
+        Lane.CONTROL, controlLaneLimit,
+        Lane.TEXT, textLaneLimit,
+        Lane.IMAGE, imageLaneLimit,
+        Lane.BULK, bulkLaneLimit), bulkBytesPerSecond);
+  }
+
+
   public JwtResponse processLogin(String login, String password)
       throws ServerConnectionException, ServerResponseException, InterruptedException {
     String data = login + ":" + password;
     String base64data = Base64.getEncoder().encodeToString(data.getBytes());
 
-    return sendRequest(HttpRequest.newBuilder()
+    return sendRequest(Lane.CONTROL, HttpRequest.newBuilder()
         .uri(URI.create("http://localhost:8080/api/auth/login"))
         .header(AUTHORIZATION_HEADER, AUTHORIZATION_HEADER_BASIC + base64data)
         .POST(HttpRequest.BodyPublishers.noBody())
@@ -59,7 +99,7 @@ public class ServerClient {
         "password", password);
     String json = jsonifyMap(data);
 
-    return sendRequest(HttpRequest.newBuilder()
+    return sendRequest(Lane.CONTROL, HttpRequest.newBuilder()
         .uri(URI.create("http://localhost:8080/api/auth/register"))
         .header(CONTENT_TYPE_HEADER, CONTENT_TYPE_HEADER_APPLICATION_JSON)
         .POST(HttpRequest.BodyPublishers.ofString(json))
@@ -81,7 +121,7 @@ public class ServerClient {
 
   public DHResponse getDHParams()
       throws ServerConnectionException, ServerResponseException, InterruptedException {
-    return sendRequest(HttpRequest.newBuilder()
+    return sendRequest(Lane.CONTROL, HttpRequest.newBuilder()
         .uri(URI.create("http://localhost:8080/api/chat/get-dh-params"))
         .GET()
         .build(), null, DHResponse.class);
@@ -89,9 +129,19 @@ public class ServerClient {
 
 
 
+  /** The server answers without touching storage, so the duration is a round trip of the control lane */
+  public NoPayloadResponse ping()
+      throws ServerConnectionException, ServerResponseException, InterruptedException {
+    return sendRequest(Lane.CONTROL, HttpRequest.newBuilder()
+        .uri(URI.create("http://localhost:8080/api/chat/ping"))
+        .header(AUTHORIZATION_HEADER, AUTHORIZATION_HEADER_BEARER + jwtToken)
+        .GET()
+        .build(), null, NoPayloadResponse.class);
+  }
+
   public UserEventWrapperResponse getEvent(long timeoutMillis)
       throws ServerConnectionException, ServerResponseException, InterruptedException {
-    return sendRequest(HttpRequest.newBuilder()
+    return sendRequest(Lane.CONTROL, HttpRequest.newBuilder()
         .uri(URI.create("http://localhost:8080/api/chat/get-event?timeoutMillis=%d"
             .formatted(timeoutMillis)))
         .header(AUTHORIZATION_HEADER, AUTHORIZATION_HEADER_BEARER + jwtToken)
@@ -99,12 +149,55 @@ public class ServerClient {
         .build(), null, UserEventWrapperResponse.class);
   }
 
+  public UserEventBatchResponse getEvents(int maxCount, long timeoutMillis)
+      throws ServerConnectionException, ServerResponseException, InterruptedException {
+    return sendRequest(Lane.CONTROL, HttpRequest.newBuilder()
+        .uri(URI.create("http://localhost:8080/api/chat/get-event?maxCount=%d&timeoutMillis=%d"
+            .formatted(maxCount, timeoutMillis)))
+        .header(AUTHORIZATION_HEADER, AUTHORIZATION_HEADER_BEARER + jwtToken)
+        .GET()
+        .build(), null, UserEventBatchResponse.class);
+  }
+
+  /** Acknowledges every received event with stream sequence up to the given one inclusively */
+  public NoPayloadResponse acknowledgeEvents(long upToSequence)
+      throws ServerConnectionException, ServerResponseException, InterruptedException {
+    return await(acknowledgeEventsAsync(upToSequence));
+  }
+
+  public ChainableFuture<NoPayloadResponse> acknowledgeEventsAsync(long upToSequence) {
+    Map<String, Object> data = Map.of("upToSequence", upToSequence);
+    String json = jsonifyMap(data);
+
+    return sendRequestAsync(Lane.CONTROL, HttpRequest.newBuilder()
+        .uri(URI.create("http://localhost:8080/api/chat/ack-event"))
+        .header(AUTHORIZATION_HEADER, AUTHORIZATION_HEADER_BEARER + jwtToken)
+        .header(CONTENT_TYPE_HEADER, CONTENT_TYPE_HEADER_APPLICATION_JSON)
+        .POST(HttpRequest.BodyPublishers.ofString(json))
+        .build(), data, NoPayloadResponse.class);
+  }
+
+  /** Opens the WebSocket the server pushes events into. The long-poll stays available as a fallback */
+  public EventChannel openEventChannel() throws ServerConnectionException, InterruptedException {
+    EventChannel channel = new EventChannel(objectMapper);
+    try {
+      httpClient.newWebSocketBuilder()
+          .header(AUTHORIZATION_HEADER, AUTHORIZATION_HEADER_BEARER + jwtToken)
+          .connectTimeout(STANDARD_TIMEOUT)
+          .buildAsync(URI.create("ws://localhost:8080/websocket"), channel)
+          .get();
+    } catch (ExecutionException ex) {
+      throw new ServerConnectionException("Failed to open event channel", ex.getCause());
+    }
+    return channel;
+  }
+
   public NoPayloadResponse acknowledgeEvent(String eventId)
       throws ServerConnectionException, ServerResponseException, InterruptedException {
     Map<String, Object> data = Map.of("eventId", eventId);
     String json = jsonifyMap(data);
 
-    return sendRequest(HttpRequest.newBuilder()
+    return sendRequest(Lane.CONTROL, HttpRequest.newBuilder()
         .uri(URI.create("http://localhost:8080/api/chat/ack-event"))
         .header(AUTHORIZATION_HEADER, AUTHORIZATION_HEADER_BEARER + jwtToken)
         .header(CONTENT_TYPE_HEADER, CONTENT_TYPE_HEADER_APPLICATION_JSON)
@@ -121,7 +214,7 @@ public class ServerClient {
         "otherUsername", otherUsername);
     String json = jsonifyMap(data);
 
-    return sendRequest(HttpRequest.newBuilder()
+    return sendRequest(Lane.CONTROL, HttpRequest.newBuilder()
         .uri(URI.create("http://localhost:8080/api/chat/desert-chat"))
         .header(AUTHORIZATION_HEADER, AUTHORIZATION_HEADER_BEARER + jwtToken)
         .header(CONTENT_TYPE_HEADER, CONTENT_TYPE_HEADER_APPLICATION_JSON)
@@ -136,7 +229,7 @@ public class ServerClient {
         "otherUsername", otherUsername);
     String json = jsonifyMap(data);
 
-    return sendRequest(HttpRequest.newBuilder()
+    return sendRequest(Lane.CONTROL, HttpRequest.newBuilder()
         .uri(URI.create("http://localhost:8080/api/chat/destroy-chat"))
         .header(AUTHORIZATION_HEADER, AUTHORIZATION_HEADER_BEARER + jwtToken)
         .header(CONTENT_TYPE_HEADER, CONTENT_TYPE_HEADER_APPLICATION_JSON)
@@ -154,7 +247,7 @@ public class ServerClient {
         "publicKey", publicKey);
     String json = jsonifyMap(data);
 
-    return sendRequest(HttpRequest.newBuilder()
+    return sendRequest(Lane.CONTROL, HttpRequest.newBuilder()
         .uri(URI.create("http://localhost:8080/api/chat/request-chat-connection"))
         .header(AUTHORIZATION_HEADER, AUTHORIZATION_HEADER_BEARER + jwtToken)
         .header(CONTENT_TYPE_HEADER, CONTENT_TYPE_HEADER_APPLICATION_JSON)
@@ -171,7 +264,7 @@ public class ServerClient {
         "publicKey", publicKey);
     String json = jsonifyMap(data);
 
-    return sendRequest(HttpRequest.newBuilder()
+    return sendRequest(Lane.CONTROL, HttpRequest.newBuilder()
         .uri(URI.create("http://localhost:8080/api/chat/accept-chat-connection"))
         .header(AUTHORIZATION_HEADER, AUTHORIZATION_HEADER_BEARER + jwtToken)
         .header(CONTENT_TYPE_HEADER, CONTENT_TYPE_HEADER_APPLICATION_JSON)
@@ -186,7 +279,7 @@ public class ServerClient {
         "otherUsername", otherUsername);
     String json = jsonifyMap(data);
 
-    return sendRequest(HttpRequest.newBuilder()
+    return sendRequest(Lane.CONTROL, HttpRequest.newBuilder()
         .uri(URI.create("http://localhost:8080/api/chat/break-chat-connection"))
         .header(AUTHORIZATION_HEADER, AUTHORIZATION_HEADER_BEARER + jwtToken)
         .header(CONTENT_TYPE_HEADER, CONTENT_TYPE_HEADER_APPLICATION_JSON)
@@ -197,95 +290,197 @@ public class ServerClient {
   public NoPayloadResponse sendChatMessage(String messageId, String chatId, String otherUsername,
                                            byte[] messageData)
       throws ServerConnectionException, ServerResponseException, InterruptedException {
+    return await(sendChatMessageAsync(messageId, chatId, otherUsername, messageData));
+  }
+
+  public ChainableFuture<NoPayloadResponse> sendChatMessageAsync(String messageId, String chatId,
+                                                                 String otherUsername, byte[] messageData) {
     Map<String, Object> data = Map.of(
         "messageId", messageId,
         "chatId", chatId,
         "otherUsername", otherUsername,
-        "messageData", messageData,
-        "isImage", false);
-    String json = jsonifyMap(data);
+        "messageDataLength", messageData.length);
 
-    return sendRequest(HttpRequest.newBuilder()
+    return sendRequestAsync(Lane.TEXT, HttpRequest.newBuilder()
         .uri(URI.create("http://localhost:8080/api/chat/send-chat-message"))
         .header(AUTHORIZATION_HEADER, AUTHORIZATION_HEADER_BEARER + jwtToken)
-        .header(CONTENT_TYPE_HEADER, CONTENT_TYPE_HEADER_APPLICATION_JSON)
-        .POST(HttpRequest.BodyPublishers.ofString(json))
+        .header(CONTENT_TYPE_HEADER, CONTENT_TYPE_HEADER_OCTET_STREAM)
+        .header(MESSAGE_ID_HEADER, messageId)
+        .header(CHAT_ID_HEADER, chatId)
+        .header(OTHER_USERNAME_HEADER, encodeHeader(otherUsername))
+        .POST(HttpRequest.BodyPublishers.ofByteArray(messageData))
         .build(), data, UserEventWrapperResponse.class);
   }
 
   public NoPayloadResponse sendChatMessage(String messageId, String chatId, String otherUsername,
                                            byte[] messageData, String attachedFileName, boolean isImage)
       throws ServerConnectionException, ServerResponseException, InterruptedException {
+    return await(sendChatMessageAsync(messageId, chatId, otherUsername, messageData, attachedFileName, isImage));
+  }
+
+  public ChainableFuture<NoPayloadResponse> sendChatMessageAsync(String messageId, String chatId,
+                                                                 String otherUsername, byte[] messageData,
+                                                                 String attachedFileName, boolean isImage) {
     Map<String, Object> data = Map.of(
         "messageId", messageId,
         "chatId", chatId,
         "otherUsername", otherUsername,
-        "messageData", messageData,
+        "messageDataLength", messageData.length,
         "attachedFileName", attachedFileName,
         "isImage", isImage);
-    String json = jsonifyMap(data);
 
-    return sendRequest(HttpRequest.newBuilder()
+    return sendRequestAsync(Lane.TEXT, HttpRequest.newBuilder()
         .uri(URI.create("http://localhost:8080/api/chat/send-chat-message"))
         .header(AUTHORIZATION_HEADER, AUTHORIZATION_HEADER_BEARER + jwtToken)
+        .header(CONTENT_TYPE_HEADER, CONTENT_TYPE_HEADER_OCTET_STREAM)
+        .header(MESSAGE_ID_HEADER, messageId)
+        .header(CHAT_ID_HEADER, chatId)
+        .header(OTHER_USERNAME_HEADER, encodeHeader(otherUsername))
+        .header(FILE_NAME_HEADER, encodeHeader(attachedFileName))
+        .header(IS_IMAGE_HEADER, String.valueOf(isImage))
+        .POST(HttpRequest.BodyPublishers.ofByteArray(messageData))
+        .build(), data, UserEventWrapperResponse.class);
+  }
+
+  /** Sends text messages to the same user at once. The server delivers them in the given order */
+  public ChainableFuture<NoPayloadResponse> sendChatMessagesAsync(String otherUsername,
+                                                                  List<OutgoingMessage> messages) {
+    List<Map<String, Object>> messageData = messages.stream()
+        .map(message -> Map.<String, Object>of(
+            "messageId", message.messageId(),
+            "chatId", message.chatId(),
+            "messageData", message.messageData()))
+        .toList();
+    Map<String, Object> data = Map.of(
+        "otherUsername", otherUsername,
+        "messages", messageData);
+    String json = jsonifyMap(data);
+
+    return sendRequestAsync(Lane.TEXT, HttpRequest.newBuilder()
+        .uri(URI.create("http://localhost:8080/api/chat/send-chat-messages"))
+        .header(AUTHORIZATION_HEADER, AUTHORIZATION_HEADER_BEARER + jwtToken)
         .header(CONTENT_TYPE_HEADER, CONTENT_TYPE_HEADER_APPLICATION_JSON)
         .POST(HttpRequest.BodyPublishers.ofString(json))
-        .build(), data, UserEventWrapperResponse.class);
+        .build(), Map.of("otherUsername", otherUsername, "messageCount", messages.size()),
+        NoPayloadResponse.class);
   }
 
   public NoPayloadResponse sendImage(String messageId, String chatId, String otherUsername,
                                      String fileName, byte[] fileData)
       throws ServerConnectionException, ServerResponseException, InterruptedException {
+    return await(sendImageAsync(messageId, chatId, otherUsername, fileName, fileData));
+  }
+
+  public ChainableFuture<NoPayloadResponse> sendImageAsync(String messageId, String chatId, String otherUsername,
+                                                           String fileName, byte[] fileData) {
     Map<String, Object> data = Map.of(
         "messageId", messageId,
         "chatId", chatId,
         "otherUsername", otherUsername,
         "fileName", fileName,
-        "imageData", fileData);
-    String json = jsonifyMap(data);
+        "imageDataLength", fileData.length);
 
-    return sendRequest(HttpRequest.newBuilder()
+    return sendRequestAsync(Lane.IMAGE, HttpRequest.newBuilder()
         .uri(URI.create("http://localhost:8080/api/chat/send-image"))
         .header(AUTHORIZATION_HEADER, AUTHORIZATION_HEADER_BEARER + jwtToken)
-        .header(CONTENT_TYPE_HEADER, CONTENT_TYPE_HEADER_APPLICATION_JSON)
-        .POST(HttpRequest.BodyPublishers.ofString(json))
+        .header(CONTENT_TYPE_HEADER, CONTENT_TYPE_HEADER_OCTET_STREAM)
+        .header(MESSAGE_ID_HEADER, messageId)
+        .header(CHAT_ID_HEADER, chatId)
+        .header(OTHER_USERNAME_HEADER, encodeHeader(otherUsername))
+        .header(FILE_NAME_HEADER, encodeHeader(fileName))
+        .POST(HttpRequest.BodyPublishers.ofByteArray(fileData))
         .build(), data, UserEventWrapperResponse.class);
   }
 
   public NoPayloadResponse sendFilePart(String messageId, String chatId, String otherUsername,
-                                        int partNumber, int partCount, byte[] fileData)
+                                        int partNumber, int partCount, long partOffset, byte[] fileData)
       throws ServerConnectionException, ServerResponseException, InterruptedException {
+    return await(sendFilePartAsync(messageId, chatId, otherUsername, partNumber, partCount, partOffset, fileData));
+  }
+
+  public ChainableFuture<NoPayloadResponse> sendFilePartAsync(String messageId, String chatId,
+                                                              String otherUsername, int partNumber,
+                                                              int partCount, long partOffset, byte[] fileData) {
     Map<String, Object> data = Map.of(
         "messageId", messageId,
         "chatId", chatId,
         "otherUsername", otherUsername,
         "partNumber", partNumber,
         "partCount", partCount,
-        "fileData", fileData);
-    String json = jsonifyMap(data);
+        "partOffset", partOffset,
+        "fileDataLength", fileData.length);
 
-    return sendRequest(HttpRequest.newBuilder()
+    return sendRequestAsync(Lane.BULK, HttpRequest.newBuilder()
         .uri(URI.create("http://localhost:8080/api/chat/send-file-part"))
         .header(AUTHORIZATION_HEADER, AUTHORIZATION_HEADER_BEARER + jwtToken)
+        .header(CONTENT_TYPE_HEADER, CONTENT_TYPE_HEADER_OCTET_STREAM)
+        .header(MESSAGE_ID_HEADER, messageId)
+        .header(CHAT_ID_HEADER, chatId)
+        .header(OTHER_USERNAME_HEADER, encodeHeader(otherUsername))
+        .header(PART_NUMBER_HEADER, String.valueOf(partNumber))
+        .header(PART_COUNT_HEADER, String.valueOf(partCount))
+        .header(PART_OFFSET_HEADER, String.valueOf(partOffset))
+        .header(PART_CHECKSUM_HEADER, String.valueOf(checksum(fileData)))
+        .POST(HttpRequest.BodyPublishers.ofByteArray(fileData))
+        .build(), data, UserEventWrapperResponse.class);
+  }
+
+  /**
+   * Starts or resumes the upload. Returns the part length fixed for the file, which differs from
+   * the proposed one if the upload is resumed, and numbers of the parts that the server
+   * has not received or has received corrupted
+   */
+  public MissingFilePartsResponse getMissingFileParts(String messageId, String chatId, String otherUsername,
+                                                      long fileByteLength, int partByteLength)
+      throws ServerConnectionException, ServerResponseException, InterruptedException {
+    return sendRequest(Lane.CONTROL, HttpRequest.newBuilder()
+        .uri(URI.create(("http://localhost:8080/api/chat/get-missing-file-parts" +
+            "?messageId=%s&chatId=%s&otherUsername=%s&fileByteLength=%d&partByteLength=%d").formatted(
+                encodeHeader(messageId), encodeHeader(chatId), encodeHeader(otherUsername),
+                fileByteLength, partByteLength)))
+        .header(AUTHORIZATION_HEADER, AUTHORIZATION_HEADER_BEARER + jwtToken)
+        .GET()
+        .build(), null, MissingFilePartsResponse.class);
+  }
+
+  public NoPayloadResponse requestMessageFile(String messageId, String chatId, String otherUsername,
+                                              long fromPartNumber)
+      throws ServerConnectionException, ServerResponseException, InterruptedException {
+    Map<String, Object> data = Map.of(
+        "messageId", messageId,
+        "chatId", chatId,
+        "otherUsername", otherUsername,
+        "fromPartNumber", fromPartNumber);
+    String json = jsonifyMap(data);
+
+    return sendRequest(Lane.CONTROL, HttpRequest.newBuilder()
+        .uri(URI.create("http://localhost:8080/api/chat/request-message-file"))
+        .header(AUTHORIZATION_HEADER, AUTHORIZATION_HEADER_BEARER + jwtToken)
         .header(CONTENT_TYPE_HEADER, CONTENT_TYPE_HEADER_APPLICATION_JSON)
         .POST(HttpRequest.BodyPublishers.ofString(json))
         .build(), data, UserEventWrapperResponse.class);
   }
 
-  public NoPayloadResponse requestMessageFile(String messageId, String chatId, String otherUsername)
+  /** Lets the server delete the file once it is completely downloaded */
+  public NoPayloadResponse releaseMessageFile(String messageId, String chatId, String otherUsername)
       throws ServerConnectionException, ServerResponseException, InterruptedException {
+    return await(releaseMessageFileAsync(messageId, chatId, otherUsername));
+  }
+
+  public ChainableFuture<NoPayloadResponse> releaseMessageFileAsync(String messageId, String chatId,
+                                                                    String otherUsername) {
     Map<String, Object> data = Map.of(
         "messageId", messageId,
         "chatId", chatId,
         "otherUsername", otherUsername);
     String json = jsonifyMap(data);
 
-    return sendRequest(HttpRequest.newBuilder()
-        .uri(URI.create("http://localhost:8080/api/chat/request-message-file"))
+    return sendRequestAsync(Lane.CONTROL, HttpRequest.newBuilder()
+        .uri(URI.create("http://localhost:8080/api/chat/release-message-file"))
         .header(AUTHORIZATION_HEADER, AUTHORIZATION_HEADER_BEARER + jwtToken)
         .header(CONTENT_TYPE_HEADER, CONTENT_TYPE_HEADER_APPLICATION_JSON)
         .POST(HttpRequest.BodyPublishers.ofString(json))
-        .build(), data, UserEventWrapperResponse.class);
+        .build(), data, NoPayloadResponse.class);
   }
 
 
@@ -298,36 +493,108 @@ public class ServerClient {
     }
   }
   
-  private <T> T sendRequest(HttpRequest request, Map<String, Object> data, Class<T> c)
+  /** Headers are limited to ASCII, so string metadata of binary requests is URL-encoded */
+  private String encodeHeader(String value) {
+    return URLEncoder.encode(value, StandardCharsets.UTF_8);
+  }
+
+  private static long checksum(byte[] data) {
+    CRC32C crc = new CRC32C();
+    crc.update(data);
+    return crc.getValue();
+  }
+
+  private <T> T sendRequest(Lane lane, HttpRequest request, Map<String, Object> data, Class<T> c)
       throws ServerConnectionException, ServerResponseException, InterruptedException {
-    HttpResponse<String> response;
-    try {
-      log.debug("send {} {} | body: {}", request.method(), request.uri(), data);
-      response = httpClient.send(request, HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+    return await(sendRequestAsync(lane, request, data, c));
+  }
 
-      String bodyString = null;
-      if (response.body() != null) {
-        bodyString = response.body();
-        bodyString = bodyString.substring(0, Math.min(512, bodyString.length())); //TODO: move constant to config
+  /**
+   * Sends the request without blocking any thread once {@link TransferScheduler} lets it start
+   * in its lane. Cancelling the result aborts the request
+   */
+  private <T> ChainableFuture<T> sendRequestAsync(Lane lane, HttpRequest request, Map<String, Object> data,
+                                                  Class<? extends T> c) {
+    long byteLength = request.bodyPublisher()
+        .map(HttpRequest.BodyPublisher::contentLength)
+        .orElse(0L);
+    CompletableFuture<T> result = new CompletableFuture<>();
+    transferScheduler.schedule(lane, Math.max(byteLength, 0), () -> {
+      if (result.isDone()) {
+        log.debug("{} {} - cancelled", request.method(), request.uri());
+        transferScheduler.release(lane);
+        return;
       }
-      log.debug("get {} {} - code {} | body: {}", request.method(), request.uri(),
-          response.statusCode(), bodyString);
-    } catch (IOException ex) {
-      throw new ServerConnectionException(ex);
-    } catch (InterruptedException ex) {
-      log.debug("{} {} - cancelled", request.method(), request.uri());
-      throw ex;
+
+      log.debug("send {} {} | body: {}", request.method(), request.uri(), data);
+      CompletableFuture<HttpResponse<byte[]>> exchange;
+      try {
+        exchange = httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray());
+      } catch (RuntimeException ex) {
+        transferScheduler.release(lane);
+        result.completeExceptionally(ex);
+        return;
+      }
+      result.whenComplete((_, _) -> exchange.cancel(true));
+      exchange.whenComplete((response, ex) -> {
+        transferScheduler.release(lane);
+        if (ex != null) {
+          result.completeExceptionally(toRequestFailure(ex));
+          return;
+        }
+        try {
+          result.complete(parseResponse(request, response, c));
+        } catch (ServerResponseException parseEx) {
+          result.completeExceptionally(parseEx);
+        }
+      });
+    });
+    return ChainableFuture.wrapWeakly(result);
+  }
+
+  private static Throwable toRequestFailure(Throwable ex) {
+    if (ex instanceof CompletionException && ex.getCause() != null) {
+      ex = ex.getCause();
     }
+    return ex instanceof IOException ? new ServerConnectionException(ex) : ex;
+  }
 
-    if (response.body() == null || response.body().isEmpty()) {
+  private static <T> T parseResponse(HttpRequest request, HttpResponse<byte[]> response, Class<T> c)
+      throws ServerResponseException {
+    byte[] body = response.body();
+    String loggedBody = body == null ? null :
+        new String(body, 0, Math.min(LOGGED_BODY_MAX_LENGTH, body.length), StandardCharsets.UTF_8);
+    log.debug("get {} {} - code {} | body: {}", request.method(), request.uri(),
+        response.statusCode(), loggedBody);
+
+    if (body == null || body.length == 0) {
       throw new UnexpectedServerResponseException(request.uri(), "no body");
     }
 
     try {
-      return objectMapper.readValue(response.body(), c);
-    } catch (JsonProcessingException ex) {
+      return objectMapper.readValue(body, c);
+    } catch (IOException ex) {
       log.error("Failed to parse server response", ex);
-      throw new UnparsableServerResponseException(request.uri(), "Invalid body: " + response.body(), ex);
+      throw new UnparsableServerResponseException(request.uri(),
+          "Invalid body: " + new String(body, StandardCharsets.UTF_8), ex);
+    }
+  }
+
+  /** Waits for the request sent asynchronously, rethrowing its failure as the blocking methods do */
+  private static <T> T await(ChainableFuture<T> future)
+      throws ServerConnectionException, ServerResponseException, InterruptedException {
+    try {
+      return future.get();
+    } catch (InterruptedException ex) {
+      future.cancel(true);
+      throw ex;
+    } catch (ExecutionException ex) {
+      switch (ex.getCause()) {
+        case ServerConnectionException cause -> throw cause;
+        case ServerResponseException cause -> throw cause;
+        case RuntimeException cause -> throw cause;
+        case null, default -> throw new ServerConnectionException(ex.getCause());
+      }
     }
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,111 @@
+package org.reminstant.secretalk.client.service;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p> Starts requests to the server in lanes. Every lane runs at most its own number of requests at once
+ * and queues the rest, so bulk transfers cannot hold up control and text requests.
+ * <p> Bulk requests may also be paced to a bandwidth cap: each one is started no earlier than
+ * the previous ones would have been sent at the capped rate.
+ * <p> A started request must call {@link #release(Lane)} once it is done.
+ */
+class TransferScheduler {
+
+  enum Lane {
+    /** Authorization, chat control, event polling and acknowledgements */
+    CONTROL,
+    TEXT,
+    IMAGE,
+    /** File parts */
+    BULK
+  }
+
+  private static final ScheduledExecutorService PACER = Executors.newSingleThreadScheduledExecutor(
+      Thread.ofPlatform().name("transfer-pacer").daemon(true).factory());
+
+  private final Map<Lane, LaneState> lanes;
+  private final long bulkBytesPerSecond;
+  private long nextBulkStartNanos;
+
+  /** Bulk transfers are not paced if {@code bulkBytesPerSecond} is not positive */
+  TransferScheduler(Map<Lane, Integer> maxConcurrentRequests, long bulkBytesPerSecond) {
+    this.lanes = new EnumMap<>(Lane.class);
+    for (Lane lane : Lane.values()) {
+      int limit = maxConcurrentRequests.getOrDefault(lane, 0);
+      if (limit <= 0) {
+        throw new IllegalArgumentException("Max concurrent request count of %s lane must be positive"
+            .formatted(lane));
+      }
+      lanes.put(lane, new LaneState(limit));
+    }
+    this.bulkBytesPerSecond = bulkBytesPerSecond;
+    this.nextBulkStartNanos = System.nanoTime();
+  }
+
+  void schedule(Lane lane, long byteLength, Runnable request) {
+    Runnable pacedRequest = lane == Lane.BULK && bulkBytesPerSecond > 0
+        ? () -> startPaced(byteLength, request)
+        : request;
+
+    LaneState state = lanes.get(lane);
+    synchronized (state) {
+      if (state.activeRequestCount == state.maxConcurrentRequests) {
+        state.pendingRequests.add(pacedRequest);
+        return;
+      }
+      ++state.activeRequestCount;
+    }
+    pacedRequest.run();
+  }
+
+  /** Hands the place in the lane over to the next pending request if there is one */
+  void release(Lane lane) {
+    LaneState state = lanes.get(lane);
+    Runnable next;
+    synchronized (state) {
+      next = state.pendingRequests.poll();
+      if (next == null) {
+        --state.activeRequestCount;
+        return;
+      }
+    }
+    next.run();
+  }
+
+  private void startPaced(long byteLength, Runnable request) {
+    long delayNanos;
+    synchronized (this) {
+      long now = System.nanoTime();
+      long startNanos = Math.max(now, nextBulkStartNanos);
+      nextBulkStartNanos = startNanos + TimeUnit.SECONDS.toNanos(byteLength) / bulkBytesPerSecond;
+      delayNanos = startNanos - now;
+    }
+
+    if (delayNanos == 0) {
+      request.run();
+    } else {
+      PACER.schedule(request, delayNanos, TimeUnit.NANOSECONDS);
+    }
+  }
+
+
+
+  private static final class LaneState {
+
+    private final int maxConcurrentRequests;
+    private final Queue<Runnable> pendingRequests;
+    private int activeRequestCount;
+
+    private LaneState(int maxConcurrentRequests) {
+      this.maxConcurrentRequests = maxConcurrentRequests;
+      this.pendingRequests = new ArrayDeque<>();
+      this.activeRequestCount = 0;
+    }
+  }
+}
@@ -3,10 +3,14 @@ package org.reminstant.secretalk.client.util;
 public class ClientStatus {
 
   public static final int OK = 200000;
+
+  public static final int CORRUPTED_DATA = 400013;
   
   public static final int MODULE_INITIALISATION_FAILURE = 602001;
   public static final int MODULE_UNINITIALISED_ACCESS = 602002;
   public static final int NOTHING_TO_PROCESS = 602003;
+  public static final int DEADLINE_EXPIRED = 602004;
+  public static final int OVERLOAD_REJECTION = 602005;
 
   public static final int SERVER_CONNECTION_FAILURE = 603001;
   public static final int SERVER_RESPONSE_ERROR = 603002;
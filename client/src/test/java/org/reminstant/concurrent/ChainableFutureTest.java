@@ -0,0 +1,114 @@
+package org.reminstant.concurrent;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChainableFutureTest {
+
+  private final SlowSubmissionExecutor executor = new SlowSubmissionExecutor();
+
+  @AfterEach
+  void tearDown() {
+    executor.submissionReturn.countDown();
+  }
+
+  @Test
+  void cancellationDuringSubmissionInterruptsSupplier() throws Exception {
+    CountDownLatch supplierStart = new CountDownLatch(1);
+    CountDownLatch supplierInterruption = new CountDownLatch(1);
+    CountDownLatch parentRelease = new CountDownLatch(1);
+    ChainableFuture<Void> parent = ChainableFuture.runWeaklyAsync(parentRelease::await, executor);
+    ChainableFuture<Object> child = parent.thenWeaklyMapAsync(_ -> blockUntilInterrupted(
+        supplierStart, supplierInterruption));
+    parentRelease.countDown();
+
+    assertTrue(supplierStart.await(5, TimeUnit.SECONDS));
+    assertTrue(child.cancel(true));
+    executor.submissionReturn.countDown();
+
+    assertTrue(supplierInterruption.await(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  void cancellationDuringSubmissionInterruptsComposition() throws Exception {
+    CountDownLatch supplierStart = new CountDownLatch(1);
+    CountDownLatch supplierInterruption = new CountDownLatch(1);
+    CountDownLatch parentRelease = new CountDownLatch(1);
+    ChainableFuture<Void> parent = ChainableFuture.runWeaklyAsync(parentRelease::await, executor);
+    ChainableFuture<Object> child = parent.thenWeaklyComposeAsync(_ -> CompletableFuture.completedFuture(
+        blockUntilInterrupted(supplierStart, supplierInterruption)));
+    parentRelease.countDown();
+
+    assertTrue(supplierStart.await(5, TimeUnit.SECONDS));
+    assertTrue(child.cancel(true));
+    executor.submissionReturn.countDown();
+
+    assertTrue(supplierInterruption.await(5, TimeUnit.SECONDS));
+  }
+
+  private Object blockUntilInterrupted(CountDownLatch start, CountDownLatch interruption) {
+    start.countDown();
+    try {
+      Thread.sleep(10_000);
+    } catch (InterruptedException _) {
+      interruption.countDown();
+    }
+    return null;
+  }
+
+
+
+  /**
+   * Starts tasks at once, but returns from every submission but the first one only when let,
+   * as a loaded pool may be late to
+   */
+  private static class SlowSubmissionExecutor extends AbstractExecutorService {
+
+    private final CountDownLatch submissionReturn = new CountDownLatch(1);
+    private final AtomicBoolean isFirstSubmission = new AtomicBoolean(true);
+
+    @Override
+    public void execute(Runnable command) {
+      Thread.ofVirtual().start(command);
+      if (isFirstSubmission.getAndSet(false)) {
+        return;
+      }
+      try {
+        submissionReturn.await();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    @Override
+    public void shutdown() {
+      // nothing to shut down
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+      return List.of();
+    }
+
+    @Override
+    public boolean isShutdown() {
+      return false;
+    }
+
+    @Override
+    public boolean isTerminated() {
+      return false;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) {
+      return true;
+    }
+  }
+}
@@ -0,0 +1,85 @@
+package org.reminstant.cryptography.context;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.reminstant.cryptography.symmetric.DES;
+
+import java.io.EOFException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.junit.jupiter.api.Assertions.*;
+
+class SymmetricCryptoContextTest {
+
+  private static final int MESSAGE_BYTE_LENGTH = 256 * (1 << 10);
+
+  @TempDir
+  Path tempPath;
+
+  private SymmetricCryptoContext context;
+  private byte[] message;
+  private Path cipherPath;
+
+  @BeforeEach
+  void setUp() throws Exception {
+    Random random = new Random(42);
+    byte[] key = new byte[7];
+    byte[] initVector = new byte[8];
+    random.nextBytes(key);
+    random.nextBytes(initVector);
+    context = new SymmetricCryptoContext(new DES(key), Padding.PKCS7, BlockCipherMode.CBC, initVector);
+
+    message = new byte[MESSAGE_BYTE_LENGTH];
+    random.nextBytes(message);
+    cipherPath = Files.write(tempPath.resolve("cipher"), context.encrypt(message));
+  }
+
+  @Test
+  void decryptRangeMatchesMessage() throws Exception {
+    byte[] range = context.decryptRange(cipherPath, 1000, 100_000);
+    assertArrayEquals(Arrays.copyOfRange(message, 1000, 101_000), range);
+  }
+
+  @Test
+  void interruptedReadFailsAndKeepsChannelOpen() throws Exception {
+    try (SeekableByteChannel channel = context.openDecryptingChannel(cipherPath)) {
+      ByteBuffer buffer = ByteBuffer.allocate(MESSAGE_BYTE_LENGTH);
+
+      Thread.currentThread().interrupt();
+      try {
+        assertThrows(InterruptedIOException.class, () -> channel.read(buffer));
+      } finally {
+        assertTrue(Thread.interrupted());
+      }
+
+      assertTrue(channel.isOpen());
+      buffer.clear();
+      channel.position(0);
+      while (buffer.hasRemaining() && channel.read(buffer) > 0) {
+        // reads until the message ends
+      }
+      assertArrayEquals(message, buffer.array());
+    }
+  }
+
+  @Test
+  void failedBlockReadFailsWithIOException() throws Exception {
+    try (SeekableByteChannel channel = context.openDecryptingChannel(cipherPath)) {
+      try (FileChannel cipherChannel = FileChannel.open(cipherPath, WRITE)) {
+        cipherChannel.truncate(MESSAGE_BYTE_LENGTH / 2);
+      }
+
+      ByteBuffer buffer = ByteBuffer.allocate(MESSAGE_BYTE_LENGTH);
+      assertThrows(EOFException.class, () -> channel.read(buffer));
+    }
+  }
+}
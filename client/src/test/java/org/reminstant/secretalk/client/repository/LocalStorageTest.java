@@ -0,0 +1,300 @@
+package org.reminstant.secretalk.client.repository;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.reminstant.secretalk.client.exception.LocalStorageReadException;
+import org.reminstant.secretalk.client.model.Message;
+import org.reminstant.secretalk.client.repository.StorageJournal.ForcePolicy;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LocalStorageTest {
+
+  private static final String USERNAME = "user";
+  private static final String CHAT_ID = "chat";
+
+  @TempDir
+  Path homePath;
+
+  private String originalHome;
+  private LocalStorage storage;
+
+  @BeforeEach
+  void setUp() throws Exception {
+    originalHome = System.getProperty("user.home");
+    System.setProperty("user.home", homePath.toString());
+    storage = new LocalStorage(ForcePolicy.NEVER, 10, 65536, 60_000, 1.0, 1 << 20);
+    storage.init(USERNAME);
+    Files.createDirectories(getChatFolderPath());
+  }
+
+  @AfterEach
+  void tearDown() {
+    storage.reset();
+    System.setProperty("user.home", originalHome);
+  }
+
+  @Test
+  void interruptedReaderDoesNotBreakLaterWrites() throws Exception {
+    for (int i = 0; i < 10; ++i) {
+      storage.saveMessage(CHAT_ID, createMessage("text " + i));
+    }
+    storage.getMessages(CHAT_ID); // applies the journal, so the next read goes to the data files at once
+
+    Thread.currentThread().interrupt();
+    try {
+      assertThrows(LocalStorageReadException.class, () -> storage.getMessages(CHAT_ID));
+    } finally {
+      Thread.interrupted();
+    }
+
+    storage.saveMessage(CHAT_ID, createMessage("after interrupt"));
+    List<Message> messages = storage.getMessages(CHAT_ID);
+    assertEquals(11, messages.size());
+    assertEquals("after interrupt", messages.getLast().getText());
+  }
+
+  @Test
+  void otherReadersSurviveInterruptedReader() throws Exception {
+    for (int i = 0; i < 500; ++i) {
+      storage.saveMessage(CHAT_ID, createMessage("text " + i));
+    }
+
+    AtomicReference<Exception> readerFailure = new AtomicReference<>();
+    Thread reader = Thread.ofPlatform().start(() -> {
+      long deadline = System.currentTimeMillis() + 1000;
+      try {
+        while (System.currentTimeMillis() < deadline) {
+          assertEquals(500, storage.getMessages(CHAT_ID).size());
+        }
+      } catch (Exception ex) {
+        readerFailure.set(ex);
+      }
+    });
+
+    while (reader.isAlive()) {
+      Thread interruptedReader = Thread.ofPlatform().start(() -> {
+        try {
+          storage.getMessages(CHAT_ID);
+        } catch (LocalStorageReadException _) {
+          // expected once the interrupt lands
+        }
+      });
+      Thread.sleep(ThreadLocalRandom.current().nextInt(3));
+      interruptedReader.interrupt();
+      interruptedReader.join();
+    }
+    reader.join();
+
+    assertNull(readerFailure.get());
+    storage.saveMessage(CHAT_ID, createMessage("after interrupts"));
+    assertEquals(501, storage.getMessages(CHAT_ID).size());
+  }
+
+  @Test
+  void replayAfterClearChatRestoresOnlyNewMessages() throws Exception {
+    for (int i = 0; i < 5; ++i) {
+      storage.saveMessage(CHAT_ID, createMessage("old " + i));
+    }
+    storage.getMessages(CHAT_ID);
+    storage.clearChat(CHAT_ID);
+    for (int i = 0; i < 3; ++i) {
+      storage.saveMessage(CHAT_ID, createMessage("new " + i));
+    }
+    storage.getMessages(CHAT_ID); // commits the journal
+
+    // a crash right after the chat is cleared leaves the new messages in the journal only
+    Path crashedHomePath = homePath.resolve("crashed");
+    Path crashedUserFolderPath = crashedHomePath.resolve(".secretalk").resolve(USERNAME);
+    Files.createDirectories(crashedUserFolderPath.resolve(CHAT_ID));
+    Files.copy(getUserFolderPath().resolve("journal"), crashedUserFolderPath.resolve("journal"));
+    assertTrue(Files.size(crashedUserFolderPath.resolve("journal")) > 0);
+
+    System.setProperty("user.home", crashedHomePath.toString());
+    LocalStorage crashedStorage = new LocalStorage(ForcePolicy.NEVER, 10, 65536, 60_000, 1.0, 1 << 20);
+    crashedStorage.init(USERNAME);
+    try {
+      List<String> texts = crashedStorage.getMessages(CHAT_ID).stream()
+          .map(Message::getText)
+          .toList();
+      assertEquals(List.of("new 0", "new 1", "new 2"), texts);
+    } finally {
+      crashedStorage.reset();
+    }
+  }
+
+  @Test
+  void committedCompactionIsRolledForwardOnInit() throws Exception {
+    List<String> texts = saveAndCloseMessages(20);
+    Path chatFolderPath = getChatFolderPath();
+    for (String dataFileName : List.of("data0", "data1")) {
+      Path dataPath = chatFolderPath.resolve(dataFileName);
+      Files.copy(dataPath, chatFolderPath.resolve(dataFileName + ".compacted"));
+      Files.write(dataPath, new byte[0]); // the swap replaces the old files whatever they hold
+    }
+    Files.createFile(chatFolderPath.resolve("compaction"));
+
+    storage.init(USERNAME);
+
+    assertEquals(texts, getMessageTexts());
+    assertCompactionFilesDeleted();
+  }
+
+  @Test
+  void compactionCutMidSwapIsFinishedOnInit() throws Exception {
+    List<String> texts = saveAndCloseMessages(20);
+    Path chatFolderPath = getChatFolderPath();
+    Files.copy(chatFolderPath.resolve("data1"), chatFolderPath.resolve("data1.compacted"));
+    Files.write(chatFolderPath.resolve("data1"), new byte[0]);
+    Files.createFile(chatFolderPath.resolve("compaction")); // data0 is already swapped
+
+    storage.init(USERNAME);
+
+    assertEquals(texts, getMessageTexts());
+    assertCompactionFilesDeleted();
+  }
+
+  @Test
+  void uncommittedCompactionIsDroppedOnInit() throws Exception {
+    List<String> texts = saveAndCloseMessages(20);
+    Path chatFolderPath = getChatFolderPath();
+    Files.write(chatFolderPath.resolve("data0.compacted"), new byte[] {1, 2, 3});
+    Files.write(chatFolderPath.resolve("data1.compacted"), new byte[] {4, 5, 6});
+
+    storage.init(USERNAME);
+
+    assertEquals(texts, getMessageTexts());
+    assertCompactionFilesDeleted();
+  }
+
+  @Test
+  void compactionRacingWithWritesKeepsEveryMessage() throws Exception {
+    storage.reset();
+    storage = new LocalStorage(ForcePolicy.NEVER, 10, 65536, 10, 0.0, 1); // compacts any garbage at once
+    storage.init(USERNAME);
+
+    List<Message> messages = new ArrayList<>();
+    for (int i = 0; i < 100; ++i) {
+      messages.add(createFileMessage("text " + i, "name " + i, Path.of("path", "0", String.valueOf(i))));
+      storage.saveMessage(CHAT_ID, messages.getLast());
+    }
+
+    List<Message> concurrentMessages = new ArrayList<>();
+    AtomicReference<Exception> writerFailure = new AtomicReference<>();
+    Thread writer = Thread.ofPlatform().start(() -> {
+      try {
+        for (int i = 0; i < 300; ++i) {
+          concurrentMessages.add(createFileMessage("concurrent text " + i, "concurrent name " + i,
+              Path.of("concurrent", String.valueOf(i))));
+          storage.saveMessage(CHAT_ID, concurrentMessages.getLast());
+          Thread.sleep(1);
+        }
+      } catch (Exception ex) {
+        writerFailure.set(ex);
+      }
+    });
+
+    Map<String, String> fileNames = new HashMap<>();
+    Map<String, Path> filePaths = new HashMap<>();
+    for (int round = 1; writer.isAlive(); ++round) {
+      for (Message message : messages) {
+        String fileName = "name %d of round %d".formatted(messages.indexOf(message), round);
+        Path filePath = Path.of("path", String.valueOf(round), message.getId());
+        storage.updateMessageFileName(CHAT_ID, message.getId(), fileName);
+        storage.updateMessageFilePath(CHAT_ID, message.getId(), filePath);
+        fileNames.put(message.getId(), fileName);
+        filePaths.put(message.getId(), filePath);
+      }
+      Thread.sleep(20); // lets the compactor run between the rounds as well
+    }
+    writer.join();
+    assertNull(writerFailure.get());
+    messages.addAll(concurrentMessages);
+
+    long liveByteLength = 0;
+    for (Message message : messages) {
+      liveByteLength += message.getText().getBytes(StandardCharsets.UTF_8).length +
+          fileNames.getOrDefault(message.getId(), message.getFileName()).getBytes(StandardCharsets.UTF_8).length +
+          filePaths.getOrDefault(message.getId(), message.getFilePath()).toString()
+              .getBytes(StandardCharsets.UTF_8).length;
+    }
+    Path dynamicDataPath = getChatFolderPath().resolve("data1");
+    long deadline = System.currentTimeMillis() + 10_000;
+    while (Files.size(dynamicDataPath) != liveByteLength && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(liveByteLength, Files.size(dynamicDataPath)); // all garbage is compacted away
+
+    storage.reset();
+    storage.init(USERNAME);
+
+    List<Message> readMessages = storage.getMessages(CHAT_ID);
+    assertEquals(messages.size(), readMessages.size());
+    for (int i = 0; i < messages.size(); ++i) {
+      Message message = messages.get(i);
+      for (Message readMessage : List.of(readMessages.get(i),
+          storage.readMessageById(CHAT_ID, message.getId()).orElseThrow())) {
+        assertEquals(message.getId(), readMessage.getId());
+        assertEquals(message.getText(), readMessage.getText());
+        assertEquals(fileNames.getOrDefault(message.getId(), message.getFileName()), readMessage.getFileName());
+        assertEquals(filePaths.getOrDefault(message.getId(), message.getFilePath()), readMessage.getFilePath());
+      }
+    }
+    assertEquals(messages.size() * 24L, Files.size(getChatFolderPath().resolve("index"))); // no entry to rebuild
+    assertCompactionFilesDeleted();
+  }
+
+  /** Saves the messages and closes the storage, so the data files hold them all */
+  private List<String> saveAndCloseMessages(int count) throws Exception {
+    List<String> texts = new ArrayList<>();
+    for (int i = 0; i < count; ++i) {
+      texts.add("text " + i);
+      storage.saveMessage(CHAT_ID, createMessage(texts.getLast()));
+    }
+    storage.reset();
+    return texts;
+  }
+
+  private List<String> getMessageTexts() throws Exception {
+    return storage.getMessages(CHAT_ID).stream()
+        .map(Message::getText)
+        .toList();
+  }
+
+  private void assertCompactionFilesDeleted() {
+    Path chatFolderPath = getChatFolderPath();
+    assertFalse(Files.exists(chatFolderPath.resolve("compaction")));
+    assertFalse(Files.exists(chatFolderPath.resolve("data0.compacted")));
+    assertFalse(Files.exists(chatFolderPath.resolve("data1.compacted")));
+  }
+
+  private Path getUserFolderPath() {
+    return homePath.resolve(".secretalk").resolve(USERNAME);
+  }
+
+  private Path getChatFolderPath() {
+    return getUserFolderPath().resolve(CHAT_ID);
+  }
+
+  private static Message createMessage(String text) {
+    return createFileMessage(text, null, null);
+  }
+
+  private static Message createFileMessage(String text, String fileName, Path filePath) {
+    return new Message(UUID.randomUUID().toString(), text, "alice", fileName,
+        false, filePath, false, Message.State.NEW);
+  }
+}
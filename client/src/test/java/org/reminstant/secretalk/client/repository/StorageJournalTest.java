@@ -0,0 +1,220 @@
+package org.reminstant.secretalk.client.repository;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.reminstant.secretalk.client.repository.StorageJournal.DataChannels;
+import org.reminstant.secretalk.client.repository.StorageJournal.DataFile;
+import org.reminstant.secretalk.client.repository.StorageJournal.ForcePolicy;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.nio.file.StandardOpenOption.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class StorageJournalTest {
+
+  private static final String CHAT_ID = "chat";
+  private static final int RECORD_DATA_BYTE_LENGTH = 16;
+  private static final int RECORD_BYTE_LENGTH = 8 + 11 + CHAT_ID.length() + RECORD_DATA_BYTE_LENGTH;
+
+  @TempDir
+  Path tempPath;
+
+  private final List<StorageJournal> journals = new ArrayList<>();
+  private final List<FolderDataChannels> dataChannels = new ArrayList<>();
+
+  @AfterEach
+  void tearDown() throws IOException {
+    for (StorageJournal journal : journals) {
+      journal.close();
+    }
+    for (FolderDataChannels channels : dataChannels) {
+      channels.close();
+    }
+  }
+
+  @Test
+  void replayAppliesJournalLeftByCrash() throws Exception {
+    Path journalPath = writeCrashedJournal(3);
+
+    Path dataPath = openJournal(journalPath, CHAT_ID);
+
+    assertArrayEquals(concat(createData(0), createData(1), createData(2)), readData(dataPath));
+    assertEquals(0, Files.size(journalPath));
+  }
+
+  @Test
+  void replayDropsTornTailRecord() throws Exception {
+    Path journalPath = writeCrashedJournal(3);
+    try (FileChannel channel = FileChannel.open(journalPath, WRITE)) {
+      channel.truncate(channel.size() - RECORD_DATA_BYTE_LENGTH / 2);
+    }
+
+    Path dataPath = openJournal(journalPath, CHAT_ID);
+
+    assertArrayEquals(concat(createData(0), createData(1)), readData(dataPath));
+    assertEquals(0, Files.size(journalPath));
+  }
+
+  @Test
+  void replayDropsTailRecordWithWrongChecksum() throws Exception {
+    Path journalPath = writeCrashedJournal(3);
+    try (RandomAccessFile file = new RandomAccessFile(journalPath.toFile(), "rw")) {
+      long lastBytePos = file.length() - 1;
+      file.seek(lastBytePos);
+      byte lastByte = file.readByte();
+      file.seek(lastBytePos);
+      file.writeByte(lastByte ^ 1);
+    }
+
+    Path dataPath = openJournal(journalPath, CHAT_ID);
+
+    assertArrayEquals(concat(createData(0), createData(1)), readData(dataPath));
+  }
+
+  @Test
+  void replayStopsAtCorruptedRecord() throws Exception {
+    Path journalPath = writeCrashedJournal(3);
+    try (RandomAccessFile file = new RandomAccessFile(journalPath.toFile(), "rw")) {
+      file.seek(RECORD_BYTE_LENGTH + 4); // the checksum of the second record
+      file.writeInt(0);
+    }
+
+    Path dataPath = openJournal(journalPath, CHAT_ID);
+
+    assertArrayEquals(createData(0), readData(dataPath));
+  }
+
+  @Test
+  void replaySkipsRecordsOfMissingChat() throws Exception {
+    Path journalPath = writeCrashedJournal(2);
+
+    FolderDataChannels channels = new FolderDataChannels(tempPath.resolve("replayed"));
+    dataChannels.add(channels);
+    journals.add(new StorageJournal(journalPath, channels, ForcePolicy.NEVER, 60_000, 1 << 20));
+
+    assertFalse(Files.exists(channels.folderPath.resolve(CHAT_ID)));
+    assertEquals(0, Files.size(journalPath));
+  }
+
+  @Test
+  void writesAfterReplayOfTornTailAreReplayedAlone() throws Exception {
+    Path journalPath = writeCrashedJournal(2);
+    try (FileChannel channel = FileChannel.open(journalPath, WRITE)) {
+      channel.truncate(channel.size() - 1);
+    }
+
+    FolderDataChannels channels = new FolderDataChannels(tempPath.resolve("replayed"));
+    Files.createDirectories(channels.folderPath.resolve(CHAT_ID));
+    dataChannels.add(channels);
+    StorageJournal journal = new StorageJournal(journalPath, channels, ForcePolicy.NEVER, 60_000, 1 << 20);
+    journals.add(journal);
+    journal.write(CHAT_ID, DataFile.DYNAMIC, RECORD_DATA_BYTE_LENGTH, createData(5));
+    journal.sync();
+
+    Path copiedJournalPath = Files.copy(journalPath, tempPath.resolve("journal-copy"));
+    Path dataPath = openJournal(copiedJournalPath, CHAT_ID);
+
+    assertEquals(RECORD_BYTE_LENGTH, Files.size(journalPath));
+    assertArrayEquals(concat(new byte[RECORD_DATA_BYTE_LENGTH], createData(5)), readData(dataPath));
+  }
+
+  /** Returns a copy of the journal holding the records, as a crash before the checkpoint leaves it */
+  private Path writeCrashedJournal(int recordCount) throws IOException {
+    FolderDataChannels channels = new FolderDataChannels(tempPath.resolve("written"));
+    Files.createDirectories(channels.folderPath.resolve(CHAT_ID));
+    dataChannels.add(channels);
+    Path journalPath = tempPath.resolve("journal");
+    StorageJournal journal = new StorageJournal(journalPath, channels, ForcePolicy.NEVER, 60_000, 1 << 20);
+    journals.add(journal);
+
+    for (int i = 0; i < recordCount; ++i) {
+      journal.write(CHAT_ID, DataFile.DYNAMIC, (long) i * RECORD_DATA_BYTE_LENGTH, createData(i));
+    }
+    journal.sync();
+    assertEquals((long) recordCount * RECORD_BYTE_LENGTH, Files.size(journalPath));
+    return Files.copy(journalPath, tempPath.resolve("crashed-journal"));
+  }
+
+  /** Replays the journal into empty data files of the chats and returns the dynamic data file of the chat */
+  private Path openJournal(Path journalPath, String... chatIds) throws IOException {
+    FolderDataChannels channels = new FolderDataChannels(tempPath.resolve("replayed-" + journals.size()));
+    for (String chatId : chatIds) {
+      Files.createDirectories(channels.folderPath.resolve(chatId));
+    }
+    dataChannels.add(channels);
+    journals.add(new StorageJournal(journalPath, channels, ForcePolicy.NEVER, 60_000, 1 << 20));
+    return channels.getPath(CHAT_ID, DataFile.DYNAMIC);
+  }
+
+  private static byte[] readData(Path dataPath) throws IOException {
+    return Files.exists(dataPath) ? Files.readAllBytes(dataPath) : new byte[0];
+  }
+
+  private static byte[] createData(int recordNumber) {
+    byte[] data = new byte[RECORD_DATA_BYTE_LENGTH];
+    Arrays.fill(data, (byte) ('a' + recordNumber));
+    return data;
+  }
+
+  private static byte[] concat(byte[]... parts) {
+    byte[] res = new byte[Arrays.stream(parts).mapToInt(part -> part.length).sum()];
+    int pos = 0;
+    for (byte[] part : parts) {
+      System.arraycopy(part, 0, res, pos, part.length);
+      pos += part.length;
+    }
+    return res;
+  }
+
+
+
+  private static class FolderDataChannels implements DataChannels {
+
+    private final Path folderPath;
+    private final Map<Path, FileChannel> channels;
+
+    private FolderDataChannels(Path folderPath) throws IOException {
+      this.folderPath = Files.createDirectories(folderPath);
+      this.channels = new HashMap<>();
+    }
+
+    @Override
+    public synchronized FileChannel get(String chatId, DataFile file) throws IOException {
+      Path path = getPath(chatId, file);
+      FileChannel channel = channels.get(path);
+      if (channel == null || !channel.isOpen()) {
+        channel = FileChannel.open(path, CREATE, READ, WRITE);
+        channels.put(path, channel);
+      }
+      return channel;
+    }
+
+    @Override
+    public synchronized void forceAll() throws IOException {
+      for (FileChannel channel : channels.values()) {
+        channel.force(false);
+      }
+    }
+
+    private Path getPath(String chatId, DataFile file) {
+      return folderPath.resolve(chatId).resolve(file.name().toLowerCase());
+    }
+
+    private synchronized void close() throws IOException {
+      for (FileChannel channel : channels.values()) {
+        channel.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,60 @@
+package org.reminstant.secretalk.server.config;
+
+import org.reminstant.secretalk.server.controller.EventWebSocketHandler;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.lang.NonNull;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.config.annotation.EnableWebSocket;
+import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
+import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry;
+import org.springframework.web.socket.server.HandshakeInterceptor;
+
+import java.util.Map;
+
+@Configuration
+@EnableWebSocket
+public class WebSocketConfig implements WebSocketConfigurer {
+
+  private final EventWebSocketHandler eventWebSocketHandler;
+  private final String eventWebSocketEndpoint;
+
+  public WebSocketConfig(EventWebSocketHandler eventWebSocketHandler,
+                         @Value("${api.event-websocket}") String eventWebSocketEndpoint) {
+    this.eventWebSocketHandler = eventWebSocketHandler;
+    this.eventWebSocketEndpoint = eventWebSocketEndpoint;
+  }
+
+  @Override
+  public void registerWebSocketHandlers(@NonNull WebSocketHandlerRegistry registry) {
+    registry.addHandler(eventWebSocketHandler, eventWebSocketEndpoint)
+        .addInterceptors(new AuthenticatedHandshakeInterceptor());
+  }
+
+  /** Handshake passes the security chain unauthenticated, so the bearer token is checked here */
+  private static class AuthenticatedHandshakeInterceptor implements HandshakeInterceptor {
+
+    @Override
+    public boolean beforeHandshake(@NonNull ServerHttpRequest request,
+                                   @NonNull ServerHttpResponse response,
+                                   @NonNull WebSocketHandler wsHandler,
+                                   @NonNull Map<String, Object> attributes) {
+      if (request.getPrincipal() == null) {
+        response.setStatusCode(HttpStatus.UNAUTHORIZED);
+        return false;
+      }
+      return true;
+    }
+
+    @Override
+    public void afterHandshake(@NonNull ServerHttpRequest request,
+                               @NonNull ServerHttpResponse response,
+                               @NonNull WebSocketHandler wsHandler,
+                               Exception exception) {
+      // nothing to do
+    }
+  }
+}
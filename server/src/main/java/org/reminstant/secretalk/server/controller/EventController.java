@@ -3,12 +3,15 @@ package org.reminstant.secretalk.server.controller;
 import jakarta.servlet.http.HttpServletRequest;
 import lombok.extern.slf4j.Slf4j;
 import org.reminstant.secretalk.server.dto.http.*;
+import org.reminstant.secretalk.server.dto.nats.ChatMessageEvent;
 import org.reminstant.secretalk.server.dto.nats.UserEvent;
 import org.reminstant.secretalk.server.exception.LocalFileStorageException;
 import org.reminstant.secretalk.server.repository.LocalFileStorage;
+import org.reminstant.secretalk.server.repository.LocalFileStorage.FileParticipants;
 import org.reminstant.secretalk.server.service.AppUserService;
 import org.reminstant.secretalk.server.service.NatsBrokerService;
 import org.reminstant.secretalk.server.util.InternalStatus;
+import org.reminstant.secretalk.server.util.PayloadHeaders;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
@@ -16,7 +19,9 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
 import java.security.Principal;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 
 @Slf4j
@@ -43,16 +48,34 @@ public class EventController {
       .contentType(MediaType.APPLICATION_JSON)
       .body(new StatusWrapper(InternalStatus.TO_MUCH_DATA));
 
+  private static final ResponseEntity<StatusWrapper> corruptedDataResponse = ResponseEntity
+      .status(HttpStatus.BAD_REQUEST)
+      .contentType(MediaType.APPLICATION_JSON)
+      .body(new StatusWrapper(InternalStatus.CORRUPTED_DATA));
+
+  private static final ResponseEntity<StatusWrapper> notFileParticipantResponse = ResponseEntity
+      .status(HttpStatus.FORBIDDEN)
+      .contentType(MediaType.APPLICATION_JSON)
+      .body(new StatusWrapper(InternalStatus.FORBIDDEN_RESOURCE));
+
   private final NatsBrokerService nats;
   private final AppUserService userService;
   private final LocalFileStorage fileStorage;
 
   @Value("${chat.message.text-max-byte-length}")
   private int textMaxByteLength;
+  @Value("${chat.message.max-batch-size}")
+  private int messageMaxBatchSize;
   @Value("${chat.message.image-max-byte-length}")
   private int imageMaxByteLength;
-  @Value("${chat.message.file-part-byte-length}")
-  private int filePartByteLength;
+  @Value("${chat.message.file-part-min-byte-length}")
+  private int filePartMinByteLength;
+  @Value("${chat.message.file-part-max-byte-length}")
+  private int filePartMaxByteLength;
+  @Value("${chat.message.file-event-part-byte-length}")
+  private int fileEventPartByteLength;
+  @Value("${chat.event.max-batch-size}")
+  private int eventMaxBatchSize;
 
   EventController(NatsBrokerService natsBrokerService,
                   AppUserService userService,
@@ -97,6 +120,15 @@ public class EventController {
         ));
   }
 
+  /** Lets clients measure the round trip time without the server doing any work */
+  @GetMapping("${api.ping}")
+  ResponseEntity<StatusWrapper> ping(HttpServletRequest request, Principal principal) {
+    logDebugHttpRequest(request, principal, null);
+    return ResponseEntity.ok()
+        .contentType(MediaType.APPLICATION_JSON)
+        .build();
+  }
+
   @GetMapping("${api.get-event}")
   ResponseEntity<UserEventWrapper> getEvent(HttpServletRequest request,
                                             @RequestParam(required = false) Long timeoutMillis,
@@ -122,14 +154,50 @@ public class EventController {
         .body(new UserEventWrapper(rawEvent));
   }
 
+  @GetMapping(value = "${api.get-event}", params = "maxCount")
+  ResponseEntity<UserEventBatch> getEvents(HttpServletRequest request,
+                                           @RequestParam int maxCount,
+                                           @RequestParam(required = false) Long timeoutMillis,
+                                           Principal principal) {
+    logDebugHttpRequest(request, principal, null);
+    if (timeoutMillis == null || timeoutMillis < 300) {
+      timeoutMillis = 100L;
+    }
+    maxCount = Math.clamp(maxCount, 1, eventMaxBatchSize);
+
+    UserEventBatch batch;
+    try {
+      batch = UserEventBatch.of(nats.getEvents(principal.getName(), maxCount, timeoutMillis));
+    } catch (Exception ex) {
+      log.error("Failed to get NATS events", ex);
+      return ResponseEntity
+          .status(HttpStatus.INTERNAL_SERVER_ERROR)
+          .contentType(MediaType.APPLICATION_JSON)
+          .build();
+    }
+
+    return ResponseEntity.ok()
+        .contentType(MediaType.APPLICATION_JSON)
+        .body(batch);
+  }
+
   @PostMapping("${api.acknowledge-event}")
   ResponseEntity<Void> ackEvent(HttpServletRequest request,
                                 @RequestBody EventGetData data,
                                 Principal principal) {
     logDebugHttpRequest(request, principal, data);
     try {
-      boolean isOK = nats.acknowledgeEvent(principal.getName(), data.eventId());
-      if (!isOK) {
+      if (data.upToSequence() != null) {
+        nats.acknowledgeEventsUpTo(principal.getName(), data.upToSequence());
+      }
+      if (data.eventIds() != null) {
+        for (String eventId : data.eventIds()) {
+          if (!nats.acknowledgeEvent(principal.getName(), eventId)) {
+            log.warn("Tried to acknowledge non-existent event-message ({})", eventId);
+          }
+        }
+      }
+      if (data.eventId() != null && !nats.acknowledgeEvent(principal.getName(), data.eventId())) {
         log.error("Tried to acknowledge non-existent event-message ({})", data.eventId());
         return ResponseEntity.badRequest()
             .contentType(MediaType.APPLICATION_JSON)
@@ -275,6 +343,12 @@ public class EventController {
       return selfRequestResponse;
     }
 
+    try {
+      fileStorage.deleteChatFiles(data.chatId(), principal.getName());
+    } catch (LocalFileStorageException ex) {
+      log.warn("Failed to delete files of destroyed chat", ex);
+    }
+
     try {
       nats.sendChatDestroying(data.chatId(), principal.getName(), data.otherUsername());
     } catch (Exception ex) {
@@ -321,6 +395,67 @@ public class EventController {
         .build();
   }
 
+  /** Messages of the batch are delivered to the recipient as one event */
+  @PostMapping("${api.send-chat-messages}")
+  ResponseEntity<StatusWrapper> sendChatMessages(HttpServletRequest request,
+                                                 @RequestBody ChatMessageBatchData data,
+                                                 Principal principal) {
+    logDebugHttpRequest(request, principal, null);
+    if (data.messages() == null || data.messages().isEmpty()) {
+      return ResponseEntity.badRequest()
+          .contentType(MediaType.APPLICATION_JSON)
+          .build();
+    }
+    if (!userService.isUserExistent(data.otherUsername())) {
+      return nonExistentUserResponse;
+    }
+    if (principal.getName().equals(data.otherUsername())) {
+      return selfRequestResponse;
+    }
+    if (data.messages().size() > messageMaxBatchSize) {
+      return tooMuchDataResponse;
+    }
+
+    List<ChatMessageEvent> messages = new ArrayList<>(data.messages().size());
+    for (ChatMessageData message : data.messages()) {
+      if (message.messageId() == null || message.chatId() == null || message.messageData() == null) {
+        return ResponseEntity.badRequest()
+            .contentType(MediaType.APPLICATION_JSON)
+            .build();
+      }
+      if (message.messageData().length > textMaxByteLength) {
+        return tooMuchDataResponse;
+      }
+      messages.add(new ChatMessageEvent(message.messageId(), message.chatId(), principal.getName(),
+          message.messageData(), message.attachedFileName(), message.isImage()));
+    }
+
+    try {
+      nats.sendChatMessages(data.otherUsername(), messages);
+    } catch (Exception ex) {
+      log.error("Failed to send NATS event", ex); // NOSONAR
+      return internalErrorResponse;
+    }
+
+    return ResponseEntity.ok()
+        .contentType(MediaType.APPLICATION_JSON)
+        .build();
+  }
+
+  @PostMapping(value = "${api.send-chat-message}", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+  ResponseEntity<StatusWrapper> sendBinaryChatMessage(
+      HttpServletRequest request,
+      @RequestHeader(PayloadHeaders.MESSAGE_ID) String messageId,
+      @RequestHeader(PayloadHeaders.CHAT_ID) String chatId,
+      @RequestHeader(PayloadHeaders.OTHER_USERNAME) String otherUsername,
+      @RequestHeader(value = PayloadHeaders.FILE_NAME, required = false) String attachedFileName,
+      @RequestHeader(value = PayloadHeaders.IS_IMAGE, defaultValue = "false") boolean isImage,
+      @RequestBody byte[] messageData,
+      Principal principal) {
+    return sendChatMessage(request, new ChatMessageData(messageId, chatId, PayloadHeaders.decode(otherUsername),
+        messageData, PayloadHeaders.decode(attachedFileName), isImage), principal);
+  }
+
   @PostMapping("${api.send-image}")
   ResponseEntity<StatusWrapper> sendImage(HttpServletRequest request,
                                           @RequestBody ChatImageData data,
@@ -352,6 +487,19 @@ public class EventController {
         .build();
   }
 
+  @PostMapping(value = "${api.send-image}", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+  ResponseEntity<StatusWrapper> sendBinaryImage(
+      HttpServletRequest request,
+      @RequestHeader(PayloadHeaders.MESSAGE_ID) String messageId,
+      @RequestHeader(PayloadHeaders.CHAT_ID) String chatId,
+      @RequestHeader(PayloadHeaders.OTHER_USERNAME) String otherUsername,
+      @RequestHeader(PayloadHeaders.FILE_NAME) String fileName,
+      @RequestBody byte[] imageData,
+      Principal principal) {
+    return sendImage(request, new ChatImageData(messageId, chatId, PayloadHeaders.decode(otherUsername),
+        PayloadHeaders.decode(fileName), imageData), principal);
+  }
+
   @PostMapping("${api.send-file-part}")
   ResponseEntity<StatusWrapper> sendFilePart(HttpServletRequest request,
                                              @RequestBody ChatFileData data,
@@ -363,14 +511,24 @@ public class EventController {
     if (principal.getName().equals(data.otherUsername())) {
       return selfRequestResponse;
     }
-    if (data.fileData().length > filePartByteLength) {
-      return tooMuchDataResponse;
-    }
 
     String fileName = data.chatId() + data.messageId();
     try {
-      long pos = data.partNumber() * filePartByteLength;
-      fileStorage.writeFilePart(fileName, pos, data.fileData());
+      FileParticipants participants = fileStorage.getFileParticipants(fileName);
+      if (participants != null &&
+          !participants.equals(new FileParticipants(principal.getName(), data.otherUsername()))) {
+        return notFileParticipantResponse;
+      }
+      int partByteLength = fileStorage.getPartByteLength(fileName);
+      if (partByteLength == 0 || data.partOffset() != data.partNumber() * partByteLength) {
+        return ResponseEntity.badRequest()
+            .contentType(MediaType.APPLICATION_JSON)
+            .build();
+      }
+      if (data.fileData().length > partByteLength) {
+        return tooMuchDataResponse;
+      }
+      fileStorage.writeFilePart(fileName, data.partNumber(), data.partOffset(), data.fileData());
     } catch (LocalFileStorageException ex) {
       log.error("File storage exception", ex);
       return ResponseEntity
@@ -384,6 +542,75 @@ public class EventController {
         .build();
   }
 
+  @PostMapping(value = "${api.send-file-part}", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+  ResponseEntity<StatusWrapper> sendBinaryFilePart(
+      HttpServletRequest request,
+      @RequestHeader(PayloadHeaders.MESSAGE_ID) String messageId,
+      @RequestHeader(PayloadHeaders.CHAT_ID) String chatId,
+      @RequestHeader(PayloadHeaders.OTHER_USERNAME) String otherUsername,
+      @RequestHeader(PayloadHeaders.PART_COUNT) long partCount,
+      @RequestHeader(PayloadHeaders.PART_NUMBER) long partNumber,
+      @RequestHeader(PayloadHeaders.PART_OFFSET) long partOffset,
+      @RequestHeader(value = PayloadHeaders.PART_CHECKSUM, required = false) Long checksum,
+      @RequestBody byte[] fileData,
+      Principal principal) {
+    if (checksum != null && checksum != LocalFileStorage.checksum(fileData)) {
+      log.warn("Part {} of message {} is corrupted", partNumber, messageId);
+      return corruptedDataResponse;
+    }
+    return sendFilePart(request, new ChatFileData(messageId, chatId, PayloadHeaders.decode(otherUsername),
+        partCount, partNumber, partOffset, fileData), principal);
+  }
+
+  /**
+   * Starts or resumes the upload. The part length proposed by the uploader is clamped to the configured bounds
+   * and fixed for the file, a resumed upload gets the length fixed by its first attempt.
+   * The first attempt also fixes the uploader and the recipient of the file
+   */
+  @GetMapping("${api.get-missing-file-parts}")
+  ResponseEntity<MissingFileParts> getMissingFileParts(HttpServletRequest request,
+                                                       @RequestParam String messageId,
+                                                       @RequestParam String chatId,
+                                                       @RequestParam String otherUsername,
+                                                       @RequestParam long fileByteLength,
+                                                       @RequestParam int partByteLength,
+                                                       Principal principal) {
+    logDebugHttpRequest(request, principal, null);
+    if (fileByteLength < 0 || partByteLength <= 0 ||
+        principal.getName().equals(otherUsername) || !userService.isUserExistent(otherUsername)) {
+      return ResponseEntity.badRequest()
+          .contentType(MediaType.APPLICATION_JSON)
+          .build();
+    }
+
+    String fileName = chatId + messageId;
+    int negotiatedPartByteLength;
+    List<Long> missingParts;
+    try {
+      negotiatedPartByteLength = fileStorage.negotiatePartByteLength(fileName,
+          new FileParticipants(principal.getName(), otherUsername),
+          Math.clamp(partByteLength, filePartMinByteLength, filePartMaxByteLength));
+      if (negotiatedPartByteLength == 0) {
+        return ResponseEntity
+            .status(HttpStatus.FORBIDDEN)
+            .contentType(MediaType.APPLICATION_JSON)
+            .build();
+      }
+      long partCount = Math.ceilDiv(fileByteLength, negotiatedPartByteLength);
+      missingParts = fileStorage.getMissingFileParts(fileName, partCount);
+    } catch (LocalFileStorageException ex) {
+      log.error("File storage exception", ex);
+      return ResponseEntity
+          .status(HttpStatus.INTERNAL_SERVER_ERROR)
+          .contentType(MediaType.APPLICATION_JSON)
+          .build();
+    }
+
+    return ResponseEntity.ok()
+        .contentType(MediaType.APPLICATION_JSON)
+        .body(new MissingFileParts(negotiatedPartByteLength, missingParts));
+  }
+
   @PostMapping("${api.request-message-file}")
   ResponseEntity<StatusWrapper> requestMessageFile(HttpServletRequest request,
                                                    @RequestBody MessageFileRequestData data,
@@ -398,26 +625,31 @@ public class EventController {
 
     String fileName = data.chatId() + data.messageId();
     try {
-      if (!fileStorage.isFileExist(fileName)) {
+      FileParticipants participants = fileStorage.getFileParticipants(fileName);
+      if (participants == null || !fileStorage.isFileExist(fileName)) {
         return ResponseEntity
             .status(HttpStatus.BAD_REQUEST)
             .contentType(MediaType.APPLICATION_JSON)
             .body(new StatusWrapper(InternalStatus.RESOURCE_NOT_FOUND));
       }
+      if (!participants.equals(new FileParticipants(data.otherUsername(), principal.getName()))) {
+        return notFileParticipantResponse;
+      }
 
       long fileSize = fileStorage.getFileSize(fileName);
-      long partCnt = fileSize / filePartByteLength;
-      if (fileSize % filePartByteLength != 0) {
+      long partCnt = fileSize / fileEventPartByteLength;
+      if (fileSize % fileEventPartByteLength != 0) {
         partCnt++;
       }
 
-      byte[] readBlock = new byte[filePartByteLength];
-      for (long i = 0; i < partCnt; ++i) {
-        long pos = i * filePartByteLength;
+      long fromPartNumber = data.fromPartNumber() != null ? Math.max(0, data.fromPartNumber()) : 0;
+      byte[] readBlock = new byte[fileEventPartByteLength];
+      for (long i = fromPartNumber; i < partCnt; ++i) {
+        long pos = i * fileEventPartByteLength;
         int read = fileStorage.readFilePart(fileName, pos, readBlock);
 
         byte[] block;
-        if (read == filePartByteLength) {
+        if (read == fileEventPartByteLength) {
           block = readBlock;
         } else {
           block = Arrays.copyOf(readBlock, read);
@@ -433,10 +665,36 @@ public class EventController {
       return internalErrorResponse;
     }
 
+    return ResponseEntity.ok()
+        .contentType(MediaType.APPLICATION_JSON)
+        .build();
+  }
+
+  /**
+   * The file is kept until the recipient releases it so that an interrupted download can be resumed.
+   * Releasing a file that is already deleted succeeds
+   */
+  @PostMapping("${api.release-message-file}")
+  ResponseEntity<StatusWrapper> releaseMessageFile(HttpServletRequest request,
+                                                   @RequestBody MessageFileRequestData data,
+                                                   Principal principal) {
+    logDebugHttpRequest(request, principal, data);
+    if (principal.getName().equals(data.otherUsername())) {
+      return selfRequestResponse;
+    }
+
+    String fileName = data.chatId() + data.messageId();
     try {
-      fileStorage.deleteFile(fileName);
+      FileParticipants participants = fileStorage.getFileParticipants(fileName);
+      if (participants != null) {
+        if (!participants.equals(new FileParticipants(data.otherUsername(), principal.getName()))) {
+          return notFileParticipantResponse;
+        }
+        fileStorage.deleteFile(fileName);
+      }
     } catch (LocalFileStorageException ex) {
       log.warn("Failed to delete processed file", ex);
+      return internalErrorResponse;
     }
 
     return ResponseEntity.ok()
@@ -0,0 +1,171 @@
+package org.reminstant.secretalk.server.controller;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import lombok.extern.slf4j.Slf4j;
+import org.reminstant.secretalk.server.dto.http.EventGetData;
+import org.reminstant.secretalk.server.dto.http.UserEventBatch;
+import org.reminstant.secretalk.server.dto.nats.DeliveredEvent;
+import org.reminstant.secretalk.server.service.NatsBrokerService;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.lang.NonNull;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.TextWebSocketHandler;
+
+import java.io.IOException;
+import java.security.Principal;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.reminstant.secretalk.server.util.ObjectMappers.defaultObjectMapper;
+
+/**
+ * <p> Pushes batches of events of the user's JetStream consumer over a WebSocket as soon as they are fetched.
+ * <p> Acknowledgements come back on the same connection as {@code {"upToSequence": ...}} messages.
+ * The next batch is pushed after the previous one is acknowledged, the same order the long-poll keeps.
+ */
+@Slf4j
+@Component
+public class EventWebSocketHandler extends TextWebSocketHandler {
+
+  private static final long FETCH_TIMEOUT_MILLIS = 1000;
+  private static final long ACK_TIMEOUT_MILLIS = 30000;
+
+  private final NatsBrokerService nats;
+  private final Map<String, EventPump> pumps;
+  private final int eventMaxBatchSize;
+
+  EventWebSocketHandler(NatsBrokerService natsBrokerService,
+                        @Value("${chat.event.max-batch-size}") int eventMaxBatchSize) {
+    this.nats = natsBrokerService;
+    this.pumps = new ConcurrentHashMap<>();
+    this.eventMaxBatchSize = eventMaxBatchSize;
+  }
+
+  @Override
+  public void afterConnectionEstablished(@NonNull WebSocketSession session) throws IOException {
+    Principal principal = session.getPrincipal();
+    if (principal == null) {
+      session.close(CloseStatus.POLICY_VIOLATION);
+      return;
+    }
+
+    EventPump pump = new EventPump(principal.getName(), session);
+    pumps.put(session.getId(), pump);
+    pump.start();
+    log.debug("User {}: event websocket is opened", principal.getName());
+  }
+
+  @Override
+  protected void handleTextMessage(@NonNull WebSocketSession session, @NonNull TextMessage message) {
+    EventPump pump = pumps.get(session.getId());
+    if (pump == null) {
+      return;
+    }
+
+    EventGetData data;
+    try {
+      data = defaultObjectMapper.readValue(message.getPayload(), EventGetData.class);
+    } catch (JsonProcessingException ex) {
+      log.warn("User {}: got unparsable websocket message", pump.username);
+      return;
+    }
+    if (data.upToSequence() == null) {
+      log.warn("User {}: got websocket acknowledgement without sequence", pump.username);
+      return;
+    }
+    pump.acknowledge(data.upToSequence());
+  }
+
+  @Override
+  public void afterConnectionClosed(@NonNull WebSocketSession session, @NonNull CloseStatus status) {
+    EventPump pump = pumps.remove(session.getId());
+    if (pump != null) {
+      pump.stop();
+      log.debug("User {}: event websocket is closed ({})", pump.username, status);
+    }
+  }
+
+
+
+  private class EventPump {
+
+    private final String username;
+    private final WebSocketSession session;
+    private final BlockingQueue<Long> acknowledgements;
+
+    private volatile Thread thread;
+
+    private EventPump(String username, WebSocketSession session) {
+      this.username = username;
+      this.session = session;
+      this.acknowledgements = new LinkedBlockingQueue<>();
+    }
+
+    private void start() {
+      thread = Thread.ofVirtual()
+          .name("event-pump-" + username)
+          .start(this::run);
+    }
+
+    private void stop() {
+      Thread t = thread;
+      thread = null;
+      if (t != null) {
+        t.interrupt();
+      }
+    }
+
+    private void acknowledge(long upToSequence) {
+      nats.acknowledgeEventsUpTo(username, upToSequence);
+      acknowledgements.offer(upToSequence);
+    }
+
+    private void run() {
+      try {
+        while (thread != null && session.isOpen()) {
+          List<DeliveredEvent> events = nats.getEvents(username, eventMaxBatchSize, FETCH_TIMEOUT_MILLIS);
+          if (events.isEmpty()) {
+            continue;
+          }
+
+          String json = defaultObjectMapper.writeValueAsString(UserEventBatch.of(events));
+          session.sendMessage(new TextMessage(json));
+          awaitAcknowledgement(events.getLast().sequence());
+        }
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      } catch (Exception ex) {
+        log.error("User {}: event websocket pump failed", username, ex);
+        closeSession();
+      }
+    }
+
+    /** Unacknowledged events are redelivered by the consumer, so the pump just moves on after timeout */
+    private void awaitAcknowledgement(long sequence) throws InterruptedException {
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ACK_TIMEOUT_MILLIS);
+      long left;
+      while ((left = deadline - System.nanoTime()) > 0) {
+        Long acknowledged = acknowledgements.poll(left, TimeUnit.NANOSECONDS);
+        if (acknowledged != null && acknowledged >= sequence) {
+          return;
+        }
+      }
+      log.warn("User {}: events up to {} are not acknowledged in time", username, sequence);
+    }
+
+    private void closeSession() {
+      try {
+        session.close(CloseStatus.SERVER_ERROR);
+      } catch (IOException ex) {
+        log.warn("User {}: failed to close event websocket", username, ex);
+      }
+    }
+  }
+}
@@ -9,11 +9,12 @@ public record ChatConfiguration(
     String cipherMode,
     String paddingMode,
     byte[] initVector,
-    byte[] randomDelta) {
+    byte[] randomDelta,
+    String keyAgreement) {
 
   public ChatConfiguration() {
     this(null, null, null, null,
-        null, null);
+        null, null, null);
   }
 
   @SuppressWarnings("DeconstructionCanBeUsed")
@@ -25,7 +26,8 @@ public record ChatConfiguration(
         cipherMode.equals(config.cipherMode) &&
         paddingMode.equals(config.paddingMode) &&
         Arrays.equals(initVector, config.initVector) &&
-        Arrays.equals(randomDelta, config.randomDelta);
+        Arrays.equals(randomDelta, config.randomDelta) &&
+        Objects.equals(keyAgreement, config.keyAgreement);
   }
 
   @Override
@@ -36,6 +38,7 @@ public record ChatConfiguration(
     result = 31 * result + Objects.hashCode(paddingMode);
     result = 31 * result + Arrays.hashCode(initVector);
     result = 31 * result + Arrays.hashCode(randomDelta);
+    result = 31 * result + Objects.hashCode(keyAgreement);
     return result;
   }
 
@@ -48,6 +51,7 @@ public record ChatConfiguration(
         ", paddingMode='" + paddingMode + '\'' +
         ", initVector=" + Arrays.toString(initVector) +
         ", randomDelta=" + Arrays.toString(randomDelta) +
+        ", keyAgreement='" + keyAgreement + '\'' +
         '}';
   }
 }
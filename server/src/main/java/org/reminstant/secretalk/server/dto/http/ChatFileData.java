@@ -9,6 +9,7 @@ public record ChatFileData(
     String otherUsername,
     long partCount,
     long partNumber,
+    long partOffset,
     byte[] fileData) {
 
   @SuppressWarnings("DeconstructionCanBeUsed")
@@ -20,6 +21,7 @@ public record ChatFileData(
           otherUsername.equals(data.otherUsername) &&
           partCount == data.partCount &&
           partNumber == data.partNumber &&
+          partOffset == data.partOffset &&
           Arrays.equals(fileData, data.fileData);
   }
 
@@ -30,6 +32,7 @@ public record ChatFileData(
     result = 31 * result + Objects.hashCode(otherUsername);
     result = 31 * result + Objects.hashCode(partCount);
     result = 31 * result + Objects.hashCode(partNumber);
+    result = 31 * result + Objects.hashCode(partOffset);
     result = 31 * result + Arrays.hashCode(fileData);
     return result;
   }
@@ -42,6 +45,7 @@ public record ChatFileData(
         ", otherUsername='" + otherUsername + '\'' +
         ", partCount=" + partCount +
         ", partNumber=" + partNumber +
+        ", partOffset=" + partOffset +
         ", fileData=" + Arrays.toString(fileData) +
         '}';
   }
@@ -0,0 +1,9 @@
+package org.reminstant.secretalk.server.dto.http;
+
+import java.util.List;
+
+/** Messages to the same user. Their own {@code otherUsername} is ignored */
+public record ChatMessageBatchData(
+    String otherUsername,
+    List<ChatMessageData> messages) {
+}
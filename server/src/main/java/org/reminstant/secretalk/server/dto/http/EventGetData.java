@@ -1,5 +1,10 @@
 package org.reminstant.secretalk.server.dto.http;
 
+import java.util.List;
+
+/** Acknowledges a single event, a list of events or every event up to the stream sequence */
 public record EventGetData(
-    String eventId) {
+    String eventId,
+    List<String> eventIds,
+    Long upToSequence) {
 }
@@ -3,5 +3,6 @@ package org.reminstant.secretalk.server.dto.http;
 public record MessageFileRequestData(
     String messageId,
     String chatId,
-    String otherUsername) {
+    String otherUsername,
+    Long fromPartNumber) {
 }
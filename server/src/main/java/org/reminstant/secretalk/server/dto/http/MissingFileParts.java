@@ -0,0 +1,9 @@
+package org.reminstant.secretalk.server.dto.http;
+
+import java.util.List;
+
+/** Parts are {@code partByteLength} long, the length is fixed by the first request for the file */
+public record MissingFileParts(
+    int partByteLength,
+    List<Long> partNumbers) {
+}
@@ -0,0 +1,15 @@
+package org.reminstant.secretalk.server.dto.http;
+
+import org.reminstant.secretalk.server.dto.nats.DeliveredEvent;
+
+import java.util.List;
+
+public record UserEventBatch(
+    List<UserEventWrapper> events) {
+
+  public static UserEventBatch of(List<DeliveredEvent> deliveredEvents) {
+    return new UserEventBatch(deliveredEvents.stream()
+        .map(e -> new UserEventWrapper(e.event(), e.sequence()))
+        .toList());
+  }
+}
@@ -1,25 +1,25 @@
 package org.reminstant.secretalk.server.dto.http;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
 import lombok.Getter;
-import lombok.extern.slf4j.Slf4j;
 import org.reminstant.secretalk.server.dto.nats.UserEvent;
 
-@Slf4j
+/** The event is nested as an object of its own type, the type name precedes it */
 @Getter
+@JsonPropertyOrder({"eventType", "event", "sequence"})
 public class UserEventWrapper {
 
   private final String eventType;
-  private final String eventJson;
+  private final UserEvent event;
+  private final long sequence;
 
   public UserEventWrapper(UserEvent userEvent) {
-    eventType = UserEvent.getEventType(userEvent);
-    try {
-      eventJson = new ObjectMapper().writeValueAsString(userEvent);
-    } catch (JsonProcessingException ex) {
-      log.error("Failed to jsonify UserEvent subclass");
-      throw new RuntimeException(ex);
-    }
+    this(userEvent, 0);
   }
-}
\ No newline at end of file
+
+  public UserEventWrapper(UserEvent userEvent, long sequence) {
+    this.eventType = UserEvent.getEventType(userEvent);
+    this.event = userEvent;
+    this.sequence = sequence;
+  }
+}
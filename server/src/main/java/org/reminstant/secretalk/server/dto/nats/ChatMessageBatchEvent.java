@@ -0,0 +1,30 @@
+package org.reminstant.secretalk.server.dto.nats;
+
+import lombok.Getter;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+
+/** Messages sent at once to the same user, in the order they were sent */
+@Getter
+public class ChatMessageBatchEvent extends UserEvent {
+
+  public static final String EVENT_NAME = "ChatMessageBatch";
+
+  private final List<ChatMessageEvent> messages;
+
+  public ChatMessageBatchEvent(List<ChatMessageEvent> messages) {
+    this(UUID.randomUUID().toString(), messages);
+  }
+
+  public ChatMessageBatchEvent(String id, List<ChatMessageEvent> messages) {
+    super(id);
+    Objects.requireNonNull(messages, "messages cannot be null");
+    this.messages = messages;
+  }
+
+  ChatMessageBatchEvent() {
+    this("", List.of());
+  }
+}
\ No newline at end of file
@@ -0,0 +1,7 @@
+package org.reminstant.secretalk.server.dto.nats;
+
+/** Event along with its stream sequence that cumulative acknowledgement refers to */
+public record DeliveredEvent(
+    long sequence,
+    UserEvent event) {
+}
@@ -36,6 +36,7 @@ public abstract class UserEvent {
       case ChatDesertEvent.EVENT_NAME -> defaultObjectMapper.readValue(data, ChatDesertEvent.class);
       case ChatDestroyEvent.EVENT_NAME -> defaultObjectMapper.readValue(data, ChatDestroyEvent.class);
       case ChatMessageEvent.EVENT_NAME -> defaultObjectMapper.readValue(data, ChatMessageEvent.class);
+      case ChatMessageBatchEvent.EVENT_NAME -> defaultObjectMapper.readValue(data, ChatMessageBatchEvent.class);
       case ChatFileEvent.EVENT_NAME -> defaultObjectMapper.readValue(data, ChatFileEvent.class);
       case ChatImageEvent.EVENT_NAME -> defaultObjectMapper.readValue(data, ChatImageEvent.class);
 
@@ -60,6 +61,7 @@ public abstract class UserEvent {
       case ChatDesertEvent _ -> ChatDesertEvent.EVENT_NAME;
       case ChatDestroyEvent _ -> ChatDestroyEvent.EVENT_NAME;
       case ChatMessageEvent _ -> ChatMessageEvent.EVENT_NAME;
+      case ChatMessageBatchEvent _ -> ChatMessageBatchEvent.EVENT_NAME;
       case ChatFileEvent _ -> ChatFileEvent.EVENT_NAME;
       case ChatImageEvent _ -> ChatImageEvent.EVENT_NAME;
       case VoidEvent _ -> VoidEvent.EVENT_NAME;
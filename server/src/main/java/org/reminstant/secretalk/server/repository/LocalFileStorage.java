@@ -7,19 +7,40 @@ import org.springframework.stereotype.Repository;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32C;
 
 import static java.nio.file.StandardOpenOption.CREATE;
 import static java.nio.file.StandardOpenOption.WRITE;
 import static java.nio.file.StandardOpenOption.READ;
 
+/**
+ * <p> Storage of uploaded files. Files are written part by part at the offsets given by the uploader.
+ * <p> Every file has a part index beside it: the part byte length chosen for the file and the file participants
+ * followed by an 8-byte entry per part holding a received flag and the CRC32C of the part.
+ * An entry is written only after its part, so a part interrupted by a crash stays missing.
+ * <p> The participants are the uploader and the recipient fixed by the first upload attempt.
+ * Only the uploader may write the file and only the recipient may request or release it.
+ */
 @Slf4j
 @Repository
 public class LocalFileStorage {
 
   private static final Path FILE_FOLDER_PATH = Path.of("chatFiles");
+  private static final String PART_INDEX_SUFFIX = ".parts";
+  private static final int PARTICIPANT_MAX_BYTE_LENGTH = 32;
+  private static final int PARTICIPANT_FIELD_BYTE_LENGTH = 2 + PARTICIPANT_MAX_BYTE_LENGTH;
+  private static final int PART_INDEX_HEADER_BYTE_LENGTH = 8 + 2 * PARTICIPANT_FIELD_BYTE_LENGTH;
+  private static final int PART_INDEX_ENTRY_BYTE_LENGTH = 8;
+  private static final long RECEIVED_PART_FLAG = 1L << 32;
 
+  public record FileParticipants(String uploader, String recipient) {
+  }
 
   public boolean isFileExist(String fileName) throws LocalFileStorageException {
     try {
@@ -41,20 +62,123 @@ public class LocalFileStorage {
     }
   }
 
-  public void writeFilePart(String fileName, long pos, byte[] data) throws LocalFileStorageException {
+  /**
+   * Fixes the part byte length and the participants of the file on the first call.
+   * Returns the fixed length, which differs from the proposed one if the upload is resumed,
+   * or 0 if the file was fixed for other participants
+   */
+  public synchronized int negotiatePartByteLength(String fileName, FileParticipants participants,
+                                                  int proposedPartByteLength) throws LocalFileStorageException {
+    try {
+      createDirectoryIfNotExists(FILE_FOLDER_PATH);
+      try (FileChannel indexChannel = FileChannel.open(getPartIndexPath(fileName), CREATE, READ, WRITE)) {
+        ByteBuffer header = ByteBuffer.allocate(PART_INDEX_HEADER_BYTE_LENGTH);
+        if (indexChannel.read(header, 0) == PART_INDEX_HEADER_BYTE_LENGTH) {
+          return participants.equals(readParticipants(header)) ? (int) header.getLong(0) : 0;
+        }
+        header.putLong(0, proposedPartByteLength);
+        writeParticipant(header, 8, participants.uploader());
+        writeParticipant(header, 8 + PARTICIPANT_FIELD_BYTE_LENGTH, participants.recipient());
+        indexChannel.write(header.clear(), 0);
+        return proposedPartByteLength;
+      }
+    } catch (IOException ex) {
+      throw new LocalFileStorageException("Failed to negotiate file part length", ex);
+    }
+  }
+
+  /** Returns 0 if the part byte length of the file is not negotiated yet */
+  public int getPartByteLength(String fileName) throws LocalFileStorageException {
+    try {
+      createDirectoryIfNotExists(FILE_FOLDER_PATH);
+      Path indexPath = getPartIndexPath(fileName);
+      if (!Files.exists(indexPath)) {
+        return 0;
+      }
+      try (FileChannel indexChannel = FileChannel.open(indexPath, READ)) {
+        return readPartByteLength(indexChannel);
+      }
+    } catch (IOException ex) {
+      throw new LocalFileStorageException("Failed to get file part length", ex);
+    }
+  }
+
+  /** Returns null if the file has no part index */
+  public FileParticipants getFileParticipants(String fileName) throws LocalFileStorageException {
+    try {
+      createDirectoryIfNotExists(FILE_FOLDER_PATH);
+      Path indexPath = getPartIndexPath(fileName);
+      if (!Files.exists(indexPath)) {
+        return null;
+      }
+      try (FileChannel indexChannel = FileChannel.open(indexPath, READ)) {
+        ByteBuffer header = ByteBuffer.allocate(PART_INDEX_HEADER_BYTE_LENGTH);
+        return indexChannel.read(header, 0) == PART_INDEX_HEADER_BYTE_LENGTH ? readParticipants(header) : null;
+      }
+    } catch (IOException ex) {
+      throw new LocalFileStorageException("Failed to get file participants", ex);
+    }
+  }
+
+  public void writeFilePart(String fileName, long partNumber, long partOffset, byte[] data)
+      throws LocalFileStorageException {
     try {
       createDirectoryIfNotExists(FILE_FOLDER_PATH);
       Path filePath = getFilePath(fileName);
       try (FileChannel fileChannel = FileChannel.open(filePath, CREATE, WRITE)) {
-        int written = fileChannel.write(ByteBuffer.wrap(data), pos);
+        int written = fileChannel.write(ByteBuffer.wrap(data), partOffset);
         if (written != data.length) {
-          log.error("Some data was not written ({}/{} bytes was written}", written, data.length);
+          throw new IOException("Some data was not written (%d/%d bytes)".formatted(written, data.length));
         }
       }
+
+      ByteBuffer entry = ByteBuffer.allocate(PART_INDEX_ENTRY_BYTE_LENGTH)
+          .putLong(0, RECEIVED_PART_FLAG | checksum(data));
+      try (FileChannel indexChannel = FileChannel.open(getPartIndexPath(fileName), CREATE, WRITE)) {
+        indexChannel.write(entry, getPartIndexEntryPos(partNumber));
+      }
     } catch (IOException ex) {
       throw new LocalFileStorageException("Failed to write into the file storage", ex);
     }
+  }
+
+  /**
+   * Returns numbers of the parts that are not received or whose data no longer matches
+   * the checksum in the part index. Part data is re-read to verify it
+   */
+  public List<Long> getMissingFileParts(String fileName, long partCount)
+      throws LocalFileStorageException {
+    List<Long> missingParts = new ArrayList<>();
+    try {
+      createDirectoryIfNotExists(FILE_FOLDER_PATH);
+      Path filePath = getFilePath(fileName);
+      Path indexPath = getPartIndexPath(fileName);
+      if (!Files.exists(filePath) || !Files.exists(indexPath)) {
+        for (long i = 0; i < partCount; ++i) {
+          missingParts.add(i);
+        }
+        return missingParts;
+      }
 
+      try (FileChannel fileChannel = FileChannel.open(filePath, READ);
+           FileChannel indexChannel = FileChannel.open(indexPath, READ)) {
+        int partByteLength = readPartByteLength(indexChannel);
+        ByteBuffer entry = ByteBuffer.allocate(PART_INDEX_ENTRY_BYTE_LENGTH);
+        ByteBuffer part = ByteBuffer.allocate(Math.max(partByteLength, 0));
+        for (long i = 0; i < partCount; ++i) {
+          entry.clear();
+          int read = indexChannel.read(entry, getPartIndexEntryPos(i));
+          long entryValue = read == PART_INDEX_ENTRY_BYTE_LENGTH ? entry.getLong(0) : 0;
+          if ((entryValue & RECEIVED_PART_FLAG) == 0 ||
+              (entryValue & 0xFFFFFFFFL) != readPartChecksum(fileChannel, i * partByteLength, part)) {
+            missingParts.add(i);
+          }
+        }
+      }
+      return missingParts;
+    } catch (IOException ex) {
+      throw new LocalFileStorageException("Failed to check file parts", ex);
+    }
   }
 
   // TODO: return byte[]
@@ -73,13 +197,87 @@ public class LocalFileStorage {
   public void deleteFile(String fileName) throws LocalFileStorageException {
     try {
       createDirectoryIfNotExists(FILE_FOLDER_PATH);
-      Path filePath = getFilePath(fileName);
-      Files.delete(filePath);
+      Files.deleteIfExists(getFilePath(fileName));
+      Files.deleteIfExists(getPartIndexPath(fileName));
     } catch (IOException ex) {
       throw new LocalFileStorageException("Failed to delete file from the file storage", ex);
     }
   }
 
+  /** Deletes the files of the chat that the user uploaded or was to receive */
+  public void deleteChatFiles(String chatId, String username) throws LocalFileStorageException {
+    List<String> fileNames = new ArrayList<>();
+    try {
+      createDirectoryIfNotExists(FILE_FOLDER_PATH);
+      try (DirectoryStream<Path> paths = Files.newDirectoryStream(FILE_FOLDER_PATH)) {
+        for (Path path : paths) {
+          String name = path.getFileName().toString();
+          if (name.startsWith(chatId) && name.endsWith(PART_INDEX_SUFFIX)) {
+            fileNames.add(name.substring(0, name.length() - PART_INDEX_SUFFIX.length()));
+          }
+        }
+      }
+    } catch (IOException ex) {
+      throw new LocalFileStorageException("Failed to list chat files", ex);
+    }
+
+    for (String fileName : fileNames) {
+      FileParticipants participants = getFileParticipants(fileName);
+      if (participants != null &&
+          (participants.uploader().equals(username) || participants.recipient().equals(username))) {
+        deleteFile(fileName);
+      }
+    }
+  }
+
+  public static long checksum(byte[] data) {
+    CRC32C crc = new CRC32C();
+    crc.update(data);
+    return crc.getValue();
+  }
+
+  private static int readPartByteLength(FileChannel indexChannel) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(PART_INDEX_HEADER_BYTE_LENGTH);
+    return indexChannel.read(header, 0) == PART_INDEX_HEADER_BYTE_LENGTH ? (int) header.getLong(0) : 0;
+  }
+
+  private static FileParticipants readParticipants(ByteBuffer header) {
+    return new FileParticipants(
+        readParticipant(header, 8),
+        readParticipant(header, 8 + PARTICIPANT_FIELD_BYTE_LENGTH));
+  }
+
+  private static String readParticipant(ByteBuffer header, int pos) {
+    int byteLength = Math.clamp(header.getShort(pos), 0, PARTICIPANT_MAX_BYTE_LENGTH);
+    byte[] bytes = new byte[byteLength];
+    header.get(pos + 2, bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static void writeParticipant(ByteBuffer header, int pos, String username) throws IOException {
+    byte[] bytes = username.getBytes(StandardCharsets.UTF_8);
+    if (bytes.length > PARTICIPANT_MAX_BYTE_LENGTH) {
+      throw new IOException("Username is too long to be stored in the part index");
+    }
+    header.putShort(pos, (short) bytes.length);
+    header.put(pos + 2, bytes);
+  }
+
+  private static long getPartIndexEntryPos(long partNumber) {
+    return PART_INDEX_HEADER_BYTE_LENGTH + partNumber * PART_INDEX_ENTRY_BYTE_LENGTH;
+  }
+
+  private static long readPartChecksum(FileChannel fileChannel, long pos, ByteBuffer part) throws IOException {
+    part.clear();
+    while (part.hasRemaining() && fileChannel.read(part, pos + part.position()) > 0) {
+      // reads until the part or the file ends
+    }
+    part.flip();
+    CRC32C crc = new CRC32C();
+    crc.update(part);
+    return crc.getValue();
+  }
+
   @SuppressWarnings("SameParameterValue")
   private void createDirectoryIfNotExists(Path path) throws IOException {
     if (!Files.exists(path)) {
@@ -90,4 +288,8 @@ public class LocalFileStorage {
   private Path getFilePath(String fileName) {
     return FILE_FOLDER_PATH.resolve(fileName);
   }
+
+  private Path getPartIndexPath(String fileName) {
+    return FILE_FOLDER_PATH.resolve(fileName + PART_INDEX_SUFFIX);
+  }
 }
@@ -13,8 +13,8 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import java.io.IOException;
-import java.util.Map;
-import java.util.Objects;
+import java.time.Duration;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 
 @Slf4j
@@ -22,8 +22,11 @@ import java.util.concurrent.ConcurrentHashMap;
 public class NatsBrokerService implements DisposableBean {
 
   private static final ObjectMapper objectMapper = new ObjectMapper();
+  private static final long BATCH_FILL_MILLIS = 25;
 
+  private final String streamName;
   private final String subjectPrefix;
+  private final Duration ackWait;
 
   private final Connection natsConnection;
   private final JetStreamManagement jetStreamManagement;
@@ -34,9 +37,12 @@ public class NatsBrokerService implements DisposableBean {
 
   public NatsBrokerService(@Value("${nats.server.url}") String url,
                            @Value("${nats.streams.event.name}") String streamName,
-                           @Value("${nats.streams.event.subject-prefix}") String subjectPrefix)
+                           @Value("${nats.streams.event.subject-prefix}") String subjectPrefix,
+                           @Value("${nats.consumers.ack-wait-millis}") long ackWaitMillis)
       throws IOException, InterruptedException, JetStreamApiException {
+    this.streamName = streamName;
     this.subjectPrefix = subjectPrefix;
+    this.ackWait = Duration.ofMillis(ackWaitMillis);
     subscriptions = new ConcurrentHashMap<>();
     messagesToAcknowledge = new ConcurrentHashMap<>();
 
@@ -69,24 +75,65 @@ public class NatsBrokerService implements DisposableBean {
       return UserEvent.getVoidEvent();
     }
 
-    String eventType = msg.getHeaders().get("Event-Type").stream().findFirst().orElse(null);
-    if (eventType == null) {
-      log.error("Found NATS event-message without event type.{} Message metadata:{}{}",
-          System.lineSeparator(), System.lineSeparator(), msg.metaData());
+    UserEvent event = parseEvent(msg);
+    if (event == null) {
       return UserEvent.getVoidEvent();
     }
-
-    UserEvent event = UserEvent.getEvent(eventType, msg.getData());
     saveMessageToAcknowledge(username, event.getId(), msg);
     return event;
   }
 
+  /**
+   * Waits for the first event up to timeout, then takes whatever else is already in the stream
+   * up to {@code maxCount} events. Returns empty list if there are no events
+   */
+  public List<DeliveredEvent> getEvents(String username, int maxCount, long timeoutMillis)
+      throws JetStreamApiException, IOException {
+    Objects.requireNonNull(username, "username cannot be null");
+
+    JetStreamSubscription sub = getSubscription(username);
+    List<Message> messages = new ArrayList<>(sub.fetch(1, timeoutMillis));
+    if (!messages.isEmpty() && maxCount > 1) {
+      messages.addAll(sub.fetch(maxCount - 1, BATCH_FILL_MILLIS));
+    }
+
+    List<DeliveredEvent> events = new ArrayList<>(messages.size());
+    for (Message msg : messages) {
+      UserEvent event = parseEvent(msg);
+      if (event != null) {
+        saveMessageToAcknowledge(username, event.getId(), msg);
+        events.add(new DeliveredEvent(msg.metaData().streamSequence(), event));
+      }
+    }
+    return events;
+  }
+
   public boolean acknowledgeEvent(String username, String eventId) {
     Objects.requireNonNull(username, "username cannot be null");
     Objects.requireNonNull(eventId, "eventId cannot be null");
     return eraseMessageToAcknowledge(username, eventId);
   }
 
+  /** Acknowledges every delivered event with stream sequence up to the given one inclusively */
+  public int acknowledgeEventsUpTo(String username, long sequence) {
+    Objects.requireNonNull(username, "username cannot be null");
+
+    Map<String, Message> messages = messagesToAcknowledge.get(username);
+    if (messages == null) {
+      return 0;
+    }
+
+    int count = 0;
+    for (Map.Entry<String, Message> entry : messages.entrySet()) {
+      Message msg = entry.getValue();
+      if (msg.metaData().streamSequence() <= sequence && messages.remove(entry.getKey(), msg)) {
+        msg.ack();
+        count++;
+      }
+    }
+    return count;
+  }
+
 
 
   public void sendChatConnectionRequest(String chatId,
@@ -205,6 +252,24 @@ public class NatsBrokerService implements DisposableBean {
     }
   }
 
+  /** Publishes the messages as a single event, so the recipient gets and acknowledges them at once */
+  public void sendChatMessages(String otherUsername, List<ChatMessageEvent> messages)
+      throws JetStreamApiException, IOException {
+    Objects.requireNonNull(otherUsername, "otherUsername cannot be null");
+
+    String subject = getUserEventSubject(otherUsername);
+    Headers headers = new Headers()
+        .put("Event-Type", ChatMessageBatchEvent.EVENT_NAME);
+
+    try {
+      String json = objectMapper.writeValueAsString(new ChatMessageBatchEvent(messages));
+      jetStream.publish(subject, headers, json.getBytes());
+    } catch (JsonProcessingException ex) {
+      log.error("Failed to jsonify ChatMessageBatchEvent");
+      throw new RuntimeException(ex);
+    }
+  }
+
   public void sendImage(String messageId, String chatId, String username,
                         String otherUsername, String filename, byte[] imageData)
       throws JetStreamApiException, IOException {
@@ -249,16 +314,18 @@ public class NatsBrokerService implements DisposableBean {
     // TODO: cache cleaning
     JetStreamSubscription sub = subscriptions.getOrDefault(username, null);
     if (sub == null) {
-      String subject = "%s.user-%s".formatted(subjectPrefix, username);
-      PullSubscribeOptions options = PullSubscribeOptions.builder()
-          .durable("CONSUMER_%s".formatted(username))
-          .configuration(ConsumerConfiguration.builder()
-              .ackPolicy(AckPolicy.Explicit)
-              .deliverPolicy(DeliverPolicy.All)
-              .ackWait(1)
-              .build())
-          .build();
-      sub = jetStream.subscribe(subject, options);
+      String subject = getUserEventSubject(username);
+      String durable = "CONSUMER_%s".formatted(username);
+      // Ack wait outlasts the client's acknowledgement window, so pending events are not redelivered.
+      // Subscribing does not change the config of an existing durable consumer, so it is updated first
+      jetStreamManagement.addOrUpdateConsumer(streamName, ConsumerConfiguration.builder()
+          .durable(durable)
+          .filterSubject(subject)
+          .ackPolicy(AckPolicy.Explicit)
+          .deliverPolicy(DeliverPolicy.All)
+          .ackWait(ackWait)
+          .build());
+      sub = jetStream.subscribe(subject, PullSubscribeOptions.bind(streamName, durable));
       subscriptions.put(username, sub);
     }
     return sub;
@@ -268,6 +335,16 @@ public class NatsBrokerService implements DisposableBean {
     return "%s.user-%s".formatted(subjectPrefix, otherUsername);
   }
 
+  private UserEvent parseEvent(Message msg) throws IOException {
+    String eventType = msg.getHeaders().get("Event-Type").stream().findFirst().orElse(null);
+    if (eventType == null) {
+      log.error("Found NATS event-message without event type.{} Message metadata:{}{}",
+          System.lineSeparator(), System.lineSeparator(), msg.metaData());
+      return null;
+    }
+    return UserEvent.getEvent(eventType, msg.getData());
+  }
+
   private void saveMessageToAcknowledge(String username, String eventId, Message msg) {
     messagesToAcknowledge
         .computeIfAbsent(username, _ -> new ConcurrentHashMap<>())
@@ -277,7 +354,7 @@ public class NatsBrokerService implements DisposableBean {
   private boolean eraseMessageToAcknowledge(String username, String eventId) {
     Message msg = messagesToAcknowledge
         .computeIfAbsent(username, _ -> new ConcurrentHashMap<>())
-        .getOrDefault(eventId, null);
+        .remove(eventId);
 
     if (msg == null) {
       return false;
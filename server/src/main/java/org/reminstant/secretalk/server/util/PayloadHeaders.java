@@ -0,0 +1,29 @@
+package org.reminstant.secretalk.server.util;
+
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Headers carrying metadata of binary ({@code application/octet-stream}) payload requests.
+ * String values are URL-encoded by the client since headers are limited to ASCII
+ */
+public final class PayloadHeaders {
+
+  public static final String MESSAGE_ID = "X-Message-Id";
+  public static final String CHAT_ID = "X-Chat-Id";
+  public static final String OTHER_USERNAME = "X-Other-Username";
+  public static final String FILE_NAME = "X-File-Name";
+  public static final String PART_NUMBER = "X-Part-Number";
+  public static final String PART_COUNT = "X-Part-Count";
+  public static final String PART_OFFSET = "X-Part-Offset";
+  public static final String PART_CHECKSUM = "X-Part-Checksum";
+  public static final String IS_IMAGE = "X-Is-Image";
+
+  private PayloadHeaders() {
+
+  }
+
+  public static String decode(String value) {
+    return value != null ? URLDecoder.decode(value, StandardCharsets.UTF_8) : null;
+  }
+}